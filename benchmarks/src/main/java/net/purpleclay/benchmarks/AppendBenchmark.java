@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.util.DurableLog;
+
+
+/**
+ * Throughput of appending to a {@code DurableLog}, by the size of each
+ * command and the durability mode. Each append is a single command, as a
+ * follower or a leader without batching would make, and a batch of commands
+ * is measured separately. The log grows for the whole trial, so the cost of
+ * starting new segments is included.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+
+	// the number of commands in each batched append
+	private static final int BATCH_SIZE = 64;
+
+	/** The payload size of each command. */
+	@Param({ "16", "256", "4096" })
+	public int commandSize;
+
+	/** The {@code DurableLog.Durability} mode to append with. */
+	@Param({ "SYNC", "BATCH", "BUFFERED" })
+	public String durability;
+
+	// the log being appended to and its directory
+	private File dir;
+	private DurableLog log;
+
+	// the commands that are appended, which are the same every time
+	private Command command;
+	private Command [] batch;
+
+	@Setup
+	public void setUp() throws IOException {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, durability);
+
+		dir = LogFixture.createDirectory();
+		log = LogFixture.openLog(dir, p, new LogFixture.CountingStateMachine());
+
+		Random random = new Random(0L);
+		command = PayloadCommand.create(commandSize, random);
+		batch = new Command[BATCH_SIZE];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = PayloadCommand.create(commandSize, random);
+	}
+
+	@TearDown
+	public void tearDown() {
+		log.shutdown();
+		LogFixture.delete(dir);
+	}
+
+	/** Appends a single command. */
+	@Benchmark
+	public long append() {
+		log.append(command, 1L);
+		return log.getLastIndex();
+	}
+
+	/** Appends a batch of commands in one call, counting each command. */
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public long appendBatch() {
+		log.append(batch, 1L);
+		return log.getLastIndex();
+	}
+
+}
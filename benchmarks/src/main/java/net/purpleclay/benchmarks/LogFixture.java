@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.StateMachine;
+import net.purpleclay.raft.util.CommandCodecRegistry;
+import net.purpleclay.raft.util.DurableLog;
+
+
+/**
+ * Shared setup for the {@code DurableLog} benchmarks. Each log is created in
+ * its own new directory under the local temporary directory, or under the
+ * directory named by the {@code DIR_PROPERTY} system property, since the
+ * results depend on the disk that's written to. Directories are removed
+ * again once a benchmark is done with them.
+ * <p>
+ * Logs are opened with payload commands registered, and a state machine that
+ * only counts what it's given, so only the log itself is measured.
+ */
+public class LogFixture {
+
+	/** System property naming the directory that logs are written under. */
+	public static final String DIR_PROPERTY = "net.purpleclay.benchmarks.dir";
+
+	/** A state machine that counts the commands applied to it. */
+	public static class CountingStateMachine implements StateMachine {
+		private long applied = 0L;
+		@Override public void apply(Command command) {
+			applied++;
+		}
+
+		/**
+		 * Returns the number of commands applied so far.
+		 *
+		 * @return the applied count
+		 */
+		public long getApplied() {
+			return applied;
+		}
+	}
+
+	// not instantiated
+	private LogFixture() { }
+
+	/**
+	 * Creates a new, empty directory for a log.
+	 *
+	 * @return the new directory
+	 *
+	 * @throws IOException if the directory can't be created
+	 */
+	public static File createDirectory() throws IOException {
+		File base = new File(System.getProperty(DIR_PROPERTY,
+												System.getProperty("java.io.tmpdir")));
+		File dir = File.createTempFile("durable-log", "", base);
+		if ((! dir.delete()) || (! dir.mkdir()))
+			throw new IOException("failed to create directory: " + dir);
+		return dir;
+	}
+
+	/**
+	 * Opens a log in the given directory.
+	 *
+	 * @param dir the log directory
+	 * @param properties any {@code DurableLog} properties beyond the directory
+	 * @param stateMachine the {@code StateMachine} that consumes the commands
+	 *
+	 * @return the opened {@code DurableLog}
+	 *
+	 * @throws IOException if the log can't be opened
+	 */
+	public static DurableLog openLog(File dir, Properties properties, StateMachine stateMachine)
+		throws IOException
+	{
+		Properties p = new Properties();
+		p.putAll(properties);
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, dir.getAbsolutePath());
+
+		CommandCodecRegistry codecs = new CommandCodecRegistry();
+		codecs.addCodec(PayloadCommand.CODEC, PayloadCommand.IDENTIFIER);
+		return new DurableLog(p, stateMachine, codecs);
+	}
+
+	/**
+	 * Appends the given number of payload commands in a single term, in
+	 * batches so that filling a large log doesn't wait on a sync per entry.
+	 *
+	 * @param log the log to append to
+	 * @param count the number of entries to append
+	 * @param size the payload size of each command
+	 * @param term the term to append in
+	 * @param random the source of the payloads' content
+	 */
+	public static void fill(DurableLog log, int count, int size, long term, Random random) {
+		Command [] batch = new Command[Math.min(count, 1024)];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = PayloadCommand.create(size, random);
+
+		for (int remaining = count; remaining > 0; remaining -= batch.length) {
+			if (remaining < batch.length) {
+				Command [] last = new Command[remaining];
+				System.arraycopy(batch, 0, last, 0, remaining);
+				log.append(last, term);
+			} else {
+				log.append(batch, term);
+			}
+		}
+	}
+
+	/**
+	 * Removes a directory and everything in it.
+	 *
+	 * @param dir the directory to remove
+	 */
+	public static void delete(File dir) {
+		File [] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					delete(file);
+				else
+					file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+}
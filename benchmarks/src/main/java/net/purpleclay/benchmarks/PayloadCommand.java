@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.CommandCodec;
+
+
+/**
+ * A {@code Command} that carries an opaque payload of a chosen size, so that
+ * benchmarks can control exactly how many bytes each entry adds to the log.
+ * The payload is random, so compression and caching don't see unrealistic
+ * repetition. Commands are written with the {@code CODEC} codec.
+ */
+public class PayloadCommand implements Command {
+
+	/** The identifier for all payload commands. */
+	public static final String IDENTIFIER = "benchmark.payload";
+
+	/** The codec for payload commands, which writes just the payload. */
+	public static final CommandCodec CODEC = new CommandCodec() {
+			public int getEncodedLength(Command command) {
+				return ((PayloadCommand) command).payload.length;
+			}
+			public void encode(Command command, ByteBuffer buffer) {
+				buffer.put(((PayloadCommand) command).payload);
+			}
+			public Command decode(ByteBuffer buffer) {
+				byte [] payload = new byte[buffer.remaining()];
+				buffer.get(payload);
+				return new PayloadCommand(payload);
+			}
+		};
+
+	// the opaque content of the command
+	private final byte [] payload;
+
+	/**
+	 * Creates an instance of {@code PayloadCommand}.
+	 *
+	 * @param payload the content of the command
+	 */
+	public PayloadCommand(byte [] payload) {
+		this.payload = payload;
+	}
+
+	/**
+	 * Creates a command with a random payload of the given size.
+	 *
+	 * @param size the length of the payload in bytes
+	 * @param random the source of the payload's content
+	 *
+	 * @return a new {@code PayloadCommand}
+	 */
+	public static PayloadCommand create(int size, Random random) {
+		byte [] payload = new byte[size];
+		random.nextBytes(payload);
+		return new PayloadCommand(payload);
+	}
+
+	/**
+	 * Returns the length of the payload.
+	 *
+	 * @return the payload size in bytes
+	 */
+	public int getSize() {
+		return payload.length;
+	}
+
+	@Override public String getIdentifier() {
+		return IDENTIFIER;
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.LogCursor;
+import net.purpleclay.raft.LogRecords;
+import net.purpleclay.raft.util.DurableLog;
+
+
+/**
+ * Time to read from a {@code DurableLog} that's already been written, by the
+ * size of the log. Reads start at a random index, so they cover both sealed
+ * segments and the segment being written, and each reads a fixed range of
+ * entries: as commands through {@code getEntries} and a cursor, and as raw
+ * records transferred to a channel the way they're sent to a follower.
+ * <p>
+ * The entry cache is turned off, so that reads go to the segments rather
+ * than measuring the cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReadBenchmark {
+
+	// the number of entries in each read
+	private static final int RANGE = 100;
+
+	// the payload size of each command
+	private static final int COMMAND_SIZE = 256;
+
+	/** The number of entries in the log. */
+	@Param({ "10000", "100000", "1000000" })
+	public int logSize;
+
+	// the log being read and its directory
+	private File dir;
+	private DurableLog log;
+
+	// chooses where each read starts
+	private final Random random = new Random(0L);
+
+	// a channel that discards what's written to it
+	private final WritableByteChannel discard = new WritableByteChannel() {
+			public int write(ByteBuffer src) {
+				int count = src.remaining();
+				src.position(src.limit());
+				return count;
+			}
+			public boolean isOpen() {
+				return true;
+			}
+			public void close() { }
+		};
+
+	@Setup
+	public void setUp() throws IOException {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, DurableLog.Durability.BUFFERED.name());
+		p.setProperty(DurableLog.ENTRY_CACHE_SIZE_PROPERTY, "0");
+
+		dir = LogFixture.createDirectory();
+		log = LogFixture.openLog(dir, p, new LogFixture.CountingStateMachine());
+		LogFixture.fill(log, logSize, COMMAND_SIZE, 1L, new Random(0L));
+	}
+
+	@TearDown
+	public void tearDown() {
+		log.shutdown();
+		LogFixture.delete(dir);
+	}
+
+	/** Returns a random index with a full range of entries from it. */
+	private long nextStart() {
+		return 1L + random.nextInt(logSize - RANGE + 1);
+	}
+
+	/** Reads the last entries through {@code getEntries}. */
+	@Benchmark
+	public Command [] getEntries() {
+		return log.getEntries(log.getLastIndex() - RANGE + 1);
+	}
+
+	/** Reads a range of commands through a cursor. */
+	@Benchmark
+	public int cursorRange() {
+		LogCursor cursor = log.getCursor(nextStart(), RANGE, Long.MAX_VALUE);
+		int count = 0;
+		while (cursor.next()) {
+			if (cursor.getCommand() != null)
+				count++;
+		}
+		return count;
+	}
+
+	/** Reads a range of records and transfers them to a channel. */
+	@Benchmark
+	public long recordRange() throws IOException {
+		long index = nextStart();
+		long end = index + RANGE;
+		long bytes = 0L;
+		while (index < end) {
+			LogRecords records = log.getRecords(index, (int) (end - index), Long.MAX_VALUE);
+			records.transferTo(discard);
+			bytes += records.getLength();
+			index += records.getEntryCount();
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.purpleclay.raft.util.DurableLog;
+
+
+/**
+ * Time to re-start a {@code DurableLog}, by the size of the log: just loading
+ * it, and loading it and then re-playing every entry into the state machine,
+ * as a server does after a restart. The log is written once per trial and
+ * then opened again by every call. Files that are read repeatedly stay in the
+ * page cache, so this measures the log's own work rather than the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ReplayBenchmark {
+
+	// the payload size of each command
+	private static final int COMMAND_SIZE = 64;
+
+	/** The number of entries in the log. */
+	@Param({ "10000", "100000", "1000000" })
+	public int logSize;
+
+	/** Whether sealed segments are loaded from their on-disk indexes. */
+	@Param({ "true", "false" })
+	public String segmentIndex;
+
+	// the log's directory, and the properties it's opened with
+	private File dir;
+	private final Properties properties = new Properties();
+
+	@Setup
+	public void setUp() throws IOException {
+		properties.setProperty(DurableLog.DURABILITY_PROPERTY,
+							   DurableLog.Durability.BUFFERED.name());
+		properties.setProperty(DurableLog.SEGMENT_INDEX_PROPERTY, segmentIndex);
+
+		dir = LogFixture.createDirectory();
+		DurableLog log =
+			LogFixture.openLog(dir, properties, new LogFixture.CountingStateMachine());
+		LogFixture.fill(log, logSize, COMMAND_SIZE, 1L, new Random(0L));
+		log.shutdown();
+
+		// the first load writes any missing segment indexes
+		LogFixture.openLog(dir, properties, new LogFixture.CountingStateMachine()).shutdown();
+	}
+
+	@TearDown
+	public void tearDown() {
+		LogFixture.delete(dir);
+	}
+
+	/** Loads the log. */
+	@Benchmark
+	public long load() throws IOException {
+		DurableLog log =
+			LogFixture.openLog(dir, properties, new LogFixture.CountingStateMachine());
+		long lastIndex = log.getLastIndex();
+		log.shutdown();
+		return lastIndex;
+	}
+
+	/** Loads the log and re-plays every entry. */
+	@Benchmark
+	public long loadAndReplay() throws IOException {
+		LogFixture.CountingStateMachine stateMachine = new LogFixture.CountingStateMachine();
+		DurableLog log = LogFixture.openLog(dir, properties, stateMachine);
+		log.applied(log.getLastIndex());
+		log.shutdown();
+		return stateMachine.getApplied();
+	}
+
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.purpleclay.raft.util.DurableLog;
+
+
+/**
+ * Time for {@code validateEntry} to cut a {@code DurableLog} back, by how
+ * many entries are cut. Before each cut the entries are appended again, on
+ * top of a log that already has a base of entries, and the cut then removes
+ * them as a conflicting entry from a new leader would. Small segments are
+ * used so that deeper cuts also delete whole segments.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TruncationBenchmark {
+
+	// the number of entries that are never cut
+	private static final int BASE_SIZE = 10000;
+
+	// the payload size of each command
+	private static final int COMMAND_SIZE = 256;
+
+	// the size of each segment
+	private static final String SEGMENT_SIZE = String.valueOf(1024 * 1024);
+
+	/** The number of entries cut by each call. */
+	@Param({ "1", "100", "10000" })
+	public int depth;
+
+	// the log being cut and its directory
+	private File dir;
+	private DurableLog log;
+
+	// the source of the payloads
+	private final Random random = new Random(0L);
+
+	@Setup
+	public void setUp() throws IOException {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, DurableLog.Durability.BUFFERED.name());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, SEGMENT_SIZE);
+
+		dir = LogFixture.createDirectory();
+		log = LogFixture.openLog(dir, p, new LogFixture.CountingStateMachine());
+		LogFixture.fill(log, BASE_SIZE, COMMAND_SIZE, 1L, random);
+	}
+
+	@TearDown
+	public void tearDown() {
+		log.shutdown();
+		LogFixture.delete(dir);
+	}
+
+	/** Appends the entries that the next cut removes. */
+	@Setup(Level.Invocation)
+	public void appendEntries() {
+		LogFixture.fill(log, depth, COMMAND_SIZE, 1L, random);
+	}
+
+	/** Cuts the log back to the base entries. */
+	@Benchmark
+	public long validateEntry() {
+		log.validateEntry(BASE_SIZE + 1L, 2L);
+		return log.getLastIndex();
+	}
+
+}
@@ -13,9 +13,15 @@ package net.purpleclay.raft;
  * sent to a {@code Server} there must be some associated {@code StateMachine}
  * available to process the command.
  * <p>
- * TODO: in the current tests implementations are assumed to be VM-local or
- * {@code Serializable}. This interface needs to define some way to encode and
- * decode commands to allow for other forms of communications.
+ * Commands can be given a compact binary encoding by registering a
+ * {@code CommandCodec} for their identifier, which is used when commands are
+ * written to a {@code DurableLog}. Commands without a codec are assumed to be
+ * VM-local or {@code Serializable}.
+ * <p>
+ * TODO: messages between servers still use serialization, so the codecs
+ * should also be used for other forms of communications.
+ *
+ * @see CommandCodec
  */
 public interface Command {
 
@@ -0,0 +1,57 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Interface for encoding and decoding {@code Command}s to a compact binary
+ * form. A codec handles all commands with a given identifier, and is typically
+ * registered alongside the {@code StateMachine} that applies those commands.
+ * Encoding must be deterministic for a given command, since the encoded length
+ * is asked for before the command is encoded. Commands may be decoded by
+ * several threads at once, so a codec must be thread-safe.
+ *
+ * @see net.purpleclay.raft.util.CommandCodecRegistry
+ */
+public interface CommandCodec {
+
+	/**
+	 * Returns the exact number of bytes that {@code encode} will write for
+	 * the given command.
+	 *
+	 * @param command the {@code Command} to encode
+	 *
+	 * @return the length of the encoded command in bytes
+	 */
+	int getEncodedLength(Command command);
+
+	/**
+	 * Encodes the given command into the buffer, starting at the buffer's
+	 * current position. The buffer is guaranteed to have at least as many
+	 * bytes remaining as {@code getEncodedLength} returned.
+	 *
+	 * @param command the {@code Command} to encode
+	 * @param buffer the {@code ByteBuffer} to write into
+	 */
+	void encode(Command command, ByteBuffer buffer);
+
+	/**
+	 * Decodes a command from the buffer. The buffer's remaining bytes are
+	 * exactly the bytes written by {@code encode}.
+	 *
+	 * @param buffer the {@code ByteBuffer} to read from
+	 *
+	 * @return the decoded {@code Command}
+	 *
+	 * @throws IllegalArgumentException if the bytes are not a valid command
+	 */
+	Command decode(ByteBuffer buffer);
+
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+
+/**
+ * Callback interface for a {@code Log} that makes entries durable some time
+ * after they were appended, so that whoever is waiting to acknowledge them
+ * doesn't have to poll {@code getDurableIndex}.
+ */
+public interface DurabilityListener {
+
+	/**
+	 * Notifies the listener that the log's durable index has moved forward.
+	 * This is called on the thread that made the entries durable, so it
+	 * should hand off any real work and return quickly.
+	 *
+	 * @param durableIndex the new durable index
+	 */
+	void entriesDurable(long durableIndex);
+
+}
@@ -15,8 +15,11 @@ package net.purpleclay.raft;
  * local, appended state in addition to the known, applied (committed) set
  * of commands.
  * <p>
- * TODO: this interface does not yet cover compaction, which needs to be
- * coordinated with the state machines.
+ * A log may be compacted by taking a snapshot of its state machine at the
+ * commit index and then discarding all entries up to that index. The term of
+ * the last entry covered by the snapshot is still available through
+ * {@code getTerm}, but no earlier entries are. Compaction needs the state
+ * machine to be a {@code SnapshotStateMachine}.
  */
 public interface Log {
 
@@ -41,6 +44,27 @@ public interface Log {
 	 */
 	long getLastTerm();
 
+	/**
+	 * Returns the index of the most recent entry that is known to be durable,
+	 * which is the latest entry that may safely be acknowledged to others.
+	 * This is never greater than {@code getLastIndex}, and is equal to it for
+	 * a log that syncs every append.
+	 *
+	 * @return the latest durable entry's index
+	 */
+	long getDurableIndex();
+
+	/**
+	 * Sets the listener that is notified when entries become durable after
+	 * the append that wrote them has returned, replacing any earlier one. A
+	 * log that makes every append durable before it returns never calls the
+	 * listener.
+	 *
+	 * @param listener the {@code DurabilityListener} to notify, or
+	 *                 {@code null} to stop notifications
+	 */
+	void setDurabilityListener(DurabilityListener listener);
+
 	/**
 	 * Indicates whether there is an entry in the log at the given index that
 	 * was appended in the given term.
@@ -90,6 +114,18 @@ public interface Log {
 	 */
 	void append(Command command, long term);
 
+	/**
+	 * Appends the given commands, in order, to the local log in the given
+	 * term. This has the same effect as appending each command in turn, but
+	 * lets the log make the whole batch durable at once.
+	 * <p>
+	 * TODO: this should raise some exception if there's a failure
+	 *
+	 * @param commands the {@code Command}s to append to the log
+	 * @param term the term in which the commands were appended
+	 */
+	void append(Command [] commands, long term);
+
 	/**
 	 * Applies (commits) all commands up to and including the given index.
 	 * This call indicates that consensus has been reached for the given
@@ -99,17 +135,84 @@ public interface Log {
 	 */
 	void applied(long appliedIndex);
 
+	/**
+	 * Returns the index of the last entry covered by the latest snapshot. If
+	 * the log has never been compacted then this is 0.
+	 *
+	 * @return the index of the latest snapshot
+	 */
+	long getSnapshotIndex();
+
+	/**
+	 * Takes a snapshot of the state machine at the current commit index and
+	 * then discards the entries covered by the snapshot. An implementation
+	 * may keep some of the covered entries, for instance to avoid splitting
+	 * files on-disk.
+	 *
+	 * @return the index of the new snapshot
+	 *
+	 * @throws UnsupportedOperationException if the log or its state machine
+	 *                                       doesn't support snapshots
+	 */
+	long compact();
+
+	/**
+	 * Returns the encoded content of the latest snapshot, which can be sent
+	 * to a server that needs entries that are no longer in the log.
+	 *
+	 * @return the snapshot content or {@code null} if there is no snapshot
+	 */
+	byte [] getSnapshot();
+
+	/**
+	 * Replaces the state machine's state with the given snapshot, which was
+	 * taken by another server at the given index and term. If this log has
+	 * an entry at that index from that term then the following entries are
+	 * kept, otherwise the log is emptied. In either case the commit index
+	 * moves up to the snapshot index.
+	 *
+	 * @param index the index of the last entry covered by the snapshot
+	 * @param term the term of the last entry covered by the snapshot
+	 * @param snapshot the snapshot content
+	 *
+	 * @throws UnsupportedOperationException if the log or its state machine
+	 *                                       doesn't support snapshots
+	 */
+	void installSnapshot(long index, long term, byte [] snapshot);
+
 	/**
 	 * Returns the entries from the given index (inclusive) to the latest.
-	 * <p>
-	 * TODO: this was originall just here for testing, but something like this
-	 * is needed for when a server has to catch-up on missed entries. Is there
-	 * a cleaner way to express this that doesn't require creating arrays?
+	 * This copies every command into a new array, so {@code getCursor} should
+	 * be used where the range may be large.
 	 *
 	 * @param startingIndex the starting index (inclusive) for the array
 	 *
 	 * @return an array of entries from the starting index to the most recent
+	 *
+	 * @throws IllegalArgumentException if the starting index has been
+	 *                                  discarded by compaction
 	 */
 	Command [] getEntries(long startingIndex);
 
+	/**
+	 * Returns a cursor over the entries from the given index (inclusive). The
+	 * cursor stops at the latest entry, after the given number of entries or
+	 * before the entry that would take the total size of the entries read past
+	 * the given number of bytes, whichever comes first. The size of an entry
+	 * is how much space it takes in the log, which is only an estimate for
+	 * logs that don't encode their entries. The cursor always includes the
+	 * first entry, if there is one, so that some progress can be made.
+	 *
+	 * @param startingIndex the starting index (inclusive) for the cursor
+	 * @param maxEntries the maximum number of entries to read
+	 * @param maxBytes the maximum total size of the entries to read
+	 *
+	 * @return a {@code LogCursor} positioned before the starting index
+	 *
+	 * @throws IllegalArgumentException if the starting index is less than 1
+	 *                                  or has been discarded by compaction,
+	 *                                  or if either maximum is less than 1
+	 */
+	LogCursor getCursor(long startingIndex, int maxEntries, long maxBytes);
+
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+
+/**
+ * A forward-only view of a bounded range of entries in a {@code Log}. A new
+ * cursor is positioned before its first entry, so {@code next} must be called
+ * before reading each entry. Commands are only decoded when they are asked
+ * for, so a cursor can be used to page through a log without holding all of
+ * the commands at once.
+ * <p>
+ * A cursor is not safe for use by multiple threads, and is not expected to
+ * stay valid if the log is truncated by {@code validateEntry} while the
+ * cursor is in use.
+ *
+ * @see Log#getCursor(long, int, long)
+ */
+public interface LogCursor {
+
+	/**
+	 * Moves to the next entry, if there is one within the cursor's bounds.
+	 *
+	 * @return {@code true} if the cursor moved to another entry or
+	 *         {@code false} if the range has been completely read
+	 */
+	boolean next();
+
+	/**
+	 * Returns the index of the current entry.
+	 *
+	 * @return the current entry's index
+	 *
+	 * @throws IllegalStateException if the cursor isn't on an entry
+	 */
+	long getIndex();
+
+	/**
+	 * Returns the term in which the current entry was appended.
+	 *
+	 * @return the current entry's term
+	 *
+	 * @throws IllegalStateException if the cursor isn't on an entry
+	 */
+	long getTerm();
+
+	/**
+	 * Returns the command for the current entry.
+	 *
+	 * @return the current entry's {@code Command}
+	 *
+	 * @throws IllegalStateException if the cursor isn't on an entry
+	 */
+	Command getCommand();
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A contiguous range of entries in the encoded form that a {@code RecordLog}
+ * stores them in. Records let entries move from one log to another, such as
+ * when a follower is caught up, without decoding or re-encoding any command.
+ * The encoding belongs to the log that produced the records, so they can only
+ * be appended to a log of the same kind.
+ * <p>
+ * Records taken from a log are a view on the log itself, and are not expected
+ * to stay valid if the log is truncated or compacted past them.
+ *
+ * @see RecordLog
+ */
+public interface LogRecords {
+
+	/**
+	 * Returns the index of the first entry in the records.
+	 *
+	 * @return the first entry's index
+	 */
+	long getFirstIndex();
+
+	/**
+	 * Returns the number of entries in the records, which may be 0.
+	 *
+	 * @return the number of entries
+	 */
+	int getEntryCount();
+
+	/**
+	 * Returns the total length of the encoded records in bytes.
+	 *
+	 * @return the length of the records
+	 */
+	long getLength();
+
+	/**
+	 * Writes all of the encoded records to the given channel. Where the
+	 * records are in a file this is a direct transfer from the file, so the
+	 * data is never copied through the heap.
+	 *
+	 * @param target the {@code WritableByteChannel} to write to
+	 *
+	 * @throws IOException if the records cannot be read or written
+	 */
+	void transferTo(WritableByteChannel target) throws IOException;
+
+	/**
+	 * Writes as much of the encoded records from the given offset as the
+	 * channel will take in one write, in the same way as
+	 * {@code transferTo(WritableByteChannel)}. This lets the records be sent
+	 * on a non-blocking channel, which may take none of them.
+	 *
+	 * @param offset the offset into the records to start writing from
+	 * @param target the {@code WritableByteChannel} to write to
+	 *
+	 * @return the number of bytes written, which may be 0
+	 *
+	 * @throws IOException if the records cannot be read or written
+	 */
+	long transferTo(long offset, WritableByteChannel target) throws IOException;
+
+	/**
+	 * Returns a buffer with all of the encoded records between its position
+	 * and limit. The caller has exclusive use of the buffer's position and
+	 * limit, but must not modify its content.
+	 *
+	 * @return a {@code ByteBuffer} with the records
+	 *
+	 * @throws IOException if the records cannot be read
+	 */
+	ByteBuffer getBuffer() throws IOException;
+
+}
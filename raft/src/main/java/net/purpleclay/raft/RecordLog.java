@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+
+/**
+ * A {@code Log} that can hand out its entries in their encoded form, and take
+ * entries in that form from another log of the same kind. This lets a leader
+ * send a follower that has fallen behind the raw records from its own storage
+ * and lets the follower store them as-is, so neither side has to decode the
+ * commands.
+ */
+public interface RecordLog extends Log {
+
+	/**
+	 * Returns the encoded records for the entries from the given index
+	 * (inclusive). The range is bounded in the same way as the range of a
+	 * cursor from {@code getCursor}, and may also stop early where that is
+	 * convenient for the log, but always includes the first entry if there
+	 * is one. A starting index past the latest entry gives empty records.
+	 *
+	 * @param startingIndex the index of the first entry
+	 * @param maxEntries the maximum number of entries to include
+	 * @param maxBytes the maximum total size of the records
+	 *
+	 * @return the {@code LogRecords} for the range
+	 *
+	 * @throws IllegalArgumentException if the starting index is less than 1
+	 *                                  or has been discarded by compaction,
+	 *                                  or if either maximum is less than 1
+	 */
+	LogRecords getRecords(long startingIndex, int maxEntries, long maxBytes);
+
+	/**
+	 * Appends the entries in the given records, which must start at or
+	 * before the entry following the latest entry. Entries that are already
+	 * in the log in the same term are skipped, and an entry that is in the
+	 * log in a different term is replaced, along with all of the entries
+	 * after it, as though checked by {@code validateEntry}. The terms of the
+	 * entries come from the records.
+	 * <p>
+	 * Entries after the records are kept when nothing in the records
+	 * conflicts, so the log may still hold entries past the records that
+	 * don't match the log the records came from. Only the entries up to the
+	 * last record are known to match.
+	 *
+	 * @param records the {@code LogRecords} to append
+	 *
+	 * @throws IllegalArgumentException if the records can't be read, are not
+	 *                                  valid or leave a gap in the log
+	 */
+	void appendRecords(LogRecords records);
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * A {@code Message} that carries encoded log records alongside it. The records
+ * are not part of the message's serialized form, which lets a transport send
+ * them straight from the sender's log with {@code LogRecords.transferTo}
+ * after the message, and attach the received bytes to the message once it has
+ * been read back in.
+ */
+public interface RecordMessage extends Message {
+
+	/**
+	 * Returns the records carried by this message.
+	 *
+	 * @return the {@code LogRecords} or {@code null} if this message was
+	 *         received and no records have been attached
+	 */
+	LogRecords getRecords();
+
+	/**
+	 * Attaches records that were received separately from this message.
+	 *
+	 * @param data a {@code ByteBuffer} with the encoded records between its
+	 *             position and limit
+	 */
+	void attachRecords(ByteBuffer data);
+
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+
+/**
+ * Interface for a {@code StateMachine} that can capture its complete state as
+ * a snapshot. A snapshot reflects every command applied so far, so a {@code Log}
+ * that has a snapshot at some index can discard all of the entries up to that
+ * index. Calls to write or read a snapshot are never made concurrently with
+ * calls to apply commands.
+ */
+public interface SnapshotStateMachine extends StateMachine {
+
+	/**
+	 * Writes the current state of this state machine to the given stream.
+	 * The stream should not be closed by this call.
+	 *
+	 * @param out the {@code OutputStream} to write the snapshot to
+	 *
+	 * @throws IOException if there is any problem writing the snapshot
+	 */
+	void writeSnapshot(OutputStream out) throws IOException;
+
+	/**
+	 * Replaces the current state of this state machine with the state in the
+	 * given snapshot. The stream should not be closed by this call.
+	 *
+	 * @param in the {@code InputStream} to read the snapshot from
+	 *
+	 * @throws IOException if there is any problem reading the snapshot
+	 */
+	void readSnapshot(InputStream in) throws IOException;
+
+}
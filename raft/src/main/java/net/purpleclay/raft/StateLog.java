@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft;
+
+
+/**
+ * A {@code Log} that can also keep a server's current term and vote, as
+ * records in the same stream as its entries. Writing the state into the log
+ * means that a change of term or vote and the appends that follow it can all
+ * be made durable by a single sync.
+ * <p>
+ * A state record is written by {@code appendState} but may not be durable
+ * until {@code syncState} is called, so the caller must sync before acting on
+ * the new state in a way that others can observe. A sync of the log made for
+ * an append also covers any state records written before it, in which case
+ * {@code syncState} has nothing to do.
+ */
+public interface StateLog extends Log {
+
+	/** Value returned as the term when no state has been recorded. */
+	long NO_STATE = -1L;
+
+	/**
+	 * Records the given term and vote as the latest server state.
+	 *
+	 * @param term the current term
+	 * @param votedId the identifier of the server voted for in the term, or
+	 *                -1 if there has been no vote
+	 */
+	void appendState(long term, long votedId);
+
+	/** Makes every state record written so far durable. */
+	void syncState();
+
+	/**
+	 * Returns the term in the latest state record.
+	 *
+	 * @return the latest recorded term, or {@code NO_STATE} if no state
+	 *         has ever been recorded
+	 */
+	long getStateTerm();
+
+	/**
+	 * Returns the vote in the latest state record.
+	 *
+	 * @return the latest recorded vote, which is -1 if there was no vote or
+	 *         if no state has ever been recorded
+	 */
+	long getStateVote();
+
+}
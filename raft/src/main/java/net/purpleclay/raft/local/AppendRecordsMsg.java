@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.local;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import net.purpleclay.raft.LogRecords;
+import net.purpleclay.raft.RecordMessage;
+
+
+/**
+ * Request to append entries that are sent as encoded log records, which is
+ * used in place of an {@code AppendRequestMsg} to catch up a follower from a
+ * {@code RecordLog}. The records are not serialized with the message, so a
+ * transport sends them separately and attaches them on receipt. This is
+ * answered with an {@code AppendResponseMsg}.
+ */
+class AppendRecordsMsg extends AbstractMessage implements RecordMessage {
+
+	/** Stable identifier for this message type. */
+	static final String IDENTIFIER = "AppendRecords";
+
+	/** standard serialization version identifier */
+	public static final long serialVersionUID = 1L;
+
+	// the previous log entry details
+	private final long prevLogIndex;
+	private final long prevLogTerm;
+
+	// the number of entries in the records
+	private final int entryCount;
+
+	// the commit index at the sender (which must be the leader)
+	private final long leaderCommit;
+
+	// the records themselves, which are carried separately
+	private transient LogRecords records;
+
+	/**
+	 * Creates an instance of {@code AppendRecordsMsg}.
+	 * 
+	 * @param senderId the sender's identifier
+	 * @param term the sender's current term
+	 * @param prevLogIndex the index of the previous log entry
+	 * @param prevLogTerm the term of the previous log entry
+	 * @param records the records of the entries to append
+	 * @param leaderCommit the current commit index
+	 */
+	AppendRecordsMsg(long senderId, long term, long prevLogIndex,
+					 long prevLogTerm, LogRecords records, long leaderCommit)
+	{
+		super(senderId, term, IDENTIFIER);
+
+		this.prevLogIndex = prevLogIndex;
+		this.prevLogTerm = prevLogTerm;
+		this.entryCount = records.getEntryCount();
+		this.leaderCommit = leaderCommit;
+		this.records = records;
+	}
+
+	/**
+	 * Returns the previous log index.
+	 * 
+	 * @return the previous log index
+	 */
+	long getPrevLogIndex() {
+		return prevLogIndex;
+	}
+
+	/**
+	 * Returns the previous log term.
+	 * 
+	 * @return the previous log term
+	 */
+	long getPrevLogTerm() {
+		return prevLogTerm;
+	}
+
+	/**
+	 * Returns the number of entries in this message.
+	 * 
+	 * @return the number of entries to append
+	 */
+	int getEntryCount() {
+		return entryCount;
+	}
+
+	/**
+	 * Returns the current commit index.
+	 * 
+	 * @return the current commit index
+	 */
+	long getLeaderCommit() {
+		return leaderCommit;
+	}
+
+	/* Implement RecordMessage */
+
+	@Override public LogRecords getRecords() {
+		return records;
+	}
+
+	@Override public void attachRecords(ByteBuffer data) {
+		records = new ReceivedRecords(prevLogIndex + 1, entryCount, data.slice());
+	}
+
+	@Override public String toString() {
+		return String.format("%s prevLogIndex=[%d] prevLogTerm=[%d] entries=[%d] leaderCommit=[%d]", 
+				super.toString(), getPrevLogIndex(), getPrevLogTerm(), getEntryCount(), getLeaderCommit());
+	}
+
+	/** Records that were received into a buffer. */
+	private static class ReceivedRecords implements LogRecords {
+		private final long firstIndex;
+		private final int entryCount;
+		private final ByteBuffer data;
+		ReceivedRecords(long firstIndex, int entryCount, ByteBuffer data) {
+			this.firstIndex = firstIndex;
+			this.entryCount = entryCount;
+			this.data = data;
+		}
+		@Override public long getFirstIndex() {
+			return firstIndex;
+		}
+		@Override public int getEntryCount() {
+			return entryCount;
+		}
+		@Override public long getLength() {
+			return data.remaining();
+		}
+		@Override public void transferTo(WritableByteChannel target) throws IOException {
+			ByteBuffer buffer = data.duplicate();
+			while (buffer.hasRemaining())
+				target.write(buffer);
+		}
+		@Override public long transferTo(long offset, WritableByteChannel target)
+			throws IOException
+		{
+			ByteBuffer buffer = data.duplicate();
+			buffer.position(buffer.position() + (int) offset);
+			return target.write(buffer);
+		}
+		@Override public ByteBuffer getBuffer() {
+			return data.duplicate();
+		}
+	}
+
+}
@@ -18,6 +18,8 @@ package net.purpleclay.raft.local;
  * requires keeping extra state at the leader and can result in large numbers
  * of "catch-up" messages. As suggested by the RAFT authors, this message
  * implementation includes a best-guess by the follower at the index to try.
+ * A rejection also names the previous index of the request it rejects, so a
+ * leader with several requests in flight can tell which one failed.
  */
 class AppendResponseMsg extends AbstractMessage {
 
@@ -30,12 +32,18 @@ class AppendResponseMsg extends AbstractMessage {
 	/** Indication that no index was specified. */
 	public static final long NO_INDEX = 0L;
 
+	/** Indication that no rejected request was named. */
+	public static final long NO_REQUEST = -1L;
+
 	// status of the response (success or fail)
 	private final boolean response;
 
 	// the index applied or new index request, depending on the response
 	private final long index;
 
+	// the previous index of the rejected request, if any
+	private final long rejectedIndex;
+
 	/**
 	 * Creates an instance of {@code AppendResponseMsg} for failed requests
 	 * that don't specify an explicit index to use in another attempt.
@@ -62,10 +70,31 @@ class AppendResponseMsg extends AbstractMessage {
 	 *                 or the request index to try next next otherwise
 	 */
 	AppendResponseMsg(long senderId, long term, boolean response, long index) {
+		this(senderId, term, response, index, NO_REQUEST);
+	}
+
+	/**
+	 * Creates an instance of {@code AppendResponseMsg} that rejects the
+	 * request following the given index, and gives the index to try next,
+	 * which may be {@code NO_INDEX} to start from the beginning.
+	 * 
+	 * @param senderId the sender's unique identifier
+	 * @param term the term of the request
+	 * @param index the request index to try next
+	 * @param rejectedIndex the previous index of the rejected request
+	 */
+	AppendResponseMsg(long senderId, long term, long index, long rejectedIndex) {
+		this(senderId, term, false, index, rejectedIndex);
+	}
+
+	private AppendResponseMsg(long senderId, long term, boolean response, long index,
+							  long rejectedIndex)
+	{
 		super(senderId, term, IDENTIFIER);
 
 		this.response = response;
 		this.index = index;
+		this.rejectedIndex = rejectedIndex;
 	}
 
 	/**
@@ -87,8 +116,18 @@ class AppendResponseMsg extends AbstractMessage {
 		return index;
 	}
 
+	/**
+	 * Returns the previous index of the rejected request, if the response is
+	 * {@code false} and the request was named.
+	 * 
+	 * @return the rejected request's previous index or {@code NO_REQUEST}
+	 */
+	long getRejectedIndex() {
+		return rejectedIndex;
+	}
+
 	@Override public String toString() {
-		return String.format("%s success=[%b] index=[%d]", 
-				super.toString(), getResponse(), getIndex());
+		return String.format("%s success=[%b] index=[%d] rejected=[%d]", 
+				super.toString(), getResponse(), getIndex(), getRejectedIndex());
 	}
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.local;
+
+
+/**
+ * Request to replace a follower's state with the leader's latest snapshot.
+ * This is sent in place of an {@code AppendRequestMsg} when a follower needs
+ * entries that the leader has already compacted. The snapshot is sent in a
+ * single message and is answered with an {@code AppendResponseMsg}.
+ */
+class InstallSnapshotMsg extends AbstractMessage {
+
+	/** Stable identifier for this message type. */
+	static final String IDENTIFIER = "InstallSnapshot";
+
+	/** standard serialization version identifier */
+	public static final long serialVersionUID = 1L;
+
+	// the last log entry covered by the snapshot
+	private final long lastIncludedIndex;
+	private final long lastIncludedTerm;
+
+	// the snapshot content
+	private final byte [] data;
+
+	/**
+	 * Creates an instance of {@code InstallSnapshotMsg}.
+	 * 
+	 * @param senderId the sender's identifier
+	 * @param term the sender's current term
+	 * @param lastIncludedIndex the index of the last entry in the snapshot
+	 * @param lastIncludedTerm the term of the last entry in the snapshot
+	 * @param data the snapshot content
+	 */
+	InstallSnapshotMsg(long senderId, long term, long lastIncludedIndex,
+					   long lastIncludedTerm, byte [] data)
+	{
+		super(senderId, term, IDENTIFIER);
+
+		this.lastIncludedIndex = lastIncludedIndex;
+		this.lastIncludedTerm = lastIncludedTerm;
+		this.data = data;
+	}
+
+	/**
+	 * Returns the index of the last entry covered by the snapshot.
+	 * 
+	 * @return the last included index
+	 */
+	long getLastIncludedIndex() {
+		return lastIncludedIndex;
+	}
+
+	/**
+	 * Returns the term of the last entry covered by the snapshot.
+	 * 
+	 * @return the last included term
+	 */
+	long getLastIncludedTerm() {
+		return lastIncludedTerm;
+	}
+
+	/**
+	 * Returns the snapshot content.
+	 * 
+	 * @return the snapshot data
+	 */
+	byte [] getData() {
+		return data;
+	}
+
+	@Override public String toString() {
+		return String.format("%s lastIncludedIndex=[%d] lastIncludedTerm=[%d] length=[%d]", 
+				super.toString(), getLastIncludedIndex(), getLastIncludedTerm(), data.length);
+	}
+
+}
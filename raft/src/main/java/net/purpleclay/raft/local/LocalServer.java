@@ -8,24 +8,36 @@
 package net.purpleclay.raft.local;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import net.purpleclay.raft.Command;
 import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.ConsensusHandler;
+import net.purpleclay.raft.DurabilityListener;
 import net.purpleclay.raft.Log;
+import net.purpleclay.raft.LogCursor;
+import net.purpleclay.raft.LogRecords;
 import net.purpleclay.raft.MembershipHandle;
 import net.purpleclay.raft.Message;
 import net.purpleclay.raft.InternalServer;
+import net.purpleclay.raft.RecordLog;
+import net.purpleclay.raft.StateLog;
 import net.purpleclay.raft.util.AbstractServer;
 import net.purpleclay.raft.util.MajorityConsensusHandler;
 
@@ -42,6 +54,12 @@ import net.purpleclay.raft.util.MajorityConsensusHandler;
  * methods, {@code loadInstance} and {@code createInstance} are provided to
  * instantiate a {@code LocalServer}.
  * <p>
+ * If the log is a {@code StateLog} and the {@code STATE_IN_LOG_PROPERTY}
+ * property is {@code true} then the term and vote are written to the log
+ * instead of the state file, so that a vote and the entries appended with it
+ * are synced together. The state is always synced before a message is sent
+ * to another server. By default the state file is used.
+ * <p>
  * The interval between heartbeat messages from the leader to all followers is
  * defined by the {@code HEARTBEAT_PROPERTY} property. The value is a time in
  * milliseconds and defaults to 5000ms (5 seconds). The time that a follower
@@ -50,6 +68,42 @@ import net.purpleclay.raft.util.MajorityConsensusHandler;
  * default this is twice the heartbeat timeout. The term timeout value must be
  * greater than the heartbeat value. All servers in the cluster should use
  * the same values for both properties.
+ * <p>
+ * The leader keeps a {@code Replicator} for each follower, which tracks how far
+ * that follower has got, and sends each follower the entries it's missing in
+ * pages. Up to the number of pages defined by the
+ * {@code REPLICATION_WINDOW_PROPERTY} property, by default 4, may be in flight
+ * to a follower at once, so a follower on a slow link is sent the next pages
+ * without waiting for each acknowledgement. New commands are sent the same
+ * way, so commands that arrive while the window is full go out together in
+ * the next page. When a follower rejects a page the leader backs off to the
+ * index the follower suggests, and sends one page at a time until a page is
+ * accepted. The size of each page is limited by the number of entries
+ * defined by the {@code CATCH_UP_ENTRIES_PROPERTY} property, by default 1000,
+ * and by the total encoded size defined by the {@code CATCH_UP_BYTES_PROPERTY}
+ * property, by default 1MB. If the log is a {@code RecordLog} then each page
+ * is sent as the log's encoded records, which the follower's log takes as they
+ * are, so nothing is decoded. This assumes that every server uses the same
+ * kind of log, and can be turned off by setting the
+ * {@code CATCH_UP_RECORDS_PROPERTY} property to {@code false}.
+ * <p>
+ * By default the leader appends and sends each command as soon as it arrives.
+ * If the {@code BATCH_DELAY_PROPERTY} property is set to a time in
+ * milliseconds then the leader instead holds the commands that arrive within
+ * that time of the first one, or until there are as many as the
+ * {@code BATCH_ENTRIES_PROPERTY} property defines, by default 1000, and then
+ * appends them to the log together, sends them to each follower together and
+ * counts its own append towards consensus once. Commands that are held when
+ * the server stops leading are rejected.
+ * <p>
+ * By default messages, commands and timer events are handled on the threads
+ * that deliver them, which all wait on the server's monitor, including while
+ * the handler writes to disk or sends to other servers. If the
+ * {@code EVENT_LOOP_PROPERTY} property is {@code true} then they're instead
+ * queued as events, on a lock-free queue, and handled in order by a single
+ * thread that the server owns. Delivering a message then never blocks, and
+ * since one thread handles everything the monitor is never contended. A
+ * leader handles the commands sent through it straight away on that thread.
  */
 public class LocalServer extends AbstractServer {
 
@@ -78,10 +132,92 @@ public class LocalServer extends AbstractServer {
 	/** Default heartbeat interval. */
 	public static final String DEFAULT_HEARTBEAT = "5000";
 
+	/** Property key defining the most entries sent in one catch-up message. */
+	public static final String CATCH_UP_ENTRIES_PROPERTY = "raft.catchup.entries";
+
+	/** Property key defining the most bytes sent in one catch-up message. */
+	public static final String CATCH_UP_BYTES_PROPERTY = "raft.catchup.bytes";
+
+	/** Property key defining whether catch-up sends encoded log records. */
+	public static final String CATCH_UP_RECORDS_PROPERTY = "raft.catchup.records";
+
+	/** Property key defining whether term and vote are written to the log. */
+	public static final String STATE_IN_LOG_PROPERTY = "raft.state.log";
+
+	/** Property key defining whether events are handled by a single thread. */
+	public static final String EVENT_LOOP_PROPERTY = "raft.eventloop";
+
+	/** Property key defining the most pages in flight to each follower. */
+	public static final String REPLICATION_WINDOW_PROPERTY = "raft.replication.window";
+
+	/** Property key defining how long the leader holds commands to batch. */
+	public static final String BATCH_DELAY_PROPERTY = "raft.batch.delay";
+
+	/** Property key defining the most commands the leader holds to batch. */
+	public static final String BATCH_ENTRIES_PROPERTY = "raft.batch.entries";
+
+	/** Default maximum number of entries in a catch-up message. */
+	public static final String DEFAULT_CATCH_UP_ENTRIES = "1000";
+
+	/** Default maximum number of bytes in a catch-up message. */
+	public static final String DEFAULT_CATCH_UP_BYTES = String.valueOf(1024 * 1024);
+
+	/** Default maximum number of pages in flight to each follower. */
+	public static final String DEFAULT_REPLICATION_WINDOW = "4";
+
+	/** Default time to hold commands to batch, where zero doesn't batch. */
+	public static final String DEFAULT_BATCH_DELAY = "0";
+
+	/** Default maximum number of commands in a batch. */
+	public static final String DEFAULT_BATCH_ENTRIES = DEFAULT_CATCH_UP_ENTRIES;
+
 	// the configured heartbeat & term timeout
 	private final long heartbeatPeriod;
 	private final long termTimeout;
 
+	// the configured limits for each catch-up message
+	private final int catchUpEntries;
+	private final long catchUpBytes;
+
+	// whether catch-up messages carry encoded records from the log
+	private final boolean catchUpRecords;
+
+	// the configured number of pages that may be in flight to a follower
+	private final int replicationWindow;
+
+	// the replication state for each follower, while this server is leader
+	private final Map<Long,Replicator> replicators = new HashMap<Long,Replicator>();
+
+	// while following, the term of the latest accepted append, the highest
+	// index known to match the leader's log in that term and the highest
+	// index acknowledged, so that entries which become durable later can
+	// be acknowledged without waiting for the next request
+	private long matchedTerm = 0L;
+	private long matchedIndex = 0L;
+	private long acknowledgedIndex = 0L;
+
+	// the configured time and size limits for a batch of commands
+	private final long batchDelay;
+	private final int batchEntries;
+
+	// a command request that the leader is holding to batch, along with the
+	// local listener (if any) and the term it was accepted in
+	private static class Proposal {
+		final CommandRequestMsg request;
+		final CommandResultListener listener;
+		final long term;
+		Proposal(CommandRequestMsg request, CommandResultListener listener, long term) {
+			this.request = request;
+			this.listener = listener;
+			this.term = term;
+		}
+	}
+
+	// the commands being held for the next batch, and the future event
+	// that appends them if the batch doesn't fill first
+	private final List<Proposal> proposals = new ArrayList<Proposal>();
+	private Future<?> batchFlush = null;
+
 	// state flag marking if this server has been started/shut-down
 	private volatile boolean active = false;
 
@@ -110,6 +246,17 @@ public class LocalServer extends AbstractServer {
 	// is the term timeout for deciding to announce candidacy
 	private Future<?> currentFutureEvent = null;
 
+	// a count of the future events that have been scheduled, so that one
+	// which fires after it was replaced can tell that it's stale
+	private long futureEventCount = 0L;
+
+	// the events waiting to be handled and the thread that handles them, if
+	// the event loop is used, and whether that thread is parked waiting for
+	// the next event
+	private final Queue<Runnable> events;
+	private final Thread eventThread;
+	private volatile boolean eventThreadParked = false;
+
 	// local manager for the distributed log
 	private final Log log;
 
@@ -152,7 +299,8 @@ public class LocalServer extends AbstractServer {
 	{
 		String stateDir = properties.getProperty(STATE_DIR_PROPERTY);
 		try {
-			return new LocalServer(new ServerState(stateDir, serverId),
+			return new LocalServer(new ServerState(stateDir, serverId,
+												   getStateLog(log, properties)),
 								   log, handle, properties);
 		} catch (IOException ioe) {
 			throw new IllegalArgumentException("Failed to initialize durable state", ioe);
@@ -181,11 +329,20 @@ public class LocalServer extends AbstractServer {
 	{
 		String stateDir = properties.getProperty(STATE_DIR_PROPERTY);
 		try {
-			return new LocalServer(new ServerState(stateDir), log, handle, properties);
+			return new LocalServer(new ServerState(stateDir, -1L, getStateLog(log, properties)),
+								   log, handle, properties);
 		} catch (IOException ioe) {
 			throw new IllegalArgumentException("Failed to setup durable state", ioe);
 		}
 	}
+
+	/** Returns the log to keep term and vote in, if it's configured to. */
+	private static StateLog getStateLog(Log log, Properties properties) {
+		if ((log instanceof StateLog) &&
+			Boolean.parseBoolean(properties.getProperty(STATE_IN_LOG_PROPERTY, "false")))
+			return (StateLog) log;
+		return null;
+	}
 	
 	/** Creates an instance of {@code LocalServer}. */
 	private LocalServer(ServerState state, Log log, MembershipHandle membershipHandle,
@@ -201,6 +358,10 @@ public class LocalServer extends AbstractServer {
 		// there be a log/state UID match to be sure this is correct?
 		log.applied(state.getCommitIndex());
 
+		// a snapshot may have been installed after the state was last updated
+		if (state.getCommitIndex() < log.getCommitIndex())
+			state.updateCommitIndex(log.getCommitIndex());
+
 		// TODO: this should be a plugin option
 		this.consensusHandler = new MajorityConsensusHandler(membershipHandle);
 		consensusHandler.updateTerm(state.getCurrentTerm());
@@ -213,6 +374,49 @@ public class LocalServer extends AbstractServer {
 
 		if (termTimeout < heartbeatPeriod)
 			throw new IllegalArgumentException("heartbeat must be smaller than term timeout");
+
+		this.catchUpEntries =
+			Integer.parseInt(props.getProperty(CATCH_UP_ENTRIES_PROPERTY, DEFAULT_CATCH_UP_ENTRIES));
+		this.catchUpBytes =
+			Long.parseLong(props.getProperty(CATCH_UP_BYTES_PROPERTY, DEFAULT_CATCH_UP_BYTES));
+		if ((catchUpEntries < 1) || (catchUpBytes < 1L))
+			throw new IllegalArgumentException("catch-up limits must be positive");
+		this.catchUpRecords = (log instanceof RecordLog) &&
+			Boolean.parseBoolean(props.getProperty(CATCH_UP_RECORDS_PROPERTY, "true"));
+		this.replicationWindow =
+			Integer.parseInt(props.getProperty(REPLICATION_WINDOW_PROPERTY,
+											   DEFAULT_REPLICATION_WINDOW));
+		if (replicationWindow < 1)
+			throw new IllegalArgumentException("replication window must be at least 1");
+		this.batchDelay =
+			Long.parseLong(props.getProperty(BATCH_DELAY_PROPERTY, DEFAULT_BATCH_DELAY));
+		this.batchEntries =
+			Integer.parseInt(props.getProperty(BATCH_ENTRIES_PROPERTY, DEFAULT_BATCH_ENTRIES));
+		if (batchEntries < 1)
+			throw new IllegalArgumentException("batch entries must be at least 1");
+
+		if (Boolean.parseBoolean(props.getProperty(EVENT_LOOP_PROPERTY, "false"))) {
+			this.events = new ConcurrentLinkedQueue<Runnable>();
+			this.eventThread = new Thread(new Runnable() {
+					public void run() {
+						runEventLoop();
+					}
+				}, "LocalServer " + getId() + " event loop");
+			eventThread.setDaemon(true);
+		} else {
+			this.events = null;
+			this.eventThread = null;
+		}
+
+		log.setDurabilityListener(new DurabilityListener() {
+				public void entriesDurable(long durableIndex) {
+					execute(new Runnable() {
+							public void run() {
+								handleDurableEntries();
+							}
+						});
+				}
+			});
 	}
 
 	/* Implement Server */
@@ -222,14 +426,21 @@ public class LocalServer extends AbstractServer {
 			return;
 		active = true;
 
+		if (eventThread != null)
+			eventThread.start();
+
 		// TODO: for testing it's convenient to push servers into candidacy
 		// which often causes races in corner-cases .. in production, however,
 		// should this just always start as a follower and wait to time-out?
 
-		if (membershipHandle.getMembershipCount() < 2)
-			convertToCandidate();
-		else
-			convertToFollower(UNKNOWN_LEADER);
+		execute(new Runnable() {
+				public void run() {
+					if (membershipHandle.getMembershipCount() < 2)
+						convertToCandidate();
+					else
+						convertToFollower(UNKNOWN_LEADER);
+				}
+			});
 	}
 
 	@Override public void shutdown() {
@@ -237,18 +448,52 @@ public class LocalServer extends AbstractServer {
 			return;
 		active = false;
 
-		if (currentFutureEvent != null)
-			currentFutureEvent.cancel(false);
+		// any commands held for a batch are rejected, since the flush that
+		// would have appended them is cancelled
+		synchronized (this) {
+			if (currentFutureEvent != null)
+				currentFutureEvent.cancel(false);
+			failProposals();
+		}
 		executor.shutdown();
+		log.setDurabilityListener(null);
+
+		// the event loop finishes the event it's handling before the state
+		// is closed, unless this is called from that event
+		if ((eventThread != null) && (Thread.currentThread() != eventThread)) {
+			LockSupport.unpark(eventThread);
+			try {
+				eventThread.join();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
 
 		state.shutdown();
 	}
 
-	@Override public void invoke(Message message) {
+	@Override public void invoke(final Message message) {
+		execute(new Runnable() {
+				public void run() {
+					handleMessage(message);
+				}
+			});
+	}
+
+	/** Handles a message from another server, or from this server. */
+	private void handleMessage(Message message) {
 		synchronized (this) {
 			if (message.getTerm() > state.getCurrentTerm()) {
 				updateTerm(message.getTerm());
-				convertToFollower(message.getSenderId());
+
+				// a newer term alone doesn't mean there's a leader, so a
+				// follower keeps its election timeout running, otherwise a
+				// server that was cut off and kept campaigning would stop
+				// anyone else from being elected when it came back
+				if (currentRole == Role.FOLLOWER)
+					currentLeader = null;
+				else
+					convertToFollower(UNKNOWN_LEADER);
 			}
 		}
 
@@ -259,6 +504,10 @@ public class LocalServer extends AbstractServer {
 			response = requestAppendEntries((AppendRequestMsg) message);
 		} else if (requestId.equals(AppendResponseMsg.IDENTIFIER)) {
 			respondAppendEntries((AppendResponseMsg) message);
+		} else if (requestId.equals(AppendRecordsMsg.IDENTIFIER)) {
+			response = requestAppendRecords((AppendRecordsMsg) message);
+		} else if (requestId.equals(InstallSnapshotMsg.IDENTIFIER)) {
+			response = requestInstallSnapshot((InstallSnapshotMsg) message);
 		} else if (requestId.equals(VoteRequestMsg.IDENTIFIER)) {
 			response = requestVote((VoteRequestMsg) message);
 		} else if (requestId.equals(VoteResponseMsg.IDENTIFIER)) {
@@ -271,17 +520,27 @@ public class LocalServer extends AbstractServer {
 			throw new IllegalArgumentException("Unknown message: " + requestId);
 		}
 
-		if (response != null)
+		// any term or vote behind a message must be durable before it's sent
+		if (response != null) {
+			state.sync();
 			membershipHandle.findServer(message.getSenderId()).invoke(response);
+		}
 	}
 
-	@Override public synchronized void send(Command command) {
+	@Override public void send(Command command) {
 		send(command, null);
 	}
 
-	@Override public synchronized void send(Command command,
-											CommandResultListener listener)
-	{
+	@Override public void send(final Command command, final CommandResultListener listener) {
+		execute(new Runnable() {
+				public void run() {
+					sendCommand(command, listener);
+				}
+			});
+	}
+
+	/** Sends a command to the leader, which may be this server. */
+	private synchronized void sendCommand(Command command, CommandResultListener listener) {
 		// if we're inactive, or no leader is known, then reject the request
 		if ((! active) || (currentLeader == null)) {
 			if (listener != null)
@@ -289,32 +548,37 @@ public class LocalServer extends AbstractServer {
 			return;
 		}
 
-		// if we're the leader then we can just track the listener and do the
-		// invocation directly .. otherwise, send the message off to the server
-		// that we believe to be the leader and wait to hear more
+		// if we're the leader then we can just hand over the listener and do
+		// the invocation directly, and the listener is registered once the
+		// command's index is known .. otherwise, send the message off to the
+		// server that we believe to be the leader and wait to hear more
+		//
+		// the leader mustn't go through invoke(), which runs the request on
+		// this thread in the default mode but queues it behind other events
+		// with the event loop, where leadership could change before it runs
+		// and the listener would never hear back
 
-		Message request = null;
 		long currentTerm = state.getCurrentTerm();
 
 		if (currentLeader == this) {
 			assert currentRole == Role.LEADER : "leadership mis-match";
 
-			if (listener != null)
-				localListeners.put(log.getLastIndex() + 1, listener);
+			requestCommand(new CommandRequestMsg(getId(), currentTerm, command), listener);
+			return;
+		}
 
-			request = new CommandRequestMsg(getId(), currentTerm, command);
+		assert currentRole == Role.FOLLOWER : "must be following a server";
+
+		Message request = null;
+		if (listener != null) {
+			long id = requestGenerator.getAndIncrement();
+			remoteWaiters.put(id, listener);
+			request = new CommandRequestMsg(getId(), currentTerm, command, id);
 		} else {
-			assert currentRole == Role.FOLLOWER : "must be following a server";
-
-			if (listener != null) {
-				long id = requestGenerator.getAndIncrement();
-				remoteWaiters.put(id, listener);
-				request = new CommandRequestMsg(getId(), currentTerm, command, id);
-			} else {
-				request = new CommandRequestMsg(getId(), currentTerm, command);
-			}
+			request = new CommandRequestMsg(getId(), currentTerm, command);
 		}
 
+		state.sync();
 		currentLeader.invoke(request);
 	}
 	
@@ -332,30 +596,17 @@ public class LocalServer extends AbstractServer {
 		if (msg.getTerm() < state.getCurrentTerm())
 			return new AppendResponseMsg(getId(), msg.getTerm());
 
-		// if the previous entry isn't in our log then we're either behind
-		// or we've diverged, so figure out where to try re-syncing
+		// the message is from the current leader, so the election timeout
+		// starts again even if the log doesn't match yet, otherwise a server
+		// that's being caught up would keep disrupting the cluster
 
-		if (! log.hasEntry(msg.getPrevLogIndex(), msg.getPrevLogTerm())) {
-			long resyncIndex = AppendResponseMsg.NO_INDEX;
-
-			// if we just don't have enough entries then maybe the log is just
-			// lagging, so re-set to the last appended point
-			if (log.getLastIndex() < msg.getPrevLogIndex())
-				resyncIndex = log.getLastIndex();
-			
-			// we diverged, so try going back to the last stable index applied
-			// which should always be safe in a correct system
-			if (state.getCommitIndex() < msg.getPrevLogIndex())
-				resyncIndex = state.getCommitIndex();
+		convertToFollower(msg.getSenderId());
 
-			// TODO: if the commit index is at or past the request index, but
-			// still doesn't match, then this server's log has diverged into
-			// an illegal state .. should we shut down at this point?
+		// if the previous entry isn't in our log then we're either behind
+		// or we've diverged, so figure out where to try re-syncing
 
-			return new AppendResponseMsg(getId(), msg.getTerm(), false, resyncIndex);
-		}
-
-		convertToFollower(msg.getSenderId());
+		if (! log.hasEntry(msg.getPrevLogIndex(), msg.getPrevLogTerm()))
+			return resyncResponse(msg.getTerm(), msg.getPrevLogIndex());
 
 		// TODO: if this invalidates entries in the log then what happens to
 		// registered command listeners? I think we need to purge them and
@@ -363,22 +614,144 @@ public class LocalServer extends AbstractServer {
 		log.validateEntry(msg.getPrevLogIndex() + 1, msg.getTerm());
 
 		// in the case where a server fell behind it may get multiple catch-up
-		// messages that represent the same state, so guard against that here
-		// TODO: should this just wind to the last applied first and the start
-		// appending from there instead?
+		// messages that represent the same state, so skip over any entries
+		// that are already in the log and append the rest together
+
+		Command [] received = msg.getEntries();
+		int skipped = 0;
+		while ((skipped < received.length) &&
+			   log.hasEntry(msg.getPrevLogIndex() + 1 + skipped, msg.getTerm()))
+			skipped++;
+
+		if (skipped < received.length) {
+			log.validateEntry(msg.getPrevLogIndex() + 1 + skipped, msg.getTerm());
+			log.append(skipped == 0 ? received :
+					   Arrays.copyOfRange(received, skipped, received.length),
+					   msg.getTerm());
+		}
+
+		applyIndex(msg.getLeaderCommit());
+
+		// only acknowledge as much as is durable, since the leader may count
+		// this towards a commit, and nothing past the entries in this message,
+		// since anything after them hasn't been matched against the leader
+
+		return acceptResponse(msg.getTerm(), msg.getPrevLogIndex() + received.length);
+	}
 
-		int i = (int) msg.getPrevLogIndex() + 1;
-		for (Command entry : msg.getEntries()) {
-			if (! log.hasEntry(i++, msg.getTerm()))
-				log.append(entry, msg.getTerm());
+	/** Handles an append request that carries encoded log records. */
+	synchronized AppendResponseMsg requestAppendRecords(AppendRecordsMsg msg) {
+		if (msg.getTerm() < state.getCurrentTerm())
+			return new AppendResponseMsg(getId(), msg.getTerm());
+
+		convertToFollower(msg.getSenderId());
+
+		if (! log.hasEntry(msg.getPrevLogIndex(), msg.getPrevLogTerm()))
+			return resyncResponse(msg.getTerm(), msg.getPrevLogIndex());
+
+		if ((! (log instanceof RecordLog)) || (msg.getRecords() == null)) {
+			System.out.println("WARNING: cannot append log records at " + getId());
+			return new AppendResponseMsg(getId(), msg.getTerm(), false,
+										 AppendResponseMsg.NO_INDEX);
+		}
+
+		// the log skips any entries that it already has, and re-winds past
+		// any that conflict, so the records can be handed over as they are
+		try {
+			((RecordLog) log).appendRecords(msg.getRecords());
+		} catch (IllegalArgumentException iae) {
+			// the records may have been damaged on the way, so ask for the
+			// same page again
+			System.out.println("WARNING: rejected log records: " + iae.getMessage());
+			return new AppendResponseMsg(getId(), msg.getTerm(),
+										 Math.min(log.getLastIndex(), msg.getPrevLogIndex()),
+										 msg.getPrevLogIndex());
 		}
 
 		applyIndex(msg.getLeaderCommit());
 
-		assert log.getLastIndex() == msg.getPrevLogIndex() + msg.getEntries().length :
-		"log length mis-match at " + getId() + "; local index is " + log.getLastIndex();
+		// as with entries, the log may hold a suffix past the records that
+		// hasn't been matched yet, so that isn't acknowledged
 
-		return new AppendResponseMsg(getId(), msg.getTerm(), true, log.getLastIndex());
+		return acceptResponse(msg.getTerm(),
+							  msg.getPrevLogIndex() + msg.getRecords().getEntryCount());
+	}
+
+	/**
+	 * Creates the response to an append request that was accepted, where the
+	 * entries up to the given index are known to match the leader's log. As
+	 * much of that as is durable is acknowledged, and the rest is remembered
+	 * to acknowledge once it becomes durable.
+	 */
+	private AppendResponseMsg acceptResponse(long term, long index) {
+		if (term != matchedTerm) {
+			matchedTerm = term;
+			matchedIndex = index;
+			acknowledgedIndex = 0L;
+		} else {
+			matchedIndex = Math.max(matchedIndex, index);
+		}
+
+		long durableIndex = Math.min(log.getDurableIndex(), index);
+		acknowledgedIndex = Math.max(acknowledgedIndex, durableIndex);
+		return new AppendResponseMsg(getId(), term, true, durableIndex);
+	}
+
+	/**
+	 * Handles entries that the log made durable in the background. A
+	 * follower acknowledges any matched entries that this covers straight
+	 * away, and a leader counts its own, so that neither waits for the next
+	 * heartbeat before the entries can be committed.
+	 */
+	private synchronized void handleDurableEntries() {
+		if (! active)
+			return;
+
+		if (currentRole == Role.LEADER) {
+			appendedLocally();
+			return;
+		}
+
+		if ((currentRole != Role.FOLLOWER) || (currentLeader == null) ||
+			(matchedTerm != state.getCurrentTerm()))
+			return;
+
+		long durableIndex = Math.min(log.getDurableIndex(), matchedIndex);
+		if (durableIndex <= acknowledgedIndex)
+			return;
+
+		acknowledgedIndex = durableIndex;
+		state.sync();
+		currentLeader.invoke(new AppendResponseMsg(getId(), matchedTerm, true, durableIndex));
+	}
+
+	/**
+	 * Creates the response to an append request whose previous entry isn't
+	 * in the log, which means that this server is either behind or has
+	 * diverged, so this figures out where to try re-syncing.
+	 */
+	private AppendResponseMsg resyncResponse(long term, long prevLogIndex) {
+		long resyncIndex = AppendResponseMsg.NO_INDEX;
+
+		// if we just don't have enough entries then maybe the log is just
+		// lagging, so re-set to the last appended point
+		if (log.getLastIndex() < prevLogIndex)
+			resyncIndex = log.getLastIndex();
+
+		// we diverged, so try going back to the last stable index applied
+		// which should always be safe in a correct system
+		if (state.getCommitIndex() < prevLogIndex)
+			resyncIndex = state.getCommitIndex();
+
+		// TODO: if the commit index is at or past the request index, but
+		// still doesn't match, then this server's log has diverged into
+		// an illegal state .. should we shut down at this point?
+
+		if ((log.getLastIndex() >= prevLogIndex) && (state.getCommitIndex() >= prevLogIndex))
+			return new AppendResponseMsg(getId(), term);
+
+		// an index of zero is a request to start from the beginning
+		return new AppendResponseMsg(getId(), term, resyncIndex, prevLogIndex);
 	}
 
 	/** Handles an append response. */
@@ -389,6 +762,10 @@ public class LocalServer extends AbstractServer {
 			return;
 
 		if (msg.getResponse()) {
+			// the leader's own entries may have become durable since it last
+			// checked, and that counts just like a response
+			appendedLocally();
+
 			long appliedIndex =
 				consensusHandler.appended(msg.getSenderId(), msg.getIndex(),
 										  log.getCommitIndex());
@@ -400,19 +777,123 @@ public class LocalServer extends AbstractServer {
 				// the cluster about the commit
 				sendHeartbeat();
 			}
+
+			// the acknowledgement opens the window for the next pages
+			Replicator replicator = getReplicator(msg.getSenderId());
+			replicator.acknowledged(msg.getIndex());
+			replicate(msg.getSenderId(), replicator);
 		} else {
-			// a follower is out of step, so roll-back to the point they
-			// indicated (unless they indicated that there's no need to sync)
-			long index = msg.getIndex();
-			if (index == AppendResponseMsg.NO_INDEX)
+			// a follower is out of step, so back off to the point they
+			// indicated (unless they indicated that there's no need to sync,
+			// or the rejection is for a page that's no longer expected)
+			Replicator replicator = getReplicator(msg.getSenderId());
+			if (replicator.rejected(msg.getRejectedIndex(), msg.getIndex()))
+				replicate(msg.getSenderId(), replicator);
+		}
+	}
+
+	/** Returns the replication state for a follower, creating it if needed. */
+	private Replicator getReplicator(long followerId) {
+		Replicator replicator = replicators.get(followerId);
+		if (replicator == null) {
+			replicator = new Replicator(replicationWindow, log.getLastIndex());
+			replicators.put(followerId, replicator);
+		}
+		return replicator;
+	}
+
+	/** Sends each follower whatever its window allows. */
+	private void replicateAll() {
+		for (InternalServer server : membershipHandle.getServers()) {
+			if (server.getId() != getId())
+				replicate(server.getId(), getReplicator(server.getId()));
+		}
+	}
+
+	/**
+	 * Sends a follower pages of the entries it hasn't been sent yet, until
+	 * its window is full. If the entries they need were compacted then the
+	 * snapshot is sent instead, once nothing else is in flight, and the
+	 * entries after it follow once it's installed.
+	 */
+	private void replicate(long followerId, Replicator replicator) {
+		while (replicator.canSend() && (replicator.getNextIndex() <= log.getLastIndex())) {
+			long index = replicator.getNextIndex() - 1;
+			if (index < log.getSnapshotIndex()) {
+				if (replicator.isInFlight())
+					return;
+				long snapshotIndex = log.getSnapshotIndex();
+				replicator.sentSnapshot(snapshotIndex);
+				send(followerId,
+					 new InstallSnapshotMsg(getId(), state.getCurrentTerm(), snapshotIndex,
+											log.getTerm(snapshotIndex), log.getSnapshot()));
 				return;
+			}
+
+			int pageSize = sendPage(followerId, index);
+			if (pageSize == 0)
+				return;
+			replicator.sent(index, index + pageSize);
+		}
+	}
 
-			Message resync =
+	/**
+	 * Sends a follower the page of entries after the given index, returning
+	 * the number of entries in the page.
+	 */
+	private int sendPage(long followerId, long index) {
+		Message page = null;
+		int pageSize = 0;
+		if (catchUpRecords) {
+			LogRecords records =
+				((RecordLog) log).getRecords(index + 1, catchUpEntries, catchUpBytes);
+			pageSize = records.getEntryCount();
+			page =
+				new AppendRecordsMsg(getId(), state.getCurrentTerm(), index,
+									 log.getTerm(index), records, log.getCommitIndex());
+		} else {
+			List<Command> entries = new ArrayList<Command>();
+			LogCursor cursor = log.getCursor(index + 1, catchUpEntries, catchUpBytes);
+			while (cursor.next())
+				entries.add(cursor.getCommand());
+			pageSize = entries.size();
+			page =
 				new AppendRequestMsg(getId(), state.getCurrentTerm(), index,
-									 log.getTerm(index), log.getEntries(index + 1),
+									 log.getTerm(index), entries.toArray(new Command[pageSize]),
 									 log.getCommitIndex());
-			membershipHandle.findServer(msg.getSenderId()).invoke(resync);
 		}
+
+		if (pageSize > 0)
+			send(followerId, page);
+		return pageSize;
+	}
+
+	/** Sends a message to one follower, once the state is durable. */
+	private void send(long followerId, Message message) {
+		InternalServer follower = membershipHandle.findServer(followerId);
+		if (follower == null)
+			return;
+
+		state.sync();
+		follower.invoke(message);
+	}
+
+	/** Handles a snapshot install request. */
+	synchronized AppendResponseMsg requestInstallSnapshot(InstallSnapshotMsg msg) {
+		if (msg.getTerm() < state.getCurrentTerm())
+			return new AppendResponseMsg(getId(), msg.getTerm());
+
+		convertToFollower(msg.getSenderId());
+
+		// the snapshot only covers committed entries, so once it's installed
+		// the commit index is at least the snapshot's index
+		log.installSnapshot(msg.getLastIncludedIndex(), msg.getLastIncludedTerm(),
+							msg.getData());
+		if (state.getCommitIndex() < log.getCommitIndex())
+			state.updateCommitIndex(log.getCommitIndex());
+
+		return new AppendResponseMsg(getId(), msg.getTerm(), true,
+									 msg.getLastIncludedIndex());
 	}
 
 	/** Handles a vote request. */
@@ -458,6 +939,16 @@ public class LocalServer extends AbstractServer {
 
 	/** Handle a command append request. */
 	synchronized CommandResponseMsg requestCommand(CommandRequestMsg msg) {
+		return requestCommand(msg, null);
+	}
+
+	/**
+	 * Handles a command append request, which is either from another server
+	 * or from this one with a local listener.
+	 */
+	private synchronized CommandResponseMsg requestCommand(CommandRequestMsg msg,
+														   CommandResultListener listener)
+	{
 		long currentTerm = state.getCurrentTerm();
 
 		// only leaders can append commands to the log
@@ -465,32 +956,119 @@ public class LocalServer extends AbstractServer {
 			return msg.isResponseRequested() ?
 				new CommandResponseMsg(getId(), currentTerm, msg.getRequestId()) : null;
 
-		// get the current last entry, then append the command
+		// if batching, hold the command until the batch is full or its time
+		// is up, and respond once it's appended
+		if (batchDelay > 0L) {
+			proposals.add(new Proposal(msg, listener, currentTerm));
+			if (proposals.size() >= batchEntries)
+				flushProposals();
+			else if (proposals.size() == 1)
+				scheduleFlush();
+			return null;
+		}
+
+		// append the command, then send it to each follower whose window
+		// has room .. the others get it in their next page
 		long prevIndex = log.getLastIndex();
-		long prevTerm = log.getLastTerm();
+		if (listener != null)
+			localListeners.put(prevIndex + 1, listener);
 		log.append(msg.getCommand(), currentTerm);
-
-		// send the append command to all other servers
-		// TODO: this could skip any sub-set that is behind and trying to catch
-		// up but in practice that logic seems more fragile than simple broadcast
-		Command [] entries = { msg.getCommand() };
-		Message request =
-			new AppendRequestMsg(getId(), currentTerm, prevIndex, prevTerm,
-								 entries, log.getCommitIndex());
-		membershipHandle.invokeAll(request);
+		replicateAll();
 
 		// note that there's already one server (the leader) that has appended
-		// the command to the log
-		long appliedIndex =
-			consensusHandler.appended(getId(), prevIndex + 1, log.getCommitIndex());
-		if (appliedIndex != 0L)
-			applyIndex(appliedIndex);
+		// the command to the log, once it's durable
+		appendedLocally();
 
 		// finally, create a response if requested
 		return msg.isResponseRequested() ?
 			new CommandResponseMsg(getId(), currentTerm, msg.getRequestId(), prevIndex + 1) : null;
 	}
 
+	/**
+	 * Appends the held commands to the log in one batch, sends them to the
+	 * followers and counts the leader's own append, once for the batch, and
+	 * then responds to each request that asked.
+	 */
+	private synchronized void flushProposals() {
+		if (batchFlush != null) {
+			batchFlush.cancel(false);
+			batchFlush = null;
+		}
+		if (proposals.isEmpty())
+			return;
+
+		// the server was shut down while the commands were held, so they
+		// are rejected rather than dropped, otherwise whoever sent them
+		// would never hear back
+		if (! active) {
+			failProposals();
+			return;
+		}
+
+		assert currentRole == Role.LEADER : "held commands without leadership";
+
+		long currentTerm = state.getCurrentTerm();
+		long prevIndex = log.getLastIndex();
+		Command [] commands = new Command[proposals.size()];
+		for (int i = 0; i < commands.length; i++) {
+			Proposal proposal = proposals.get(i);
+			commands[i] = proposal.request.getCommand();
+			if (proposal.listener != null)
+				localListeners.put(prevIndex + 1 + i, proposal.listener);
+		}
+
+		List<Proposal> batch = new ArrayList<Proposal>(proposals);
+		proposals.clear();
+
+		log.append(commands, currentTerm);
+		replicateAll();
+		appendedLocally();
+
+		state.sync();
+		for (int i = 0; i < batch.size(); i++) {
+			CommandRequestMsg request = batch.get(i).request;
+			if (request.isResponseRequested())
+				respond(request.getSenderId(),
+						new CommandResponseMsg(getId(), currentTerm, request.getRequestId(),
+											   prevIndex + 1 + i));
+		}
+	}
+
+	/**
+	 * Rejects any held commands, since this server has stopped leading or
+	 * has been shut down. Each rejection is sent in the term the command was
+	 * accepted in, so that it doesn't look like a message from a leader of a
+	 * newer term.
+	 */
+	private synchronized void failProposals() {
+		if (batchFlush != null) {
+			batchFlush.cancel(false);
+			batchFlush = null;
+		}
+		if (proposals.isEmpty())
+			return;
+
+		List<Proposal> failed = new ArrayList<Proposal>(proposals);
+		proposals.clear();
+
+		state.sync();
+		for (Proposal proposal : failed) {
+			if (proposal.listener != null)
+				proposal.listener.commandFailed();
+			if (proposal.request.isResponseRequested())
+				respond(proposal.request.getSenderId(),
+						new CommandResponseMsg(getId(), proposal.term,
+											   proposal.request.getRequestId()));
+		}
+	}
+
+	/** Sends a command response, if the requesting server is still known. */
+	private void respond(long serverId, CommandResponseMsg response) {
+		InternalServer server = membershipHandle.findServer(serverId);
+		if (server != null)
+			server.invoke(response);
+	}
+
 	/** Handle a command append response. */
 	synchronized void respondCommand(CommandResponseMsg msg) {
 		// we should only get a response if there was a listener asking for it
@@ -534,6 +1112,7 @@ public class LocalServer extends AbstractServer {
 	}
 
 	private synchronized void convertToFollower(long leaderId) {
+		failProposals();
 		currentRole = Role.FOLLOWER;
 		currentLeader = (leaderId == UNKNOWN_LEADER) ?
 			null : membershipHandle.findServer(leaderId);
@@ -541,6 +1120,7 @@ public class LocalServer extends AbstractServer {
 	}
 
 	private synchronized void convertToCandidate() {
+		failProposals();
 		currentRole = Role.CANDIDATE;
 
 		long newTerm = state.getCurrentTerm() + 1;
@@ -559,6 +1139,7 @@ public class LocalServer extends AbstractServer {
 			// schedule a random timeout for 100-300 ms from now
 			startElectionTimeout(timeoutGenerator.nextInt(200) + 100L);
 
+			state.sync();
 			membershipHandle.invokeAll(new VoteRequestMsg(getId(), newTerm, log.getLastIndex(), log.getLastTerm()));
 		}
 	}
@@ -567,6 +1148,15 @@ public class LocalServer extends AbstractServer {
 		currentRole = Role.LEADER;
 		currentLeader = this;
 
+		// nothing is known about the followers yet, so each one is probed
+		// from the end of the log
+		replicators.clear();
+		for (InternalServer server : membershipHandle.getServers()) {
+			if (server.getId() != getId())
+				replicators.put(server.getId(),
+								new Replicator(replicationWindow, log.getLastIndex()));
+		}
+
 		consensusHandler.updateTerm(state.getCurrentTerm());
 
 		startHeartbeat();
@@ -591,10 +1181,16 @@ public class LocalServer extends AbstractServer {
 		if (currentFutureEvent != null)
 			currentFutureEvent.cancel(false);
 
+		final long eventCount = ++futureEventCount;
 		try {
 			currentFutureEvent = executor.schedule(new Runnable() {
 					public void run() {
-						convertToCandidate();
+						execute(new Runnable() {
+								public void run() {
+									if (isCurrentFutureEvent(eventCount))
+										convertToCandidate();
+								}
+							});
 					}
 				}, timeout, TimeUnit.MILLISECONDS);
 		} catch (RejectedExecutionException ree) {
@@ -606,10 +1202,16 @@ public class LocalServer extends AbstractServer {
 		if (currentFutureEvent != null)
 			currentFutureEvent.cancel(false);
 
+		final long eventCount = ++futureEventCount;
 		try {
 			currentFutureEvent = executor.scheduleAtFixedRate(new Runnable() {
 					public void run() {
-						sendHeartbeat();
+						execute(new Runnable() {
+								public void run() {
+									if (isCurrentFutureEvent(eventCount))
+										sendHeartbeat();
+								}
+							});
 					}
 				}, 0L, heartbeatPeriod, TimeUnit.MILLISECONDS);
 		} catch (RejectedExecutionException ree) {
@@ -617,6 +1219,90 @@ public class LocalServer extends AbstractServer {
 		}
 	}
 
+	private synchronized void scheduleFlush() {
+		try {
+			batchFlush = executor.schedule(new Runnable() {
+					public void run() {
+						execute(new Runnable() {
+								public void run() {
+									flushProposals();
+								}
+							});
+					}
+				}, batchDelay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ree) {
+			assert executor.isShutdown() : "unexpected scheduling failure";
+			failProposals();
+		}
+	}
+
+	/**
+	 * Returns whether the given future event is still the current one. An
+	 * event that fired just as it was replaced, or that was queued behind
+	 * the event that replaced it, is ignored.
+	 */
+	private synchronized boolean isCurrentFutureEvent(long eventCount) {
+		return eventCount == futureEventCount;
+	}
+
+	/* Event Loop */
+
+	/**
+	 * Runs an event, either on the event loop if it's used or otherwise on
+	 * the calling thread.
+	 */
+	private void execute(Runnable event) {
+		if (events == null) {
+			event.run();
+			return;
+		}
+
+		events.offer(event);
+		if (eventThreadParked)
+			LockSupport.unpark(eventThread);
+	}
+
+	/**
+	 * Handles queued events in order until the server is shut down. The
+	 * thread parks when the queue is empty, after saying so, and a producer
+	 * that sees the flag wakes it. The queue is checked again after the flag
+	 * is set, so an event that's queued as the thread parks isn't missed.
+	 */
+	private void runEventLoop() {
+		while (active) {
+			Runnable event = events.poll();
+			if (event == null) {
+				eventThreadParked = true;
+				if (events.isEmpty() && active)
+					LockSupport.park(this);
+				eventThreadParked = false;
+				continue;
+			}
+
+			try {
+				event.run();
+			} catch (RuntimeException re) {
+				// TODO: should the server halt? on the caller's thread this
+				// would have been thrown back to whoever delivered the event
+				System.out.println("WARNING: failed to handle event at " + getId() + ": " + re);
+			}
+		}
+	}
+
+	/**
+	 * Counts the leader's own durable entries towards consensus, applying
+	 * anything that this commits. A log that doesn't sync every append may
+	 * only make an entry durable some time after it was appended, so this is
+	 * checked again whenever the leader hears back from a follower, when the
+	 * log says that more entries are durable and before each heartbeat.
+	 */
+	private void appendedLocally() {
+		long appliedIndex =
+			consensusHandler.appended(getId(), log.getDurableIndex(), log.getCommitIndex());
+		if (appliedIndex != 0L)
+			applyIndex(appliedIndex);
+	}
+
 	private synchronized void sendHeartbeat() {
 		// when elections happen back-to-back this node may have scheduled a
 		// heartbeat as the leader but not cancelled the task in time when
@@ -624,10 +1310,20 @@ public class LocalServer extends AbstractServer {
 		if (currentRole != Role.LEADER)
 			return;
 
+		appendedLocally();
+
 		Message request =
 			new AppendRequestMsg(getId(), state.getCurrentTerm(), log.getLastIndex(),
 								 log.getLastTerm(), log.getCommitIndex());
+		state.sync();
 		membershipHandle.invokeAll(request);
+
+		// anything that's been in flight since the last heartbeat without a
+		// response is sent again
+		for (Map.Entry<Long,Replicator> entry : replicators.entrySet()) {
+			if (entry.getValue().checkStalled())
+				replicate(entry.getKey(), entry.getValue());
+		}
 	}
 
 	/* Package-private accessors for testing only. */
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.local;
+
+
+/**
+ * A leader's record of how far replication to one follower has got. This
+ * tracks the next index to send, the highest index the follower has said is
+ * durable, and how many pages have been sent that haven't been answered.
+ * <p>
+ * While the follower is keeping up, up to a window of pages may be in flight
+ * at once. When the follower rejects a page the replicator backs off to the
+ * index that the follower suggested and probes, with just one page in flight,
+ * until a page is accepted. Pages and responses may be re-ordered or lost, so
+ * a rejection that can't be for the page now expected is ignored, and if
+ * nothing is heard from the follower between two heartbeats then whatever is
+ * in flight is taken as lost and sent again.
+ * <p>
+ * Heartbeats share the responses of pages, so the count of pages in flight is
+ * only close to exact. This class is not thread-safe.
+ */
+class Replicator {
+
+	// the most pages that may be in flight while not probing
+	private final int window;
+
+	// the next index to send, and the highest index known to be durable
+	private long nextIndex;
+	private long matchIndex = 0L;
+
+	// the number of pages sent that haven't been answered
+	private int inFlight = 0;
+
+	// whether a rejection is being resolved, and the index that the probe
+	// page was sent after
+	private boolean probing = true;
+	private long probeIndex;
+
+	// whether anything was heard since the last heartbeat
+	private boolean heard = false;
+
+	/**
+	 * Creates an instance of {@code Replicator} that starts by probing from
+	 * the end of the leader's log.
+	 *
+	 * @param window the most pages that may be in flight
+	 * @param lastIndex the leader's last index
+	 */
+	Replicator(int window, long lastIndex) {
+		this.window = window;
+		this.nextIndex = lastIndex + 1;
+		this.probeIndex = lastIndex;
+	}
+
+	/**
+	 * Returns the next index to send.
+	 *
+	 * @return the next index
+	 */
+	long getNextIndex() {
+		return nextIndex;
+	}
+
+	/**
+	 * Returns the highest index that the follower has said is durable.
+	 *
+	 * @return the match index
+	 */
+	long getMatchIndex() {
+		return matchIndex;
+	}
+
+	/**
+	 * Returns whether another page may be sent now.
+	 *
+	 * @return {@code true} if the window isn't full
+	 */
+	boolean canSend() {
+		return inFlight < (probing ? 1 : window);
+	}
+
+	/**
+	 * Returns whether any pages are in flight.
+	 *
+	 * @return {@code true} if a page hasn't been answered
+	 */
+	boolean isInFlight() {
+		return inFlight > 0;
+	}
+
+	/**
+	 * Notes that a page was sent.
+	 *
+	 * @param prevIndex the index that the page follows
+	 * @param lastIndex the last index in the page
+	 */
+	void sent(long prevIndex, long lastIndex) {
+		if (probing)
+			probeIndex = prevIndex;
+		nextIndex = lastIndex + 1;
+		inFlight++;
+	}
+
+	/**
+	 * Notes that a snapshot was sent, which is answered before anything
+	 * after it is sent.
+	 *
+	 * @param snapshotIndex the last index that the snapshot covers
+	 */
+	void sentSnapshot(long snapshotIndex) {
+		probing = true;
+		probeIndex = snapshotIndex;
+		nextIndex = snapshotIndex + 1;
+		inFlight++;
+	}
+
+	/**
+	 * Notes that the follower accepted a page or heartbeat, which also ends
+	 * any probe.
+	 *
+	 * @param index the highest index that the follower has made durable
+	 */
+	void acknowledged(long index) {
+		heard = true;
+		matchIndex = Math.max(matchIndex, index);
+		nextIndex = Math.max(nextIndex, index + 1);
+
+		if (probing) {
+			probing = false;
+			inFlight = 0;
+		} else if (index >= nextIndex - 1) {
+			// the follower has everything sent, so nothing is still needed
+			inFlight = 0;
+		} else {
+			inFlight = Math.max(0, inFlight - 1);
+		}
+	}
+
+	/**
+	 * Notes that the follower rejected a page or heartbeat. A rejection that
+	 * can't be for the page now expected is ignored: while probing that's any
+	 * page but the probe, and otherwise it's a page after everything sent,
+	 * which is a heartbeat that overtook the pages in flight, or one before
+	 * the match index, which was sent before an earlier back-off.
+	 *
+	 * @param rejectedIndex the index that the rejected page followed, or
+	 *                      {@code AppendResponseMsg.NO_REQUEST} if the
+	 *                      follower didn't ask to resume anywhere
+	 * @param resyncIndex the index that the follower suggested resuming from
+	 *
+	 * @return {@code true} if the replicator backed off and should send again
+	 */
+	boolean rejected(long rejectedIndex, long resyncIndex) {
+		if (rejectedIndex == AppendResponseMsg.NO_REQUEST) {
+			inFlight = Math.max(0, inFlight - 1);
+			return false;
+		}
+
+		if (inFlight > 0) {
+			if (probing ? (rejectedIndex != probeIndex) :
+				((rejectedIndex < matchIndex) || (rejectedIndex >= nextIndex - 1)))
+				return false;
+		}
+
+		heard = true;
+		matchIndex = Math.min(matchIndex, resyncIndex);
+		nextIndex = Math.min(nextIndex, resyncIndex + 1);
+		probing = true;
+		probeIndex = nextIndex - 1;
+		inFlight = 0;
+		return true;
+	}
+
+	/**
+	 * Called on each heartbeat. If pages are in flight but nothing has been
+	 * heard since the last heartbeat then they're taken as lost, and the
+	 * replicator goes back to probing from the last point it knows about.
+	 *
+	 * @return {@code true} if the replicator should send again
+	 */
+	boolean checkStalled() {
+		boolean stalled = (inFlight > 0) && (! heard);
+		heard = false;
+		if (! stalled)
+			return false;
+
+		nextIndex = (probing ? probeIndex : matchIndex) + 1;
+		probing = true;
+		probeIndex = nextIndex - 1;
+		inFlight = 0;
+		return true;
+	}
+
+}
@@ -7,18 +7,48 @@
 
 package net.purpleclay.raft.local;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+import net.purpleclay.raft.StateLog;
 import net.purpleclay.raft.util.FileUtil;
 
 
 /**
  * Utility class that keeps a durable record of key server states. This
- * implementation uses a single file for the durable record. The file is
- * overwritten with each update and so stays fixed-length.
+ * implementation uses a single, memory-mapped file for the durable record.
+ * The file holds two fixed-length slots, each on its own page, and each
+ * update writes the complete state to the slot that wasn't written last and
+ * then syncs just that page. Every slot carries a generation number and a
+ * checksum, so when the state is read the newest slot that's intact is used,
+ * and an update that is cut short leaves the previous state in place.
+ * <p>
+ * Updates to the term and vote are written before they return. The commit
+ * index doesn't need to be durable for correctness, so its updates are
+ * written by a background thread instead, and any updates that arrive while
+ * a write is running are coalesced into the next write. The latest commit
+ * index is always written on shutdown.
+ * <p>
+ * When a {@code StateLog} is provided the term and vote are appended to that
+ * log instead, without waiting for them to be synced, so that they share the
+ * log's syncs. In that case {@code sync} must be called before anything that
+ * depends on the state is sent to another server. The file still holds the
+ * server identifier and commit index, and on start-up whichever of the file
+ * and the log has the newer term is used.
  * <p>
  * TODO: there should be probably be some UUID in the log that can be matched
  * against this state (and used in online negotiation too) to ensure that
@@ -31,22 +61,81 @@ import net.purpleclay.raft.util.FileUtil;
 class ServerState {
 
 	// the version of the state file
-	private static final long CURRENT_VERSION = 1L;
+	private static final long CURRENT_VERSION = 2L;
+
+	// the version of the original state file, which had a record appended
+	// for every update
+	private static final long UNSLOTTED_VERSION = 1L;
 
 	// the name of the file where state is stored
 	private static final String STATE_FILE_NAME = "server.state";
 
+	// the suffix of the file that an original file is converted into
+	private static final String CONVERTED_SUFFIX = ".new";
+
+	// the length of each record in the original file: version, server id,
+	// term, commit index & vote
+	static final int UNSLOTTED_RECORD_SIZE = 40;
+
+	// the space given to each slot, which is a page so that syncing one
+	// slot doesn't touch the other
+	static final int SLOT_SIZE = 4096;
+
+	// the length of a slot's content: version, generation, server id, term,
+	// commit index & vote, followed by the checksum
+	static final int SLOT_CONTENT_SIZE = 48;
+	private static final int SLOT_RECORD_SIZE = SLOT_CONTENT_SIZE + 4;
+
 	// constant for marking that no server has been voted for
 	final static long NO_VOTE = -1L;
 
 	// a handle to the file
 	private final RandomAccessFile stateFile;
 
-	// a single buffer used to write state to disk
-	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(64);
+	// the mapping of each slot
+	private final MappedByteBuffer [] slots = new MappedByteBuffer[2];
+
+	// a single buffer used to build each slot's record, and its checksum
+	private final ByteBuffer writeBuffer = ByteBuffer.allocate(SLOT_RECORD_SIZE);
+	private final CRC32 checksum = new CRC32();
+
+	// the generation of the last slot written, which picks the next slot
+	private long generation = 0L;
+
+	// the commit index in the last slot written
+	private long writtenCommitIndex = 0L;
+
+	// the thread that writes commit index updates, and whether a write has
+	// been queued that hasn't started yet
+	private final ExecutorService commitWriter =
+		Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "ServerState commit writer");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final AtomicBoolean commitWriteQueued = new AtomicBoolean(false);
+
+	// the task that writes the latest commit index
+	private final Runnable commitWrite = new Runnable() {
+			public void run() {
+				commitWriteQueued.set(false);
+				try {
+					writeCommitIndex();
+				} catch (IOException ioe) {
+					// TODO: log this case
+					System.out.println("WARNING: failed to write commit index");
+				}
+			}
+		};
 
 	// the unique identifier for this server
 	private final long serverId;
+
+	// the log that term and vote are written to, if they're not written to
+	// the file
+	private final StateLog stateLog;
 	
 	// the current term, index and last vote cast
 	private volatile long currentTerm = 0L;
@@ -82,28 +171,103 @@ class ServerState {
 	 *                               state and no identifier was provided
 	 */
 	ServerState(String statePath, long serverId) throws IOException {
+		this(statePath, serverId, null);
+	}
+
+	/**
+	 * Creates an instance of {@code ServerState} backed by data in the
+	 * given directory, which keeps the term and vote in the given log.
+	 *
+	 * @param statePath the path to the state directory
+	 * @param serverId the unique identifier for this server, or -1 if the
+	 *                 identity for the server is unknown
+	 * @param stateLog the {@code StateLog} to write the term and vote to, or
+	 *                 {@code null} to write them to the state file
+	 *
+	 * @throws IOException if there is any error accessing the directory
+	 *                     or working with previous state on-disk
+	 * @throws IllegalStateException if the given server identifier doesn't
+	 *                               match the id on-disk, or if there is no
+	 *                               state and no identifier was provided
+	 */
+	ServerState(String statePath, long serverId, StateLog stateLog) throws IOException {
 		if (statePath == null)
 			throw new NullPointerException("State directory cannot be null");
 
 		File stateDir = FileUtil.validateDirectory(statePath);
 		File file = new File(stateDir, STATE_FILE_NAME);
+
+		// an original file is converted into a separate file that replaces
+		// it once it's complete, so a crash leaves one or the other intact
+		File converted = new File(stateDir, STATE_FILE_NAME + CONVERTED_SUFFIX);
+		if (converted.exists() && (! converted.delete()))
+			throw new IOException("failed to remove " + converted.getName());
+		if (file.exists() && isUnslottedFile(file))
+			convertUnslottedFile(file, converted);
+
 		boolean stateExists = file.exists();
-		this.stateFile = new RandomAccessFile(file, "rws");
+		this.stateFile = new RandomAccessFile(file, "rw");
 
-		if (stateExists) {
-			long id = readFile();
-			if ((serverId != -1L) && (id != serverId))
-				throw new IllegalStateException("server identifier mis-match");
-			this.serverId = id;
-		} else {
-			if (serverId == -1L)
+		try {
+			if ((! stateExists) && (serverId == -1L))
 				throw new IllegalStateException("no server identifier provided");
-			this.serverId = serverId;
+
+			stateFile.setLength(2L * SLOT_SIZE);
+			FileChannel channel = stateFile.getChannel();
+			slots[0] = channel.map(FileChannel.MapMode.READ_WRITE, 0L, SLOT_SIZE);
+			slots[1] = channel.map(FileChannel.MapMode.READ_WRITE, SLOT_SIZE, SLOT_SIZE);
+
+			long id = serverId;
+			if (stateExists) {
+				id = readSlots();
+				if ((serverId != -1L) && (id != serverId))
+					throw new IllegalStateException("server identifier mis-match");
+			}
+			this.serverId = id;
+
+			// a new file starts out with its state written
+			if (! stateExists)
+				writeFile(currentTerm, commitIndex, lastVotedId);
+
+			// the log's state is written more often than the file's, but
+			// the file may be newer if it was used without the log
+			this.stateLog = stateLog;
+			if (stateLog != null) {
+				if ((stateLog.getStateTerm() != StateLog.NO_STATE) &&
+					(stateLog.getStateTerm() >= currentTerm))
+				{
+					currentTerm = stateLog.getStateTerm();
+					lastVotedId = stateLog.getStateVote();
+				} else {
+					stateLog.appendState(currentTerm, lastVotedId);
+					stateLog.syncState();
+				}
+			}
+		} catch (IOException ioe) {
+			stateFile.close();
+			throw ioe;
+		} catch (RuntimeException re) {
+			stateFile.close();
+			throw re;
 		}
 	}
 
 	/** Shuts down management of server state. */
 	void shutdown() {
+		commitWriter.shutdown();
+		try {
+			commitWriter.awaitTermination(1L, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			writeCommitIndex();
+		} catch (IOException ioe) {
+			// TODO: log this case
+			System.out.println("WARNING: failed to write commit index");
+		}
+
 		try {
 			stateFile.close();
 		} catch (IOException ioe) { }
@@ -126,11 +290,14 @@ class ServerState {
 	 * 
 	 * @throws IOException if there is any problem persisting the change
 	 */
-	void updateCurrentTerm(long term) throws IOException {
+	synchronized void updateCurrentTerm(long term) throws IOException {
 		if (term == currentTerm)
 			return;
 
-		writeFile();
+		if (stateLog != null)
+			stateLog.appendState(term, NO_VOTE);
+		else
+			writeFile(term, commitIndex, NO_VOTE);
 
 		currentTerm = term;
 		lastVotedId = NO_VOTE;
@@ -148,8 +315,9 @@ class ServerState {
 	/**
 	 *  Updates the latest commit index. This routine makes a best-effort to
 	 *  persist the changes to local-disk but because commit index is not
-	 *  required to be durable for correctness this routine will not raise an
-	 *  exception if writing to disk fails.
+	 *  required to be durable for correctness this routine does not wait for
+	 *  the change to be written, and will not raise an exception if writing
+	 *  to disk fails.
 	 * 
 	 * @param index the new commit index
 	 */
@@ -159,11 +327,14 @@ class ServerState {
 
 		commitIndex = index;
 
-		try {
-			writeFile();
-		} catch (IOException ioe) {
-			// TODO: log this case
-			System.out.println("WARNING: failed to write commit index");
+		// if a write is already queued then it will pick up this index
+		if (commitWriteQueued.compareAndSet(false, true)) {
+			try {
+				commitWriter.execute(commitWrite);
+			} catch (RejectedExecutionException ree) {
+				// shutting down, which writes the index anyway
+				commitWriteQueued.set(false);
+			}
 		}
 	}
 
@@ -184,15 +355,28 @@ class ServerState {
 	 * 
 	 * @throws IOException if there is any problem persisting the change
 	 */
-	void updateLastVotedId(long serverId) throws IOException {
+	synchronized void updateLastVotedId(long serverId) throws IOException {
 		if (serverId == lastVotedId)
 			return;
 
-		writeFile();
+		if (stateLog != null)
+			stateLog.appendState(currentTerm, serverId);
+		else
+			writeFile(currentTerm, commitIndex, serverId);
 
 		lastVotedId = serverId;
 	}
 
+	/**
+	 * Makes sure that the term and vote are durable. This returns right away
+	 * when they're written to the state file, since every update to the file
+	 * is synced before it returns.
+	 */
+	void sync() {
+		if (stateLog != null)
+			stateLog.syncState();
+	}
+
 	/**
 	 * Returns the last voted for server identifier
 	 * 
@@ -202,30 +386,148 @@ class ServerState {
 		return lastVotedId;
 	}
 
-	/** Reads the complete file into local state. */
-	private synchronized long readFile() throws IOException {
-		long version = stateFile.readLong();
-		if (version != CURRENT_VERSION)
+	/**
+	 * Returns whether the file is in the original format, which is told by
+	 * the version that it starts with rather than by its length, since the
+	 * original format grew with every update.
+	 */
+	private static boolean isUnslottedFile(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			return (in.length() >= 8L) && (in.readLong() == UNSLOTTED_VERSION);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Converts a file in the original format into the slotted layout. The
+	 * original file appended a record for every update, and after a re-start
+	 * wrote over the records that followed the first one, so the newest
+	 * record isn't always the last. Instead the highest term is used, along
+	 * with any vote cast in that term and the highest commit index, none of
+	 * which ever go backwards. A record cut short at the end is ignored. The
+	 * slotted file is written and synced under a separate name and then
+	 * renamed over the original.
+	 */
+	private static void convertUnslottedFile(File file, File converted) throws IOException {
+		long id = -1L;
+		long term = -1L;
+		long index = 0L;
+		long votedId = NO_VOTE;
+
+		DataInputStream in =
+			new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			long count = file.length() / UNSLOTTED_RECORD_SIZE;
+			for (long i = 0; i < count; i++) {
+				if (in.readLong() != UNSLOTTED_VERSION)
+					throw new IOException("Invalid file");
+				long recordId = in.readLong();
+				long recordTerm = in.readLong();
+				long recordIndex = in.readLong();
+				long recordVote = in.readLong();
+
+				if ((id != -1L) && (recordId != id))
+					throw new IOException("Invalid file");
+				id = recordId;
+
+				if (recordTerm > term) {
+					term = recordTerm;
+					votedId = recordVote;
+				} else if ((recordTerm == term) && (recordVote != NO_VOTE)) {
+					votedId = recordVote;
+				}
+				index = Math.max(index, recordIndex);
+			}
+		} finally {
+			in.close();
+		}
+
+		if (id == -1L)
 			throw new IOException("Invalid file");
 
-		long id = stateFile.readLong();
-		
-		currentTerm = stateFile.readLong();
-		commitIndex = stateFile.readLong();
-		lastVotedId = stateFile.readLong();
+		ByteBuffer record = ByteBuffer.allocate(SLOT_RECORD_SIZE);
+		record.putLong(CURRENT_VERSION).putLong(1L).putLong(id).
+			putLong(term).putLong(index).putLong(votedId);
+		record.putInt(checksumRecord(record, new CRC32()));
+		record.flip();
+
+		// the first generation goes in the second slot, as writeFile does
+		RandomAccessFile out = new RandomAccessFile(converted, "rw");
+		try {
+			out.setLength(2L * SLOT_SIZE);
+			out.getChannel().write(record, SLOT_SIZE);
+			out.getChannel().force(true);
+		} finally {
+			out.close();
+		}
 
-		return id;
+		if (! converted.renameTo(file))
+			throw new IOException("failed to replace " + file.getName());
 	}
 
-	/** Writes the complete state into the local file. */
-	private synchronized void writeFile() throws IOException {
+	/** Reads the newest intact slot into local state. */
+	private synchronized long readSlots() throws IOException {
+		ByteBuffer newest = null;
+		for (MappedByteBuffer slot : slots) {
+			ByteBuffer record = ByteBuffer.allocate(SLOT_RECORD_SIZE);
+			ByteBuffer view = slot.duplicate();
+			view.clear().limit(SLOT_RECORD_SIZE);
+			record.put(view).flip();
+
+			if ((record.getLong(0) != CURRENT_VERSION) ||
+				(record.getInt(SLOT_CONTENT_SIZE) != checksumRecord(record, checksum)))
+				continue;
+			if ((newest == null) || (record.getLong(8) > newest.getLong(8)))
+				newest = record;
+		}
+
+		if (newest == null)
+			throw new IOException("Invalid file");
+
+		generation = newest.getLong(8);
+		currentTerm = newest.getLong(24);
+		commitIndex = newest.getLong(32);
+		writtenCommitIndex = commitIndex;
+		lastVotedId = newest.getLong(40);
+
+		return newest.getLong(16);
+	}
+
+	/** Writes the current state if the commit index has changed. */
+	private synchronized void writeCommitIndex() throws IOException {
+		if (commitIndex != writtenCommitIndex)
+			writeFile(currentTerm, commitIndex, lastVotedId);
+	}
+
+	/**
+	 * Writes the complete state into the slot that wasn't written last, and
+	 * syncs just that slot's page.
+	 */
+	private synchronized void writeFile(long term, long index, long votedId)
+		throws IOException
+	{
 		writeBuffer.clear();
-		writeBuffer.putLong(CURRENT_VERSION).putLong(serverId).
-			putLong(currentTerm).putLong(commitIndex).putLong(lastVotedId);
+		writeBuffer.putLong(CURRENT_VERSION).putLong(generation + 1).putLong(serverId).
+			putLong(term).putLong(index).putLong(votedId);
+		writeBuffer.putInt(checksumRecord(writeBuffer, checksum));
 		writeBuffer.flip();
 
-		stateFile.getChannel().write(writeBuffer);
-		stateFile.getChannel().force(false);
+		MappedByteBuffer slot = slots[(int) ((generation + 1) & 1L)];
+		slot.clear();
+		slot.put(writeBuffer);
+		slot.force();
+
+		generation++;
+		writtenCommitIndex = index;
+	}
+
+	/** Returns the checksum of the content of a slot's record. */
+	private static int checksumRecord(ByteBuffer record, CRC32 checksum) {
+		checksum.reset();
+		checksum.update(record.array(), record.arrayOffset(), SLOT_CONTENT_SIZE);
+		return (int) checksum.getValue();
 	}
 
 }
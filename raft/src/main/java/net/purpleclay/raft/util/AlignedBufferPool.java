@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool of direct buffers whose memory starts on a block boundary and whose
+ * capacity is a whole number of blocks, as needed for writes to a file that
+ * was opened for direct I/O. Allocating direct memory is slow, so buffers are
+ * returned to the pool once a write is done. If every buffer is in use then a
+ * new one is allocated, but only up to the pool's size are kept once they're
+ * released.
+ * <p>
+ * Aligning a buffer relies on {@code ByteBuffer.alignedSlice}, which is only
+ * available on newer runtimes, so it's found through reflection. Where it's
+ * missing {@code isSupported} returns {@code false}.
+ */
+class AlignedBufferPool {
+
+	// the method that aligns a buffer, if the runtime has it
+	private static final Method ALIGNED_SLICE = findAlignedSlice();
+
+	// the alignment and size of every buffer
+	private final int blockSize;
+	private final int bufferSize;
+
+	// the most buffers that are kept, and the buffers that are free
+	private final int poolSize;
+	private final ConcurrentLinkedQueue<ByteBuffer> buffers =
+		new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicInteger pooled = new AtomicInteger(0);
+
+	/**
+	 * Creates an instance of {@code AlignedBufferPool}.
+	 *
+	 * @param blockSize the alignment, which must be a power of two
+	 * @param bufferSize the size of each buffer, which must be a multiple of
+	 *                   the block size
+	 * @param poolSize the most free buffers that are kept
+	 *
+	 * @throws IllegalArgumentException if the sizes aren't aligned
+	 */
+	AlignedBufferPool(int blockSize, int bufferSize, int poolSize) {
+		if ((blockSize < 1) || ((blockSize & (blockSize - 1)) != 0))
+			throw new IllegalArgumentException("invalid block size: " + blockSize);
+		if ((bufferSize < blockSize) || (bufferSize % blockSize != 0))
+			throw new IllegalArgumentException("invalid buffer size: " + bufferSize);
+
+		this.blockSize = blockSize;
+		this.bufferSize = bufferSize;
+		this.poolSize = poolSize;
+	}
+
+	/**
+	 * Returns whether the runtime can align buffers.
+	 *
+	 * @return {@code true} if buffers can be aligned {@code false} otherwise
+	 */
+	static boolean isSupported() {
+		return ALIGNED_SLICE != null;
+	}
+
+	/**
+	 * Returns the alignment of the buffers.
+	 *
+	 * @return the block size in bytes
+	 */
+	int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Returns the capacity of every buffer.
+	 *
+	 * @return the buffer size in bytes
+	 */
+	int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Returns a cleared, aligned buffer, which should be given back to
+	 * {@code release} once it's no longer used.
+	 *
+	 * @return an aligned {@code ByteBuffer}
+	 */
+	ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		if (buffer == null)
+			return allocate();
+
+		pooled.decrementAndGet();
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back to the pool.
+	 *
+	 * @param buffer a buffer returned by {@code acquire}
+	 */
+	void release(ByteBuffer buffer) {
+		if (pooled.incrementAndGet() <= poolSize)
+			buffers.offer(buffer);
+		else
+			pooled.decrementAndGet();
+	}
+
+	/** Allocates a new buffer, with enough extra space to align it. */
+	private ByteBuffer allocate() {
+		if (ALIGNED_SLICE == null)
+			throw new IllegalStateException("aligned buffers are not supported");
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize + blockSize);
+		try {
+			ByteBuffer aligned = (ByteBuffer) ALIGNED_SLICE.invoke(buffer, blockSize);
+			aligned.limit(bufferSize);
+			return aligned.slice();
+		} catch (Exception e) {
+			throw new IllegalStateException("failed to align buffer", e);
+		}
+	}
+
+	/** Finds the method that aligns a buffer, or null if there is none. */
+	private static Method findAlignedSlice() {
+		try {
+			return ByteBuffer.class.getMethod("alignedSlice", int.class);
+		} catch (NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
+}
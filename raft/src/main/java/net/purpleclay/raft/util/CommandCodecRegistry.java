@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.purpleclay.raft.CommandCodec;
+
+
+/**
+ * Collection of {@code CommandCodec}s keyed by {@code Command} identifier.
+ * Encoded data refers to a codec by a compact key derived from the identifier
+ * rather than the identifier itself, so two identifiers with the same key
+ * cannot both be registered. The key is stable across runs, so a log written
+ * by one process can be read by another with the same codecs registered.
+ */
+public class CommandCodecRegistry {
+
+	// the mapping from identifiers to codecs
+	private final ConcurrentHashMap<String,CommandCodec> codecs =
+		new ConcurrentHashMap<String,CommandCodec>();
+
+	// the mapping from compact keys to codecs
+	private final ConcurrentHashMap<Integer,CommandCodec> keyedCodecs =
+		new ConcurrentHashMap<Integer,CommandCodec>();
+
+	/**
+	 * Adds a {@code CommandCodec} for the given command identifier.
+	 *
+	 * @param codec the {@code CommandCodec} to add
+	 * @param commandIdentifier the {@code Command} identifier that this codec
+	 *                          handles
+	 *
+	 * @throws IllegalArgumentException if this identifier, or another with the
+	 *                                  same key, is already registered
+	 */
+	public void addCodec(CommandCodec codec, String commandIdentifier) {
+		if (keyedCodecs.putIfAbsent(getKey(commandIdentifier), codec) != null)
+			throw new IllegalArgumentException("Identifier already registered");
+		codecs.put(commandIdentifier, codec);
+	}
+
+	/**
+	 * Returns the codec for the given command identifier.
+	 *
+	 * @param commandIdentifier a {@code Command} identifier
+	 *
+	 * @return the registered {@code CommandCodec} or {@code null} if there
+	 *         is no codec for the identifier
+	 */
+	public CommandCodec getCodec(String commandIdentifier) {
+		return codecs.get(commandIdentifier);
+	}
+
+	/**
+	 * Returns the codec for the given compact key.
+	 *
+	 * @param key a key returned by {@code getKey}
+	 *
+	 * @return the registered {@code CommandCodec} or {@code null} if there
+	 *         is no codec for the key
+	 */
+	public CommandCodec getCodec(int key) {
+		return keyedCodecs.get(key);
+	}
+
+	/**
+	 * Returns the compact key used in encoded data for the given identifier.
+	 *
+	 * @param commandIdentifier a {@code Command} identifier
+	 *
+	 * @return the key for the identifier
+	 */
+	public static int getKey(String commandIdentifier) {
+		return commandIdentifier.hashCode();
+	}
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * The content of a sealed {@code LogSegment} that has been compressed. The
+ * segment's bytes, from the start of its header to the end of its last
+ * record, are split into blocks that each start at a record, so that any
+ * single record is read by inflating just one block. Positions within the
+ * segment are unchanged by compression, so the log's index of where each
+ * entry starts still applies.
+ * <p>
+ * A compressed file starts with the same version and first index fields as
+ * any segment, with its own version, and then has the segment's length, the
+ * preset dictionary (if any), and a table of where each block starts in the
+ * segment and in the file. The table is covered by a checksum, while the
+ * records themselves carry their own checksums, which are checked when the
+ * log is loaded. The blocks follow the table.
+ * <p>
+ * The most recently inflated block is kept, since reads of a segment tend to
+ * be in order.
+ */
+class CompressedBlocks {
+
+	/** The version that marks a compressed segment. */
+	static final long COMPRESSED_VERSION = 6L;
+
+	// the length of the fixed part of the header: version, first index,
+	// segment length, block count & dictionary length
+	private static final int FIXED_HEADER_SIZE = 32;
+
+	// the length of each entry in the block table: start in the segment,
+	// offset in the file & compressed length
+	private static final int BLOCK_ENTRY_SIZE = 20;
+
+	// the channel to read blocks from
+	private final FileChannel channel;
+
+	// the length of the segment once inflated
+	private final long end;
+
+	// the preset dictionary, or null if there is none
+	private final byte [] dictionary;
+
+	// each block's start in the segment & offset and length in the file
+	private final long [] starts;
+	private final long [] offsets;
+	private final int [] lengths;
+
+	// the most recently inflated block
+	private volatile InflatedBlock lastBlock = null;
+
+	/** A block that's been inflated. */
+	private static class InflatedBlock {
+		final int block;
+		final ByteBuffer data;
+		InflatedBlock(int block, ByteBuffer data) {
+			this.block = block;
+			this.data = data;
+		}
+	}
+
+	/** Creates an instance of {@code CompressedBlocks}. */
+	private CompressedBlocks(FileChannel channel, long end, byte [] dictionary,
+							 long [] starts, long [] offsets, int [] lengths)
+	{
+		this.channel = channel;
+		this.end = end;
+		this.dictionary = dictionary;
+		this.starts = starts;
+		this.offsets = offsets;
+		this.lengths = lengths;
+	}
+
+	/**
+	 * Reads the header and block table of a compressed segment. The version
+	 * and first index are expected to have been checked already.
+	 *
+	 * @param channel the channel for the compressed file
+	 *
+	 * @return the {@code CompressedBlocks} for the file
+	 *
+	 * @throws IOException if the header is incomplete or doesn't match its
+	 *                     checksum
+	 */
+	static CompressedBlocks open(FileChannel channel) throws IOException {
+		ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+		readFully(channel, 0L, fixed);
+		long end = fixed.getLong(16);
+		int blockCount = fixed.getInt(24);
+		int dictionaryLength = fixed.getInt(28);
+		if ((end < LogSegment.HEADER_SIZE) || (blockCount < 1) || (dictionaryLength < 0) ||
+			(FIXED_HEADER_SIZE + dictionaryLength + (long) blockCount * BLOCK_ENTRY_SIZE + 4 >
+			 channel.size()))
+			throw new IOException("invalid compressed segment header");
+
+		ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + dictionaryLength +
+												blockCount * BLOCK_ENTRY_SIZE + 4);
+		readFully(channel, 0L, header);
+		CRC32 checksum = new CRC32();
+		checksum.update(header.array(), 0, header.capacity() - 4);
+		if (header.getInt(header.capacity() - 4) != (int) checksum.getValue())
+			throw new IOException("invalid compressed segment checksum");
+
+		header.position(FIXED_HEADER_SIZE);
+		byte [] dictionary = null;
+		if (dictionaryLength > 0) {
+			dictionary = new byte[dictionaryLength];
+			header.get(dictionary);
+		}
+
+		long [] starts = new long[blockCount];
+		long [] offsets = new long[blockCount];
+		int [] lengths = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			starts[i] = header.getLong();
+			offsets[i] = header.getLong();
+			lengths[i] = header.getInt();
+		}
+
+		return new CompressedBlocks(channel, end, dictionary, starts, offsets, lengths);
+	}
+
+	/**
+	 * Writes a compressed copy of a segment's content to the given file,
+	 * which is synced before this returns.
+	 *
+	 * @param content the segment's bytes from the start of its header to
+	 *                the end of its last record
+	 * @param boundaries the ascending positions of records where a block may
+	 *                   start
+	 * @param blockSize the size past which a new block is started
+	 * @param dictionary the preset dictionary, or {@code null} for none
+	 * @param target the file to write
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	static void compress(ByteBuffer content, long [] boundaries, int blockSize,
+						 byte [] dictionary, File target)
+		throws IOException
+	{
+		long end = content.remaining();
+		int dictionaryLength = (dictionary != null) ? dictionary.length : 0;
+
+		// blocks are cut at the first record past each block's size
+		int blockCount = 1;
+		long [] starts = new long[boundaries.length + 1];
+		for (long boundary : boundaries) {
+			if ((boundary < end) && (boundary - starts[blockCount - 1] >= blockSize))
+				starts[blockCount++] = boundary;
+		}
+
+		long [] offsets = new long[blockCount];
+		int [] lengths = new int[blockCount];
+		long offset = FIXED_HEADER_SIZE + dictionaryLength + blockCount * BLOCK_ENTRY_SIZE + 4;
+
+		RandomAccessFile file = new RandomAccessFile(target, "rw");
+		try {
+			FileChannel out = file.getChannel();
+			out.truncate(0L);
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			try {
+				byte [] input = new byte[0];
+				byte [] output = new byte[64 * 1024];
+				for (int i = 0; i < blockCount; i++) {
+					int length = (int) (((i + 1 < blockCount) ? starts[i + 1] : end) - starts[i]);
+					if (input.length < length)
+						input = new byte[length];
+					ByteBuffer block = content.duplicate();
+					block.position(content.position() + (int) starts[i]);
+					block.get(input, 0, length);
+
+					deflater.reset();
+					if (dictionary != null)
+						deflater.setDictionary(dictionary);
+					deflater.setInput(input, 0, length);
+					deflater.finish();
+
+					offsets[i] = offset;
+					while (! deflater.finished()) {
+						int count = deflater.deflate(output);
+						writeFully(out, offset, ByteBuffer.wrap(output, 0, count));
+						offset += count;
+					}
+					lengths[i] = (int) (offset - offsets[i]);
+				}
+			} finally {
+				deflater.end();
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER_SIZE + dictionaryLength +
+													blockCount * BLOCK_ENTRY_SIZE + 4);
+			header.putLong(COMPRESSED_VERSION).putLong(content.getLong(content.position() + 8));
+			header.putLong(end).putInt(blockCount).putInt(dictionaryLength);
+			if (dictionary != null)
+				header.put(dictionary);
+			for (int i = 0; i < blockCount; i++)
+				header.putLong(starts[i]).putLong(offsets[i]).putInt(lengths[i]);
+			CRC32 checksum = new CRC32();
+			checksum.update(header.array(), 0, header.position());
+			header.putInt((int) checksum.getValue());
+			header.flip();
+			writeFully(out, 0L, header);
+
+			out.force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Returns the length of the segment once inflated.
+	 *
+	 * @return the segment length in bytes
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns a buffer with the given range of the segment. A range within a
+	 * single block is a view on the inflated block, otherwise the blocks are
+	 * copied into a new buffer. In either case the caller has exclusive use
+	 * of the returned buffer's position and limit.
+	 *
+	 * @param position the position in the segment to start reading from
+	 * @param length the number of bytes to read
+	 *
+	 * @return a buffer positioned at the start of the data
+	 *
+	 * @throws IOException if a block can't be read or inflated
+	 */
+	ByteBuffer read(long position, int length) throws IOException {
+		int block = findBlock(position);
+		if ((block + 1 == starts.length) || (position + length <= starts[block + 1])) {
+			ByteBuffer view = getBlock(block).duplicate();
+			int offset = (int) (position - starts[block]);
+			view.limit(offset + length).position(offset);
+			return view.slice();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		long next = position;
+		while (buffer.hasRemaining()) {
+			ByteBuffer view = getBlock(block).duplicate();
+			int offset = (int) (next - starts[block]);
+			view.limit(Math.min(view.capacity(), offset + buffer.remaining())).position(offset);
+			next += view.remaining();
+			buffer.put(view);
+			block++;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Returns the block holding the given position. */
+	private int findBlock(long position) {
+		int low = 0;
+		int high = starts.length - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= position)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/** Returns the inflated content of a block. */
+	private ByteBuffer getBlock(int block) throws IOException {
+		InflatedBlock inflated = lastBlock;
+		if ((inflated != null) && (inflated.block == block))
+			return inflated.data;
+
+		byte [] compressed = new byte[lengths[block]];
+		readFully(channel, offsets[block], ByteBuffer.wrap(compressed));
+
+		long blockEnd = (block + 1 < starts.length) ? starts[block + 1] : end;
+		byte [] data = new byte[(int) (blockEnd - starts[block])];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			int count = 0;
+			while (count < data.length) {
+				int inflatedCount = inflater.inflate(data, count, data.length - count);
+				if (inflatedCount == 0) {
+					if (inflater.needsDictionary() && (dictionary != null))
+						inflater.setDictionary(dictionary);
+					else if (inflater.finished() || inflater.needsInput() ||
+							 inflater.needsDictionary())
+						throw new IOException("incomplete block " + block);
+				}
+				count += inflatedCount;
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("invalid block " + block, dfe);
+		} finally {
+			inflater.end();
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		lastBlock = new InflatedBlock(block, buffer);
+		return buffer;
+	}
+
+	/** Reads from the channel until the buffer is full. */
+	private static void readFully(FileChannel channel, long position, ByteBuffer buffer)
+		throws IOException
+	{
+		long next = position;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, next);
+			if (count < 0)
+				throw new IOException("unexpected end of compressed segment");
+			next += count;
+		}
+	}
+
+	/** Writes the whole buffer to the channel. */
+	private static void writeFully(FileChannel channel, long position, ByteBuffer buffer)
+		throws IOException
+	{
+		long next = position;
+		while (buffer.hasRemaining())
+			next += channel.write(buffer, next);
+	}
+
+}
@@ -7,17 +7,30 @@
 
 package net.purpleclay.raft.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 import net.purpleclay.raft.Command;
+import net.purpleclay.raft.SnapshotStateMachine;
 import net.purpleclay.raft.StateMachine;
 
 
 /**
  * Implementation of {@code StateMachine} that delegates to multiple different
  * machines based on command identifiers.
+ * <p>
+ * Snapshots are supported when every delegated machine is a
+ * {@code SnapshotStateMachine}. The snapshot holds each machine's own
+ * snapshot keyed by its command identifier.
  */
-public class DelegatingStateMachine implements StateMachine {
+public class DelegatingStateMachine implements SnapshotStateMachine {
 
 	// the mapping from supported identifiers to state machines
 	private final ConcurrentHashMap<String,StateMachine> machines =
@@ -34,6 +47,46 @@ public class DelegatingStateMachine implements StateMachine {
 		machine.apply(command);
 	}
 
+	/* Implement SnapshotStateMachine */
+
+	@Override public void writeSnapshot(OutputStream out) throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(machines.size());
+
+		for (Map.Entry<String,StateMachine> entry : machines.entrySet()) {
+			ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+			getSnapshotMachine(entry.getValue()).writeSnapshot(snapshot);
+
+			dataOut.writeUTF(entry.getKey());
+			dataOut.writeInt(snapshot.size());
+			snapshot.writeTo(dataOut);
+		}
+
+		dataOut.flush();
+	}
+
+	@Override public void readSnapshot(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+
+		for (int count = dataIn.readInt(); count > 0; count--) {
+			String commandIdentifier = dataIn.readUTF();
+			byte [] snapshot = new byte[dataIn.readInt()];
+			dataIn.readFully(snapshot);
+
+			StateMachine machine = machines.get(commandIdentifier);
+			if (machine == null)
+				throw new IOException("Unknown snapshot identifier: " + commandIdentifier);
+			getSnapshotMachine(machine).readSnapshot(new ByteArrayInputStream(snapshot));
+		}
+	}
+
+	/** Returns the given machine as a snapshot machine, if it is one. */
+	private static SnapshotStateMachine getSnapshotMachine(StateMachine machine) {
+		if (! (machine instanceof SnapshotStateMachine))
+			throw new UnsupportedOperationException("State machine doesn't support snapshots");
+		return (SnapshotStateMachine) machine;
+	}
+
 	/**
 	 * Adds a delegated {@code StateMachine} for the given command identifier.
 	 *
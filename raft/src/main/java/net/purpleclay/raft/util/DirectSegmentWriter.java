@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Writer for the segment at the end of a {@code DurableLog} that bypasses the
+ * page cache, so that log data which is rarely read again doesn't push out
+ * pages that the state machine needs. The segment's file is opened a second
+ * time with the JDK's {@code DIRECT} open option. That option, and the file
+ * channel and file system calls that go with it, are only in newer runtimes,
+ * so they're all found through reflection and this class still loads on the
+ * older runtimes that the project targets.
+ * <p>
+ * Direct writes must start on a block boundary and cover whole blocks, from a
+ * buffer that is itself aligned, so each write is built in a buffer from an
+ * {@code AlignedBufferPool}. It starts with the part of the last block that
+ * was already written, then the new records and the tail marker, and is
+ * padded with zeros to the end of the block. The next write then re-writes
+ * that last block with more data in it.
+ * <p>
+ * The most recently written part of the segment is also kept in memory, in a
+ * ring that's a fixed number of bytes long. That's where the partial block
+ * comes from, and reads of recent entries are served from it too, since
+ * they'd otherwise go to the disk. Reads from earlier in the segment use the
+ * segment's usual channel. Syncing is unchanged, since a sync of the file
+ * covers what was written through either channel.
+ */
+class DirectSegmentWriter {
+
+	// the runtime's path and open option types, if it has them
+	private static final Class<?> PATH = findClass("java.nio.file.Path");
+	private static final Class<?> OPEN_OPTION = findClass("java.nio.file.OpenOption");
+
+	// the methods that open a channel by path and find a file system's
+	// block size, each null if the runtime doesn't have it
+	private static final Method TO_PATH = findMethod(File.class, "toPath");
+	private static final Method OPEN_CHANNEL =
+		findMethod(FileChannel.class, "open", PATH, getArrayClass(OPEN_OPTION));
+	private static final Method GET_FILE_STORE =
+		findMethod(findClass("java.nio.file.Files"), "getFileStore", PATH);
+	private static final Method GET_BLOCK_SIZE =
+		findMethod(findClass("java.nio.file.FileStore"), "getBlockSize");
+
+	// the options that a direct channel is opened with, or null if the
+	// runtime doesn't have the direct I/O option
+	private static final Object OPEN_OPTIONS = findOpenOptions();
+
+	// the channel opened for direct I/O
+	private final FileChannel channel;
+
+	// the pool that write buffers come from, and the alignment they need
+	private final AlignedBufferPool pool;
+	private final long blockMask;
+
+	// the recent tail of the segment, where position p is kept at index
+	// p % length, and the range of the segment that's currently held, with
+	// an end of -1 when nothing is held
+	private final byte [] cache;
+	private long cacheStart = 0L;
+	private long cacheEnd = -1L;
+
+	/** Creates an instance of {@code DirectSegmentWriter}. */
+	private DirectSegmentWriter(FileChannel channel, AlignedBufferPool pool, int cacheSize) {
+		this.channel = channel;
+		this.pool = pool;
+		this.blockMask = pool.getBlockSize() - 1;
+		this.cache = new byte[cacheSize];
+	}
+
+	/**
+	 * Returns whether the runtime supports direct I/O and aligned buffers.
+	 *
+	 * @return {@code true} if direct writes can be used {@code false} otherwise
+	 */
+	static boolean isSupported() {
+		return (TO_PATH != null) && (OPEN_CHANNEL != null) && (OPEN_OPTIONS != null) &&
+			AlignedBufferPool.isSupported();
+	}
+
+	/**
+	 * Returns the block size of the file system holding the given file, which
+	 * is the alignment that direct I/O needs there.
+	 *
+	 * @param file a file or directory
+	 *
+	 * @return the block size in bytes, or -1 if it isn't known
+	 */
+	static int getBlockSize(File file) {
+		if ((TO_PATH == null) || (GET_FILE_STORE == null) || (GET_BLOCK_SIZE == null))
+			return -1;
+
+		try {
+			Object store = GET_FILE_STORE.invoke(null, TO_PATH.invoke(file));
+			return (int) ((Long) GET_BLOCK_SIZE.invoke(store)).longValue();
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Opens a writer for the given segment file.
+	 *
+	 * @param file the segment's file
+	 * @param pool the {@code AlignedBufferPool} that write buffers come from
+	 * @param cacheSize the number of recently written bytes to keep, which
+	 *                  must be at least the pool's buffer size
+	 *
+	 * @return a new {@code DirectSegmentWriter}
+	 *
+	 * @throws IOException if the file can't be opened for direct I/O
+	 */
+	static DirectSegmentWriter open(File file, AlignedBufferPool pool, int cacheSize)
+		throws IOException
+	{
+		if (! isSupported())
+			throw new IOException("direct I/O is not supported");
+		if (cacheSize < pool.getBufferSize())
+			throw new IllegalArgumentException("invalid cache size: " + cacheSize);
+
+		FileChannel channel;
+		try {
+			channel = (FileChannel) OPEN_CHANNEL.invoke(null, TO_PATH.invoke(file), OPEN_OPTIONS);
+		} catch (InvocationTargetException ite) {
+			// the file system may not support direct I/O, which is also
+			// reported as a failure to open
+			if (ite.getCause() instanceof IOException)
+				throw (IOException) ite.getCause();
+			throw new IOException("failed to open " + file + " for direct I/O", ite.getCause());
+		} catch (IllegalAccessException iae) {
+			throw new IOException("failed to open " + file + " for direct I/O", iae);
+		}
+		return new DirectSegmentWriter(channel, pool, cacheSize);
+	}
+
+	/**
+	 * Writes the given records at the given position, followed by the tail
+	 * marker, and keeps the records in memory. Anything written before at or
+	 * after the position is replaced.
+	 *
+	 * @param data the encoded records to write
+	 * @param marker the tail marker
+	 * @param position the position in the segment to write at
+	 *
+	 * @throws IOException if the write fails
+	 */
+	void write(ByteBuffer data, ByteBuffer marker, long position) throws IOException {
+		int markerLength = marker.remaining();
+		ByteBuffer buffer = pool.acquire();
+		try {
+			// each buffer takes a partial block, some records and maybe the
+			// tail marker, but the marker is always in the last
+			int chunkLimit = pool.getBufferSize() - (int) blockMask - 1 - markerLength;
+			long next = position;
+			do {
+				long writeStart = next & ~blockMask;
+				int length = Math.min(data.remaining(), chunkLimit);
+				synchronized (this) {
+					if ((cacheEnd < next) || (writeStart < getCachedStart()))
+						loadBlock(writeStart, next, buffer);
+
+					cacheEnd = next;
+					putCache(data, length);
+					buffer.clear();
+					getCache(writeStart, (int) (next - writeStart) + length, buffer);
+				}
+				next += length;
+
+				if (! data.hasRemaining())
+					buffer.put(marker.duplicate());
+				while ((buffer.position() & blockMask) != 0)
+					buffer.put((byte) 0);
+				buffer.flip();
+
+				long writePosition = writeStart;
+				while (buffer.hasRemaining())
+					writePosition += channel.write(buffer, writePosition);
+			} while (data.hasRemaining());
+		} finally {
+			pool.release(buffer);
+		}
+	}
+
+	/**
+	 * Reads recently written data, if it's still held in memory.
+	 *
+	 * @param position the position in the segment to start reading from
+	 * @param buffer the buffer to fill
+	 *
+	 * @return {@code true} if the buffer was filled {@code false} if the range
+	 *         isn't held in memory, in which case the buffer isn't changed
+	 */
+	synchronized boolean read(long position, ByteBuffer buffer) {
+		if ((position < getCachedStart()) || (position + buffer.remaining() > cacheEnd))
+			return false;
+
+		getCache(position, buffer.remaining(), buffer);
+		return true;
+	}
+
+	/**
+	 * Drops anything held in memory from the given position onward, for
+	 * when the segment is truncated.
+	 *
+	 * @param position the new end of the segment
+	 */
+	synchronized void truncate(long position) {
+		if (cacheEnd <= position)
+			return;
+
+		cacheEnd = position;
+		if (cacheEnd < getCachedStart())
+			cacheEnd = -1L;
+	}
+
+	/** Closes the direct channel, ignoring any errors. */
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException ioe) { }
+	}
+
+	/** Returns the first position that's held in memory. */
+	private long getCachedStart() {
+		if (cacheEnd < 0L)
+			return Long.MAX_VALUE;
+		return Math.max(cacheStart, cacheEnd - cache.length);
+	}
+
+	/**
+	 * Reads the start of a block from the file into memory, which is the
+	 * part that the next write has to include. Direct reads have the same
+	 * alignment rules as writes, so the whole block is read.
+	 */
+	private void loadBlock(long blockStart, long end, ByteBuffer buffer) throws IOException {
+		int length = (int) (end - blockStart);
+		buffer.clear();
+		buffer.limit((int) blockMask + 1);
+		while (buffer.position() < length) {
+			if (channel.read(buffer, blockStart + buffer.position()) <= 0)
+				throw new IOException("unexpected end of segment at " + blockStart);
+		}
+
+		buffer.flip();
+		cacheStart = blockStart;
+		cacheEnd = blockStart;
+		putCache(buffer, length);
+	}
+
+	/** Copies bytes from the buffer to the end of the ring. */
+	private void putCache(ByteBuffer source, int length) {
+		int remaining = length;
+		while (remaining > 0) {
+			int offset = (int) (cacheEnd % cache.length);
+			int count = Math.min(remaining, cache.length - offset);
+			source.get(cache, offset, count);
+			cacheEnd += count;
+			remaining -= count;
+		}
+	}
+
+	/** Copies bytes from the ring, starting at the given position. */
+	private void getCache(long position, int length, ByteBuffer target) {
+		long next = position;
+		int remaining = length;
+		while (remaining > 0) {
+			int offset = (int) (next % cache.length);
+			int count = Math.min(remaining, cache.length - offset);
+			target.put(cache, offset, count);
+			next += count;
+			remaining -= count;
+		}
+	}
+
+	/**
+	 * Builds the array of options for opening a direct channel, for reading,
+	 * writing and direct I/O, or returns null if any of them is missing.
+	 */
+	private static Object findOpenOptions() {
+		Class<?> standard = findClass("java.nio.file.StandardOpenOption");
+		Class<?> extended = findClass("com.sun.nio.file.ExtendedOpenOption");
+		if ((OPEN_OPTION == null) || (standard == null) || (extended == null))
+			return null;
+
+		Object [] found = { findConstant(standard, "READ"), findConstant(standard, "WRITE"),
+							findConstant(extended, "DIRECT") };
+		Object options = Array.newInstance(OPEN_OPTION, found.length);
+		for (int i = 0; i < found.length; i++) {
+			if (found[i] == null)
+				return null;
+			Array.set(options, i, found[i]);
+		}
+		return options;
+	}
+
+	/** Finds the named constant of an enum, or null if there is none. */
+	private static Object findConstant(Class<?> type, String name) {
+		for (Object constant : type.getEnumConstants()) {
+			if (name.equals(((Enum<?>) constant).name()))
+				return constant;
+		}
+		return null;
+	}
+
+	/** Finds the named class, or null if the runtime doesn't have it. */
+	private static Class<?> findClass(String name) {
+		try {
+			return Class.forName(name);
+		} catch (ClassNotFoundException cnfe) {
+			return null;
+		}
+	}
+
+	/** Returns the array type for the given type, or null if it's null. */
+	private static Class<?> getArrayClass(Class<?> type) {
+		return (type == null) ? null : Array.newInstance(type, 0).getClass();
+	}
+
+	/**
+	 * Finds a public method, looked up on the type that declares it so that
+	 * it can be called on any implementation, or returns null if the type,
+	 * a parameter type or the method is missing.
+	 */
+	private static Method findMethod(Class<?> type, String name, Class<?> ... params) {
+		if (type == null)
+			return null;
+		for (Class<?> param : params) {
+			if (param == null)
+				return null;
+		}
+
+		try {
+			return type.getMethod(name, params);
+		} catch (NoSuchMethodException nsme) {
+			return null;
+		}
+	}
+
+}
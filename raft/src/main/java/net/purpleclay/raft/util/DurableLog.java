@@ -8,37 +8,65 @@
 package net.purpleclay.raft.util;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import net.purpleclay.raft.Command;
-import net.purpleclay.raft.Log;
+import net.purpleclay.raft.DurabilityListener;
+import net.purpleclay.raft.LogCursor;
+import net.purpleclay.raft.LogRecords;
+import net.purpleclay.raft.RecordLog;
+import net.purpleclay.raft.SnapshotStateMachine;
+import net.purpleclay.raft.StateLog;
 import net.purpleclay.raft.StateMachine;
 
 
 /**
- * A basic {@code Log} implementation that writes all commands to a local
- * file. This class makes no attempt at compaction or other optimizations. It
- * is provided as a simple, correct version supporting the RAFT logic.
+ * A basic {@code Log} implementation that writes all commands to local
+ * files. It is provided as a simple, correct version supporting the RAFT
+ * logic. Commands are written to a sequence of segment files, with only the
+ * position and term of each entry kept in memory, and the log can be
+ * compacted when its state machine is a {@code SnapshotStateMachine}. As a
+ * {@code RecordLog} it exchanges records with other instances as they are,
+ * and as a {@code StateLog} it keeps a server's term and vote among its
+ * entries.
  * <p>
  * The {@code LOG_DIR_PROPERTY} property must be set to the root directory for
  * the log. The directory will be created if it doesn't exist (when the parent
  * directory does). If there is an existing log in the directory then this will
  * be read and re-played into the state machines up to the last known index
- * applied (committed).
+ * applied (committed). All of the other properties are optional.
  */
-public class DurableLog implements Log {
+public class DurableLog implements RecordLog, StateLog {
 
-	// the current version for on-disk state
-	private static final long CURRENT_VERSION = 1L;
+	/** The policies for when appended entries are synced to disk. */
+	public enum Durability {
+		/** Sync every append before it returns. */
+		SYNC,
+		/** Sync in the background every {@code SYNC_INTERVAL_PROPERTY} ms. */
+		INTERVAL,
+		/**
+		 * Sync once {@code SYNC_ENTRIES_PROPERTY} entries or
+		 * {@code SYNC_BYTES_PROPERTY} bytes have been written since the last
+		 * sync, and in the background after {@code SYNC_INTERVAL_PROPERTY} ms
+		 * for a batch that isn't filled.
+		 */
+		BATCH,
+		/**
+		 * Never sync appends, leaving it to the operating system, and treat
+		 * every written entry as durable.
+		 */
+		BUFFERED
+	}
 
 	// base string for all properties used by this class
 	private static final String PROP_BASE = DurableLog.class.getName() + ".";
@@ -46,29 +74,185 @@ public class DurableLog implements Log {
 	/** Property key defining where the log is stored. */
 	public static final String LOG_DIR_PROPERTY = PROP_BASE + "logDir";
 
-	/** File name for the command data stored in the log directory. */
+	/** Property key defining the size at which a new segment is started. */
+	public static final String SEGMENT_SIZE_PROPERTY = PROP_BASE + "segmentSize";
+
+	/** Default segment size, which must be no larger than 2GB. */
+	public static final String DEFAULT_SEGMENT_SIZE = String.valueOf(64L * 1024L * 1024L);
+
+	/** Property key defining whether segment files are preallocated. */
+	public static final String PREALLOCATE_PROPERTY = PROP_BASE + "preallocate";
+
+	/** Property key defining the {@code Durability} mode, by name. */
+	public static final String DURABILITY_PROPERTY = PROP_BASE + "durability";
+
+	/** Property key defining the background sync interval in milliseconds. */
+	public static final String SYNC_INTERVAL_PROPERTY = PROP_BASE + "syncInterval";
+
+	/** Property key defining how many entries are written between syncs. */
+	public static final String SYNC_ENTRIES_PROPERTY = PROP_BASE + "syncEntries";
+
+	/** Property key defining how many bytes are written between syncs. */
+	public static final String SYNC_BYTES_PROPERTY = PROP_BASE + "syncBytes";
+
+	/** Default background sync interval. */
+	public static final String DEFAULT_SYNC_INTERVAL = "10";
+
+	/** Default number of entries written between syncs. */
+	public static final String DEFAULT_SYNC_ENTRIES = "1000";
+
+	/** Default number of bytes written between syncs. */
+	public static final String DEFAULT_SYNC_BYTES = String.valueOf(1024 * 1024);
+
+	/** Property key defining whether segments are written with direct I/O. */
+	public static final String DIRECT_IO_PROPERTY = PROP_BASE + "directIO";
+
+	/** Property key defining the block size that direct writes align to. */
+	public static final String DIRECT_BLOCK_SIZE_PROPERTY = PROP_BASE + "directBlockSize";
+
+	/** Property key defining how many written bytes direct writes keep. */
+	public static final String TAIL_CACHE_SIZE_PROPERTY = PROP_BASE + "tailCacheSize";
+
+	/** Default number of written bytes kept in memory by direct writes. */
+	public static final String DEFAULT_TAIL_CACHE_SIZE = String.valueOf(1024 * 1024);
+
+	/** Property key defining whether sealed segments are compressed. */
+	public static final String COMPRESSION_PROPERTY = PROP_BASE + "compress";
+
+	/** Property key defining the size of each block of a compressed segment. */
+	public static final String COMPRESSION_BLOCK_SIZE_PROPERTY = PROP_BASE + "compressionBlockSize";
+
+	/** Default size of each block of a compressed segment. */
+	public static final String DEFAULT_COMPRESSION_BLOCK_SIZE = String.valueOf(64 * 1024);
+
+	/** Property key defining whether segments are compressed with a dictionary. */
+	public static final String COMPRESSION_DICTIONARY_PROPERTY =
+		PROP_BASE + "compressionDictionary";
+
+	/** Property key defining how many bytes of recent entries are cached. */
+	public static final String ENTRY_CACHE_SIZE_PROPERTY = PROP_BASE + "entryCacheSize";
+
+	/** Default number of bytes of recent entries that are cached. */
+	public static final String DEFAULT_ENTRY_CACHE_SIZE = String.valueOf(8 * 1024 * 1024);
+
+	/** Property key defining whether concurrent appends are synced together. */
+	public static final String GROUP_COMMIT_PROPERTY = PROP_BASE + "groupCommit";
+
+	/** Property key defining whether sealed segments are indexed on disk. */
+	public static final String SEGMENT_INDEX_PROPERTY = PROP_BASE + "segmentIndex";
+
+	/**
+	 * Property key defining how many threads check segments on load, by
+	 * default the number of available processors.
+	 */
+	public static final String VERIFY_THREADS_PROPERTY = PROP_BASE + "verifyThreads";
+
+	/**
+	 * Property key defining how many threads decode commands for re-play, by
+	 * default the number of available processors. A value of 1 applies every
+	 * command on the calling thread.
+	 */
+	public static final String REPLAY_THREADS_PROPERTY = PROP_BASE + "replayThreads";
+
+	/**
+	 * Property key defining how many applied entries trigger a snapshot, by
+	 * default 0, meaning that the log only compacts when {@code compact} is
+	 * called.
+	 */
+	public static final String SNAPSHOT_INTERVAL_PROPERTY = PROP_BASE + "snapshotInterval";
+
+	/** Base file name for the command segments stored in the log directory. */
 	public static final String COMMAND_FILE = "commands";
 
-	// the File used to access the log command data
-	private final RandomAccessFile commandFile;
+	/** Base file name for the index of each sealed segment in the log directory. */
+	public static final String SEGMENT_INDEX_FILE = "index";
+
+	/** File name for the latest snapshot stored in the log directory. */
+	public static final String SNAPSHOT_FILE = "snapshot";
+
+	/** File name for the point that the log is being truncated from. */
+	public static final String TRUNCATION_FILE = "truncation";
+
+	// the number of entries written at once when importing the original format
+	private static final int IMPORT_BATCH_SIZE = 1024;
+
+	// the fewest entries that are worth re-playing in parallel
+	private static final int MIN_REPLAY_ENTRIES = 1024;
+
+	// the directory containing all segments
+	private final File logDir;
+
+	// the segments holding every entry, and the latest snapshot
+	private final SegmentList segments;
+	private final SnapshotFile snapshotFile;
+
+	// the most recently written entries, encoded and decoded
+	private final EntryCache entryCache;
+
+	// the codecs for encoding commands, where available
+	private final CommandCodecRegistry codecs;
 
-	// a single read-buffer used on re-start or re-wind to access data on disk
-	private final byte [] readBuffer = new byte[Short.MAX_VALUE];
+	// the buffer that records are encoded into before they're written
+	private final RecordWriter writer;
 
-	// a single buffer used to write commands to disk
-	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(Short.MAX_VALUE);
+	// the collector of concurrent appends, if appends are group committed
+	private final GroupCommitter groupCommitter;
 
-	// basic collection that contains all entries
-	private final List<LogEntry> entries = new ArrayList<LogEntry>();
+	// when entries are synced, and the thresholds for batched syncs
+	private final Durability durability;
+	private final long syncEntries;
+	private final long syncBytes;
+
+	// the entries & bytes written since the last sync, for batched syncs
+	private long unsyncedEntries = 0L;
+	private long unsyncedBytes = 0L;
+
+	// the last index written and the last index known to be durable
+	private volatile long writtenIndex = 0L;
+	private volatile long durableIndex = 0L;
+
+	// told when a background sync moves the durable index
+	private volatile DurabilityListener durabilityListener = null;
+
+	// a count of the times that written entries were discarded, so that a
+	// background sync can tell if the entries it synced are still valid
+	private long discardGeneration = 0L;
+
+	// the latest server state recorded, if any, and the number of state
+	// records that have been written and that are known to be synced
+	private volatile long stateTerm = NO_STATE;
+	private volatile long stateVote = -1L;
+	private long stateWritten = 0L;
+	private long stateSynced = 0L;
+
+	// the thread that syncs in the background, for the modes that need it
+	private final ScheduledExecutorService syncExecutor;
+
+	// the position & term of all entries
+	private final EntryIndex entries = new EntryIndex();
 
 	// the state machine that will consume all applied commands
 	private final StateMachine stateMachine;
 
+	// lock that orders all calls into the state machine
+	private final Object applyLock = new Object();
+
 	// the current commit index
 	private volatile long commitIndex = 0L;
 
+	// the number of applied entries after which a snapshot is taken
+	private final long snapshotInterval;
+
+	// the parallel re-play of large ranges, if there's more than one thread
+	private final LogReplay replay;
+
+	// the index & term of the last entry covered by the latest snapshot
+	private volatile long snapshotIndex = 0L;
+	private volatile long snapshotTerm = 0L;
+
 	/**
 	 * Creates an instance of {@code DurableLog} based on the given properties.
+	 * All commands are encoded using Java serialization.
 	 *
 	 * @param properties the {@code Properties} defining this log's configuration
 	 * @param stateMachine the {@code StateMachine} that consumes all commands
@@ -78,8 +262,31 @@ public class DurableLog implements Log {
 	 */
 	public DurableLog(Properties properties, StateMachine stateMachine)
 		throws IOException
+	{
+		this(properties, stateMachine, new CommandCodecRegistry());
+	}
+
+	/**
+	 * Creates an instance of {@code DurableLog} based on the given properties,
+	 * encoding commands with the given codecs. Commands with no registered
+	 * codec fall back to Java serialization, so they must be
+	 * {@code Serializable}, and the codecs used to write a log must also be
+	 * registered when it is re-loaded.
+	 *
+	 * @param properties the {@code Properties} defining this log's configuration
+	 * @param stateMachine the {@code StateMachine} that consumes all commands
+	 * @param codecs the {@code CommandCodecRegistry} used to encode commands
+	 *
+	 * @throws IOException if there is any trouble initializing or accessing
+	 *                     the on-disk log data
+	 */
+	public DurableLog(Properties properties, StateMachine stateMachine,
+					  CommandCodecRegistry codecs)
+		throws IOException
 	{
 		this.stateMachine = stateMachine;
+		this.codecs = codecs;
+		this.writer = new RecordWriter(codecs);
 
 		// check that a log directory was specified and is valid
 
@@ -87,30 +294,115 @@ public class DurableLog implements Log {
 		if (logPath == null)
 			throw new IllegalArgumentException("missing base directory");
 
-		File logDir = FileUtil.validateDirectory(logPath);
+		this.logDir = FileUtil.validateDirectory(logPath);
+		this.segments = new SegmentList(logDir, properties, entries, this);
+		this.snapshotFile = new SnapshotFile(logDir);
 
-		// either load an existing log or create a new one if no log is found
+		this.entryCache = new EntryCache(Long.parseLong(
+			properties.getProperty(ENTRY_CACHE_SIZE_PROPERTY, DEFAULT_ENTRY_CACHE_SIZE)));
+
+		this.groupCommitter =
+			Boolean.parseBoolean(properties.getProperty(GROUP_COMMIT_PROPERTY, "false")) ?
+			new GroupCommitter(new GroupCommitter.Writer() {
+					public long getNextIndex() {
+						return entries.getNextIndex();
+					}
+					public long getLastTerm() {
+						return DurableLog.this.getLastTerm();
+					}
+					public void write(List<LogEntry> batch) throws IOException {
+						writeEntries(batch);
+					}
+					public void add(LogEntry entry) {
+						addEntry(entry);
+					}
+				}) : null;
+
+		this.durability = Durability.valueOf(
+			properties.getProperty(DURABILITY_PROPERTY, Durability.SYNC.name()).toUpperCase());
+		this.syncEntries =
+			Long.parseLong(properties.getProperty(SYNC_ENTRIES_PROPERTY, DEFAULT_SYNC_ENTRIES));
+		this.syncBytes =
+			Long.parseLong(properties.getProperty(SYNC_BYTES_PROPERTY, DEFAULT_SYNC_BYTES));
+		long syncInterval =
+			Long.parseLong(properties.getProperty(SYNC_INTERVAL_PROPERTY, DEFAULT_SYNC_INTERVAL));
+		if ((syncEntries < 1L) || (syncBytes < 1L) || (syncInterval < 1L))
+			throw new IllegalArgumentException("sync thresholds must be positive");
+
+		this.snapshotInterval =
+			Long.parseLong(properties.getProperty(SNAPSHOT_INTERVAL_PROPERTY, "0"));
+
+		int verifyThreads = Integer.parseInt(properties.getProperty(VERIFY_THREADS_PROPERTY,
+			String.valueOf(Runtime.getRuntime().availableProcessors())));
+		if (verifyThreads < 1)
+			throw new IllegalArgumentException("invalid verify threads: " + verifyThreads);
+
+		int replayThreads = Integer.parseInt(properties.getProperty(REPLAY_THREADS_PROPERTY,
+			String.valueOf(Runtime.getRuntime().availableProcessors())));
+		if (replayThreads < 1)
+			throw new IllegalArgumentException("invalid replay threads: " + replayThreads);
+		this.replay = (replayThreads > 1) ?
+			new LogReplay(segments, codecs, stateMachine, replayThreads) : null;
+
+		// the original format kept everything in a single, un-segmented file,
+		// and any segments alongside it are from an interrupted import
+		File legacyFile = new File(logDir, COMMAND_FILE);
+		boolean importLegacy = legacyFile.exists();
+		if (importLegacy)
+			LegacyLogReader.removeInterruptedImport(logDir);
 
-		File file = new File(logDir, COMMAND_FILE);
-		boolean logExists = file.exists();
-		this.commandFile = new RandomAccessFile(file, "rw");
+		// either load an existing log or create a new one if no log is found
 
-		if (logExists) {
-			long version = commandFile.readLong();
-			if (version != CURRENT_VERSION)
-				throw new IOException("invalid log version: " + version);
+		boolean snapshotExists = loadSnapshot();
+		List<SegmentScan> scans = segments.load(verifyThreads);
 
-			LogEntry entry = readEntry();
-			while (entry != null) {
-				entries.add(entry);
-				entry = readEntry();
+		if ((scans != null) || snapshotExists) {
+			if (scans != null) {
+				for (int i = 0; i < scans.size(); i++)
+					addScannedEntries(segments.get(i), scans.get(i));
 			}
+			finishTruncation();
+			reconcileWithSnapshot();
 		} else {
-			commandFile.writeLong(CURRENT_VERSION);
+			segments.start(0L);
+		}
 
+		// a new log starts with an empty entry, which may not have been
+		// written if the log was interrupted while it was created
+		if (entries.getNextIndex() == 0L) {
 			LogEntry entry = new LogEntry(0L, 0L, null);
-			writeEntry(entry);
-			entries.add(entry);
+			writeEntries(Collections.singletonList(entry));
+			entries.add(entry.position, entry.term);
+		}
+
+		if (importLegacy)
+			importLegacyLog(legacyFile);
+
+		// anything that was loaded is synced now, so it all starts out durable
+		segments.getTail().force();
+		unsyncedEntries = 0L;
+		unsyncedBytes = 0L;
+		writtenIndex = getLastIndex();
+		durableIndex = writtenIndex;
+
+		segments.prepareNext();
+		segments.compressSealed();
+
+		if ((durability == Durability.INTERVAL) || (durability == Durability.BATCH)) {
+			syncExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "DurableLog syncer");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			syncExecutor.scheduleWithFixedDelay(new Runnable() {
+					public void run() {
+						syncWritten();
+					}
+				}, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+		} else {
+			syncExecutor = null;
 		}
 	}
 
@@ -118,9 +410,29 @@ public class DurableLog implements Log {
 	 * TODO: this should probably be part of the interface..
 	 */
 	public void shutdown() {
-		try {
-			commandFile.close();
-		} catch (IOException ioe) { }
+		if (syncExecutor != null)
+			syncExecutor.shutdownNow();
+		segments.shutdown();
+	}
+
+	/**
+	 * Returns the number of reads that found their entry in the cache of
+	 * recent entries.
+	 *
+	 * @return the cache hit count
+	 */
+	public long getEntryCacheHits() {
+		return entryCache.getHits();
+	}
+
+	/**
+	 * Returns the number of reads that didn't find their entry in the cache
+	 * of recent entries.
+	 *
+	 * @return the cache miss count
+	 */
+	public long getEntryCacheMisses() {
+		return entryCache.getMisses();
 	}
 
 	/* Implement Log */
@@ -130,31 +442,94 @@ public class DurableLog implements Log {
 	}
 
 	@Override public long getLastIndex() {
-		return entries.size() - 1;
+		return entries.getNextIndex() - 1;
 	}
 
 	@Override public long getLastTerm() {
-		return entries.get((int) getLastIndex()).term;
+		return getTerm(getLastIndex());
+	}
+
+	@Override public long getDurableIndex() {
+		return Math.min(durableIndex, getLastIndex());
+	}
+
+	@Override public void setDurabilityListener(DurabilityListener listener) {
+		durabilityListener = listener;
+	}
+
+	@Override public synchronized void appendState(long term, long votedId) {
+		try {
+			writeState(term, votedId);
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to write to log", ioe);
+		}
+	}
+
+	@Override public void syncState() {
+		long written;
+		LogSegment segment;
+		synchronized (this) {
+			if (stateSynced >= stateWritten)
+				return;
+			written = stateWritten;
+			segment = segments.getTail();
+		}
+
+		// a segment that was rolled since was synced when it was sealed
+		try {
+			segment.force();
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to sync log", ioe);
+		}
+
+		synchronized (this) {
+			if (written > stateSynced)
+				stateSynced = written;
+		}
+	}
+
+	@Override public long getStateTerm() {
+		return stateTerm;
+	}
+
+	@Override public long getStateVote() {
+		return stateVote;
 	}
 
 	@Override public boolean hasEntry(long index, long term) {
-		if ((index < 0) || (index >= entries.size()))
-			return false;
-		return entries.get((int) index).term == term;
+		if (isIndexed(index)) {
+			try {
+				return entries.getTerm(index) == term;
+			} catch (IndexOutOfBoundsException ioobe) {
+				// the entry was discarded by a compaction during the read
+			}
+		}
+		return (index == snapshotIndex) && (term == snapshotTerm);
 	}
 
 	@Override public long getTerm(long index) {
-		if ((index < 0) || (index >= entries.size()))
-			throw new IllegalArgumentException("Invalid log index: " + index);
-		return entries.get((int) index).term;
+		if (isIndexed(index)) {
+			try {
+				return entries.getTerm(index);
+			} catch (IndexOutOfBoundsException ioobe) {
+				// the entry was discarded by a compaction during the read
+			}
+		}
+		if (index == snapshotIndex)
+			return snapshotTerm;
+		throw new IllegalArgumentException("Invalid log index: " + index);
 	}
 
 	@Override public synchronized void validateEntry(long index, long term) {
-		if (index >= entries.size())
+		// entries that were compacted were committed, so they're valid
+		if ((index >= entries.getNextIndex()) || (index < entries.getFirstIndex()))
 			return;
 
-		LogEntry entry = entries.get((int) index);
-		if (entry.term == term)
+		if (entries.getTerm(index) == term)
 			return;
 
 		// TODO: what if the validation fails but the given index is earlier
@@ -165,33 +540,50 @@ public class DurableLog implements Log {
 		// in-memory cache
 
 		try {
-			pruneFromEntry(entry);
+			pruneFromIndex(index);
 		} catch (IOException ioe) {
 			// TODO: this is a fatal error .. how do we signal that?
 			System.out.println(ioe.getMessage());
 			throw new RuntimeException("Failed to re-wind log", ioe);
 		}
 
-		for (int count = entries.size() - (int)index; count > 0; count--)
-			entries.remove(index);
+		entries.truncate(index);
+		entryCache.removeFrom(index);
+		discardWrittenAfter(index - 1);
 	}
 
 	@Override public void append(Command command, long term) {
+		append(new Command [] { command }, term);
+	}
+
+	@Override public void append(Command [] commands, long term) {
+		if (commands.length == 0)
+			return;
+
+		if (groupCommitter != null) {
+			groupCommitter.append(commands, term);
+			return;
+		}
+
 		// TODO: what should happen if the term is less than the last term?
 		if (term < getLastTerm())
 			throw new IllegalArgumentException("Invalid term");
 
-		LogEntry entry = new LogEntry(entries.size(), term, command);
+		List<LogEntry> batch = new ArrayList<LogEntry>(commands.length);
+		long index = entries.getNextIndex();
+		for (Command command : commands)
+			batch.add(new LogEntry(index++, term, command));
 
 		try {
-			writeEntry(entry);
+			writeEntries(batch);
 		} catch (IOException ioe) {
 			// TODO: this is a fatal error .. how do we signal that?
 			System.out.println(ioe.getMessage());
 			throw new RuntimeException("Failed to write to log", ioe);
 		}
 
-		entries.add(entry);
+		for (LogEntry entry : batch)
+			addEntry(entry);
 	}
 
 	@Override public void applied(long appliedIndex) {
@@ -202,106 +594,648 @@ public class DurableLog implements Log {
 		// Does this mean that a bug has been exposed, or is it just that
 		// consensus was reached before we heard about some command(s)?
 
-		for (long i = commitIndex + 1; i <= appliedIndex; i++)
-			stateMachine.apply(entries.get((int) i).command);
+		synchronized (applyLock) {
+			long lastIndex = Math.min(appliedIndex, getLastIndex());
+			if ((replay != null) && (lastIndex - commitIndex >= MIN_REPLAY_ENTRIES)) {
+				replay.apply(commitIndex + 1, lastIndex);
+			} else {
+				for (long i = commitIndex + 1; i <= lastIndex; i++)
+					stateMachine.apply(getCommand(i));
+			}
+
+			commitIndex = Math.max(commitIndex, lastIndex);
+		}
+
+		if ((snapshotInterval > 0L) && (commitIndex - snapshotIndex >= snapshotInterval) &&
+			(stateMachine instanceof SnapshotStateMachine))
+		{
+			try {
+				compact();
+			} catch (RuntimeException re) {
+				// TODO: log this case .. the log is still correct, just larger
+				System.out.println("WARNING: failed to compact log: " + re.getMessage());
+			}
+		}
+	}
 
-		commitIndex = Math.min(appliedIndex, getLastIndex());
+	@Override public long getSnapshotIndex() {
+		return snapshotIndex;
+	}
+
+	@Override public long compact() {
+		if (! (stateMachine instanceof SnapshotStateMachine))
+			throw new UnsupportedOperationException("State machine doesn't support snapshots");
+
+		synchronized (applyLock) {
+			long index = commitIndex;
+			if (index == snapshotIndex)
+				return index;
+
+			long term = getTerm(index);
+
+			try {
+				snapshotFile.write(index, term, null, (SnapshotStateMachine) stateMachine);
+				snapshotIndex = index;
+				snapshotTerm = term;
+				reconcileWithSnapshot();
+			} catch (IOException ioe) {
+				// the previous snapshot is still intact, so this isn't fatal
+				throw new RuntimeException("Failed to compact log", ioe);
+			}
+
+			return index;
+		}
+	}
+
+	@Override public byte [] getSnapshot() {
+		try {
+			return snapshotFile.read();
+		} catch (IOException ioe) {
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to read snapshot", ioe);
+		}
+	}
+
+	@Override public void installSnapshot(long index, long term, byte [] snapshot) {
+		if (! (stateMachine instanceof SnapshotStateMachine))
+			throw new UnsupportedOperationException("State machine doesn't support snapshots");
+
+		synchronized (applyLock) {
+			// everything in the snapshot has already been applied
+			if (index <= commitIndex)
+				return;
+
+			try {
+				snapshotFile.write(index, term, snapshot, null);
+				((SnapshotStateMachine) stateMachine).
+					readSnapshot(new ByteArrayInputStream(snapshot));
+				snapshotIndex = index;
+				snapshotTerm = term;
+				reconcileWithSnapshot();
+			} catch (IOException ioe) {
+				// TODO: this is a fatal error .. how do we signal that?
+				System.out.println(ioe.getMessage());
+				throw new RuntimeException("Failed to install snapshot", ioe);
+			}
+
+			commitIndex = index;
+		}
 	}
 
 	@Override public Command [] getEntries(long startingIndex) {
-		if ((startingIndex < 1) || (startingIndex >= entries.size()))
+		if ((startingIndex < 1) || (startingIndex >= entries.getNextIndex()))
 			return new Command[0];
+		if (startingIndex < entries.getFirstIndex())
+			throw new IllegalArgumentException("Log index was compacted: " + startingIndex);
 
-		Command [] commandArray = new Command[entries.size() - (int) startingIndex];
+		Command [] commandArray = new Command[(int) (entries.getNextIndex() - startingIndex)];
 		for (int i = 0; i < commandArray.length; i++)
-			commandArray[i] = entries.get((int) startingIndex + i).command;
+			commandArray[i] = getCommand(startingIndex + i);
 
 		return commandArray;
 	}
 
-	/** Simple wrapper for entry details. */
-	private static class LogEntry {
-		volatile long position;
-		final long index;
-		final long term;
-		final Command command;
-		LogEntry(long index, long term, Command command) {
-			this(0L, index, term, command);
+	@Override public LogCursor getCursor(long startingIndex, int maxEntries, long maxBytes) {
+		if ((startingIndex < 1) || (maxEntries < 1) || (maxBytes < 1L))
+			throw new IllegalArgumentException("Invalid cursor range");
+		if (startingIndex < entries.getFirstIndex())
+			throw new IllegalArgumentException("Log index was compacted: " + startingIndex);
+
+		return new SegmentCursor(entries, entryCache, segments, codecs, startingIndex,
+								 maxEntries, maxBytes);
+	}
+
+	/* Implement RecordLog */
+
+	/**
+	 * Returns a range of records straight from a segment file. A range of
+	 * records never spans more than one segment.
+	 */
+	@Override public synchronized LogRecords getRecords(long startingIndex, int maxEntries,
+														long maxBytes)
+	{
+		if ((startingIndex < 1) || (maxEntries < 1) || (maxBytes < 1L))
+			throw new IllegalArgumentException("Invalid record range");
+		if (startingIndex < entries.getFirstIndex())
+			throw new IllegalArgumentException("Log index was compacted: " + startingIndex);
+		if (startingIndex >= entries.getNextIndex())
+			return new SegmentRecords(null, 0L, 0L, startingIndex, 0);
+
+		try {
+			return segments.getRecords(startingIndex, maxEntries, maxBytes);
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to read from log", ioe);
+		}
+	}
+
+	/**
+	 * Takes records from another {@code DurableLog}, checking their checksums
+	 * and writing them as they are. State records are dropped, since that
+	 * log's state belongs to another server.
+	 */
+	@Override public synchronized void appendRecords(LogRecords records) {
+		if (records.getEntryCount() == 0)
+			return;
+		if (records.getFirstIndex() > entries.getNextIndex())
+			throw new IllegalArgumentException("Records start past the end of the log: " +
+											   records.getFirstIndex());
+
+		ByteBuffer data = null;
+		try {
+			data = records.getBuffer().slice();
+		} catch (IOException ioe) {
+			throw new IllegalArgumentException("Failed to read records", ioe);
+		}
+
+		// check every record before anything is written, and note where the
+		// entries that aren't already in the log start
+
+		int count = records.getEntryCount();
+		int [] positions = new int[count];
+		int [] ends = new int[count];
+		long [] terms = new long[count];
+		int firstNew = count;
+		int found = 0;
+		long index = records.getFirstIndex();
+		int position = 0;
+		while (position < data.limit()) {
+			// state records belong to the log the records came from
+			boolean state = RecordFormat.isStateRecord(data, position);
+			if ((! state) && (found == count))
+				throw new IllegalArgumentException("Records have more than " + count +
+												   " entries");
+
+			String problem =
+				writer.checkRecord(data, position, state ? RecordFormat.STATE_RECORD : index);
+			if (problem != null)
+				throw new IllegalArgumentException("Invalid records: " + problem);
+
+			int end = position + RecordFormat.getRecordLength(data, position);
+			if (! state) {
+				positions[found] = position;
+				ends[found] = end;
+				terms[found] = data.getLong(position + 8);
+
+				// compacted entries were committed, so they always match
+				if ((firstNew == count) && (index >= entries.getFirstIndex()) &&
+					((index >= entries.getNextIndex()) ||
+					 (entries.getTerm(index) != terms[found])))
+					firstNew = found;
+
+				found++;
+				index++;
+			}
+			position = end;
 		}
-		LogEntry(long position, long index, long term, Command command) {
-			this.position = position;
-			this.index = index;
-			this.term = term;
-			this.command = command;
+		if (found != count)
+			throw new IllegalArgumentException("Records have " + found + " entries, not " +
+											   count);
+
+		// when every entry is already here, any entries after them are kept,
+		// since they may have come from pages sent ahead of these, and the
+		// caller only counts the entries in the records as matched
+
+		if (firstNew == count)
+			return;
+
+		long firstIndex = records.getFirstIndex() + firstNew;
+		validateEntry(firstIndex, terms[firstNew]);
+		if (terms[firstNew] < getLastTerm())
+			throw new IllegalArgumentException("Invalid term");
+
+		try {
+			writeRecords(data, positions, ends, terms, firstNew, firstIndex);
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to write to log", ioe);
 		}
 	}
 
-	// TODO: somewhat inefficient way to marshal commands, but just to start..
+	/* Snapshot management */
+
+	/**
+	 * Restores the state machine from the latest snapshot, if there is one,
+	 * returning whether a snapshot was found.
+	 */
+	private boolean loadSnapshot() throws IOException {
+		// a snapshot that was never completed is just discarded
+		snapshotFile.removeIncomplete();
+		if (! snapshotFile.exists())
+			return false;
+
+		if (! (stateMachine instanceof SnapshotStateMachine))
+			throw new IOException("State machine doesn't support snapshots");
+
+		snapshotFile.restore((SnapshotStateMachine) stateMachine);
+		snapshotIndex = snapshotFile.getIndex();
+		snapshotTerm = snapshotFile.getTerm();
+		commitIndex = snapshotIndex;
+		return true;
+	}
+
+	/**
+	 * Makes the segments consistent with the latest snapshot. If the log has
+	 * the snapshot's last entry then the segments before the one holding that
+	 * entry are deleted, oldest first. Otherwise the log either ends before the
+	 * snapshot or has diverged from it, so all segments are deleted, newest
+	 * first, and the log starts over after the snapshot.
+	 */
+	private synchronized void reconcileWithSnapshot() throws IOException {
+		if (isIndexed(snapshotIndex) && (entries.getTerm(snapshotIndex) == snapshotTerm)) {
+			// the latest state is written to the tail, which is never
+			// deleted here, before any segment that may hold it is deleted
+			if ((segments.size() > 1) && (segments.get(1).getFirstIndex() <= snapshotIndex))
+				rewriteState();
+
+			entries.discardBefore(segments.discardBefore(snapshotIndex));
+		} else {
+			// every segment is deleted, so the state is kept in a truncation
+			// point until it's written to the new segment
+			boolean hasState = stateTerm != NO_STATE;
+			if (hasState)
+				TruncationPoint.write(logDir, snapshotIndex + 1, stateTerm, stateVote);
+
+			segments.clear();
+			segments.start(snapshotIndex + 1);
+			entries.reset(snapshotIndex + 1);
+			entryCache.clear();
+			discardWrittenAfter(snapshotIndex);
 
-	private synchronized LogEntry readEntry() throws IOException {
-		long filePosition = commandFile.getFilePointer();
-		if (filePosition == commandFile.length())
-			return null;
-		
-		long index = commandFile.readLong();
-		long term = commandFile.readLong();
-		Command command = readCommand();
+			// the snapshot was synced, so everything it covers is durable
+			writtenIndex = snapshotIndex;
+			durableIndex = snapshotIndex;
 
-		return new LogEntry(filePosition, index, term, command);
+			if (hasState) {
+				rewriteState();
+				TruncationPoint.delete(logDir);
+			}
+		}
 	}
 
-	private Command readCommand() throws IOException {
-		int length = commandFile.readShort();
+	/** Returns whether the given index is in the in-memory index. */
+	private boolean isIndexed(long index) {
+		return (index >= entries.getFirstIndex()) && (index < entries.getNextIndex());
+	}
+
+	/* Loading & importing */
+
+	/**
+	 * Adds the entries found in a segment to the index, checking that they
+	 * follow on from the previous segment. A problem in a sealed segment is
+	 * an error, but the last segment is truncated after its last valid record,
+	 * since that is what a crash part-way through a write leaves behind.
+	 */
+	private void addScannedEntries(LogSegment segment, SegmentScan scan)
+		throws IOException
+	{
+		if (segment == segments.get(0))
+			entries.reset(segment.getFirstIndex());
+		if (segment.getFirstIndex() != entries.getNextIndex())
+			throw new IOException("missing log entries before segment " + segment);
+
+		if (scan.problem != null) {
+			if (segment.isSealed())
+				throw new IOException(scan.problem + " in " + segment);
 
-		if (length == 0)
-			return null;
+			System.out.println("WARNING: truncating " + segment + " at " +
+							   scan.validEnd + " (" + scan.problem + ")");
+			segment.truncate(scan.validEnd);
+		} else {
+			segment.setEnd(scan.validEnd);
+		}
+
+		for (int i = 0; i < scan.count; i++)
+			entries.add(scan.positions[i], scan.terms[i]);
+
+		// segments are added in order, so the last state found is the latest
+		if (scan.stateTerm != NO_STATE) {
+			stateTerm = scan.stateTerm;
+			stateVote = scan.stateVote;
+		}
+	}
 
-		commandFile.readFully(readBuffer, 0, length);
-		ByteArrayInputStream bytesIn = new ByteArrayInputStream(readBuffer, 0, length);
-		ObjectInputStream objIn = new ObjectInputStream(bytesIn);
+	/**
+	 * Imports the entries of a log in the original format. Once the entries
+	 * are synced the original file is removed.
+	 */
+	private void importLegacyLog(File legacyFile) throws IOException {
+		LegacyLogReader reader = new LegacyLogReader(legacyFile);
 		try {
-			return (Command) objIn.readObject();
-		} catch (ClassNotFoundException cnfe) {
-			throw new IOException("Failed to read command", cnfe);
+			List<LogEntry> batch = new ArrayList<LogEntry>(IMPORT_BATCH_SIZE);
+			while (reader.next()) {
+				// the new log already starts with its own empty entry
+				if (reader.getIndex() > 0L)
+					batch.add(new LogEntry(reader.getIndex(), reader.getTerm(),
+										   reader.getCommand()));
+				if (batch.size() == IMPORT_BATCH_SIZE)
+					importEntries(batch);
+			}
+			importEntries(batch);
+
+			if (! reader.isAtEnd()) {
+				// TODO: log this case .. the entries after this were discarded
+				System.out.println("WARNING: stopped importing " + COMMAND_FILE +
+								   " at index " + reader.getExpectedIndex());
+			}
 		} finally {
-			objIn.close();
+			reader.close();
 		}
+
+		segments.getTail().force();
+		if (! legacyFile.delete())
+			throw new IOException("failed to remove " + COMMAND_FILE);
 	}
 
-	private synchronized void writeEntry(LogEntry entry) throws IOException {
-		writeBuffer.clear();
-		writeBuffer.putLong(entry.index).putLong(entry.term);
-		writeCommand(entry.command);
-		writeBuffer.flip();
+	/** Writes a batch of imported entries, and then clears the batch. */
+	private void importEntries(List<LogEntry> batch) throws IOException {
+		if (batch.isEmpty())
+			return;
 
-		long filePosition = commandFile.getFilePointer();
-		commandFile.getChannel().write(writeBuffer);
-		commandFile.getChannel().force(false);
-		entry.position = filePosition;
+		writeEntries(batch);
+		for (LogEntry entry : batch)
+			addEntry(entry);
+		batch.clear();
 	}
 
-	private void writeCommand(Command command) throws IOException {
-		if (command == null) {
-			writeBuffer.putShort((short) 0);
+	/* Reading & writing */
+
+	/**
+	 * Returns the command at the given index, from the cache of recent
+	 * entries if it's there and otherwise decoding it from disk.
+	 */
+	private Command getCommand(long index) {
+		try {
+			EntryCache.CachedEntry cached = entryCache.get(index);
+			if (cached == null)
+				return RecordFormat.readCommand(segments.readRecord(index), codecs);
+
+			if (! cached.isDecoded())
+				cached.setCommand(RecordFormat.readCommand(cached.getRecord(), codecs));
+			return cached.getCommand();
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to read from log", ioe);
+		}
+	}
+
+	/**
+	 * Writes the given entries in order and then, depending on the durability
+	 * mode, syncs them to disk. In the common case this is a single write of
+	 * all the entries, but if the batch crosses into a new segment then the
+	 * data before that point is written to the old segment first.
+	 */
+	private synchronized void writeEntries(List<LogEntry> batch) throws IOException {
+		LogSegment segment = segments.getTail();
+		long segmentEnd = segment.size();
+		writer.clear();
+
+		for (LogEntry entry : batch) {
+			int recordLength = writer.prepare(entry.command);
+
+			// start a new segment if this entry would push the current one
+			// past the threshold
+			if (segments.isFull(segment, entry.index, writer.getPosition() + recordLength)) {
+				writer.writeTo(segment);
+				segment = segments.roll(entry.index);
+				segmentEnd = segment.size();
+			}
+
+			int recordStart = writer.put(entry.index, entry.term);
+			entry.position = segmentEnd + recordStart;
+			if (entryCache.isEnabled())
+				entry.record = writer.copyRecord(recordStart, recordLength);
+		}
+
+		writer.writeTo(segment);
+
+		wroteEntries(segment, batch.get(batch.size() - 1).index, batch.size(),
+					 segment.size() - segmentEnd);
+	}
+
+	/**
+	 * Writes records that were checked by {@code appendRecords} as they are,
+	 * and adds their entries to the index. The records are written in runs
+	 * straight from the given buffer, where a run stops at a record that
+	 * isn't written, and a new segment is started at the same points that
+	 * {@code writeEntries} would.
+	 */
+	private synchronized void writeRecords(ByteBuffer data, int [] positions, int [] ends,
+										   long [] terms, int first, long firstIndex)
+		throws IOException
+	{
+		LogSegment segment = segments.getTail();
+		int runStart = first;
+		long index = firstIndex;
+		long bytes = 0L;
+
+		for (int i = first; i < terms.length; i++, index++) {
+			int recordLength = ends[i] - positions[i];
+			boolean gap = (i > runStart) && (positions[i] != ends[i - 1]);
+			boolean full = segments.isFull(segment, index,
+										   positions[i] - positions[runStart] + recordLength);
+			if (gap || full) {
+				writeRun(segment, data, positions, ends, terms, runStart, i);
+				if (full)
+					segment = segments.roll(index);
+				runStart = i;
+			}
+			bytes += recordLength;
+		}
+		writeRun(segment, data, positions, ends, terms, runStart, terms.length);
+
+		wroteEntries(segment, index - 1, terms.length - first, bytes);
+	}
+
+	/** Writes one run of records to a segment and indexes their entries. */
+	private void writeRun(LogSegment segment, ByteBuffer data, int [] positions,
+						  int [] ends, long [] terms, int from, int to)
+		throws IOException
+	{
+		if (from == to)
 			return;
+
+		ByteBuffer run = data.duplicate();
+		run.limit(ends[to - 1]).position(positions[from]);
+		long start = segment.write(run) - positions[from];
+
+		for (int i = from; i < to; i++) {
+			entries.add(start + positions[i], terms[i]);
+			if (entryCache.isEnabled())
+				entryCache.put(entries.getNextIndex() - 1,
+							   RecordFormat.copyRecord(data, positions[i], ends[i] - positions[i]),
+							   null);
 		}
+	}
 
-		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
-		ObjectOutputStream objOut = new ObjectOutputStream(bytesOut);
+	/** Indexes an entry that was written, and caches it. */
+	private void addEntry(LogEntry entry) {
+		entries.add(entry.position, entry.term);
+		if (entry.record != null)
+			entryCache.put(entry.index, entry.record, entry.command);
+	}
+
+	/* Durability */
+
+	/**
+	 * Notes that entries up to the given index were written, ending in the
+	 * given segment, and syncs them if the durability mode calls for it.
+	 */
+	private void wroteEntries(LogSegment segment, long lastIndex, int count, long bytes)
+		throws IOException
+	{
+		writtenIndex = lastIndex;
+		unsyncedEntries += count;
+		unsyncedBytes += bytes;
+
+		if ((durability == Durability.SYNC) ||
+			((durability == Durability.BATCH) &&
+			 ((unsyncedEntries >= syncEntries) || (unsyncedBytes >= syncBytes))))
+		{
+			segment.force();
+			unsyncedEntries = 0L;
+			unsyncedBytes = 0L;
+			durableIndex = lastIndex;
+			stateSynced = stateWritten;
+		} else if (durability == Durability.BUFFERED) {
+			durableIndex = lastIndex;
+		}
+	}
+
+	/**
+	 * Writes a state record at the end of the log, without syncing it. The
+	 * latest state is always kept in a segment that survives truncation and
+	 * compaction by writing it again where needed.
+	 */
+	private synchronized void writeState(long term, long votedId) throws IOException {
+		writer.clear();
+		writer.putState(term, votedId);
+		writer.writeTo(segments.getTail());
+
+		stateTerm = term;
+		stateVote = votedId;
+		stateWritten++;
+		unsyncedBytes += RecordFormat.HEADER_SIZE + RecordFormat.STATE_CONTENT_SIZE;
+	}
+
+	/**
+	 * Writes the latest state again at the end of the log and syncs it, if
+	 * there is any state, for when the earlier record is about to be lost.
+	 */
+	private synchronized void rewriteState() throws IOException {
+		if (stateTerm == NO_STATE)
+			return;
+
+		writeState(stateTerm, stateVote);
+		segments.getTail().force();
+		stateSynced = stateWritten;
+	}
+
+	/**
+	 * Syncs everything written so far, which is called in the background.
+	 * The sync itself doesn't hold the lock used for writing, so appends can
+	 * continue, and the durable index is only moved if no written entries
+	 * were discarded in the meantime. If it moves then the durability
+	 * listener is told.
+	 */
+	private void syncWritten() {
+		long index;
+		long generation;
+		long state;
+		LogSegment segment;
+		synchronized (this) {
+			index = writtenIndex;
+			if (index <= durableIndex)
+				return;
+			generation = discardGeneration;
+			state = stateWritten;
+			segment = segments.getTail();
+			unsyncedEntries = 0L;
+			unsyncedBytes = 0L;
+		}
+
+		// earlier segments were synced when the log moved past them
 		try {
-			objOut.writeObject(command);
-			byte [] bytes = bytesOut.toByteArray();
-			writeBuffer.putShort((short) bytes.length).put(bytes);
-		} finally {
-			objOut.close();
+			segment.force();
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println("WARNING: failed to sync log: " + ioe.getMessage());
+			return;
 		}
+
+		boolean advanced = false;
+		synchronized (this) {
+			if ((generation == discardGeneration) && (index > durableIndex)) {
+				durableIndex = index;
+				advanced = true;
+			}
+			if (state > stateSynced)
+				stateSynced = state;
+		}
+
+		// the listener is called without the lock, since it may read the log
+		DurabilityListener listener = durabilityListener;
+		if (advanced && (listener != null))
+			listener.entriesDurable(index);
+	}
+
+	/** Notes that any written entries after the given index were discarded. */
+	private synchronized void discardWrittenAfter(long index) {
+		discardGeneration++;
+		if (writtenIndex > index)
+			writtenIndex = index;
+		if (durableIndex > index)
+			durableIndex = index;
 	}
 
-	private synchronized void pruneFromEntry(LogEntry entry) throws IOException {
-		if (entry.position >= commandFile.length())
+	/* Truncation */
+
+	/**
+	 * Removes the given entry and everything after it from disk. The index
+	 * is synced as the truncation point first, and only removed once all of
+	 * the files have been changed.
+	 */
+	private synchronized void pruneFromIndex(long index) throws IOException {
+		TruncationPoint.write(logDir, index, stateTerm, stateVote);
+		segments.truncate(index);
+
+		// any state after the cut was just lost, so the latest is written
+		// again before the truncation point that also holds it is removed
+		rewriteState();
+		TruncationPoint.delete(logDir);
+	}
+
+	/**
+	 * Finishes a truncation that was interrupted, if there is one. A point
+	 * that wasn't completely written means that no file was changed yet, so
+	 * it's just discarded.
+	 */
+	private void finishTruncation() throws IOException {
+		if (! TruncationPoint.exists(logDir))
 			return;
 
-		commandFile.seek(entry.position);
+		long index = -1L;
+		TruncationPoint point = TruncationPoint.read(logDir);
+		if (point != null) {
+			index = point.getIndex();
+
+			// nothing was written while the point existed, so its state is
+			// the latest even if the log's record was lost
+			stateTerm = point.getStateTerm();
+			stateVote = point.getStateVote();
+		}
+
+		if (isIndexed(index)) {
+			System.out.println("WARNING: finishing truncation of log from " + index);
+			pruneFromIndex(index);
+			entries.truncate(index);
+		} else {
+			rewriteState();
+			TruncationPoint.delete(logDir);
+		}
 	}
 
 }
@@ -7,10 +7,17 @@
 
 package net.purpleclay.raft.util;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
@@ -19,7 +26,7 @@ import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.InternalServer;
 import net.purpleclay.raft.MembershipHandle;
 import net.purpleclay.raft.Message;
-import net.purpleclay.raft.StateMachine;
+import net.purpleclay.raft.SnapshotStateMachine;
 import net.purpleclay.raft.client.Server;
 
 
@@ -30,7 +37,8 @@ import net.purpleclay.raft.client.Server;
  * made via the distributed log. Typically, instances are used as the handle
  * for cluster membership and added as one of several state machines via a
  * utility like {@code DelegatingStateMachine} registered using the identifier
- * {@code COMMAND_ID}.
+ * {@code COMMAND_ID}. Snapshots of the state machine capture the identifiers
+ * of the servers in the membership.
  * <p>
  * State changes can and will happen independently of when a cluster member
  * tries to join or leave. Because of this, the model supported is that once a
@@ -49,7 +57,7 @@ import net.purpleclay.raft.client.Server;
  * when added then it would be easy to advertise (and persist) things like
  * address or host name.
  */
-public class DynamicMembershipHandle implements MembershipHandle, StateMachine {
+public class DynamicMembershipHandle implements MembershipHandle, SnapshotStateMachine {
 
 	/** Stable identifier for the commands used by this {@code StateMachine}. */
 	public static final String COMMAND_ID = "DynamicMembershipHandle";
@@ -119,6 +127,42 @@ public class DynamicMembershipHandle implements MembershipHandle, StateMachine {
 			servers.remove(mh.serverId);
 	}
 
+	/* Implement SnapshotStateMachine */
+
+	@Override public void writeSnapshot(OutputStream out) throws IOException {
+		Set<Long> serverIds = new HashSet<Long>(servers.keySet());
+
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(serverIds.size());
+		for (long serverId : serverIds)
+			dataOut.writeLong(serverId);
+		dataOut.flush();
+	}
+
+	@Override public void readSnapshot(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		Set<Long> serverIds = new HashSet<Long>();
+		for (int count = dataIn.readInt(); count > 0; count--)
+			serverIds.add(dataIn.readLong());
+
+		// this is the same as applying an add for each new member and a
+		// remove for each member that's no longer in the snapshot
+
+		synchronized (pending) {
+			for (long serverId : serverIds) {
+				if (servers.containsKey(serverId))
+					continue;
+				InternalServer server = pending.remove(serverId);
+				if (server == null)
+					server = new UnavailableServer(serverId);
+				servers.put(serverId, server);
+				server.start();
+			}
+		}
+
+		servers.keySet().retainAll(serverIds);
+	}
+
 	/* Public utility routines */
 
 	/**
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.purpleclay.raft.Command;
+
+
+/**
+ * Bounded cache of the most recently written entries in a {@code DurableLog},
+ * keeping both each entry's encoded record and, once it's known, its decoded
+ * command. Entries are added as they're written, so the cache always holds
+ * the tail of the log, which is what followers and the state machine read.
+ * When the records held pass the size limit the oldest entries are dropped.
+ * <p>
+ * The size counts the length of each record plus a fixed allowance for the
+ * entry itself. Decoded commands aren't counted, since their size isn't
+ * known, and are shared by every reader, so commands are expected not to
+ * change once they're appended.
+ * <p>
+ * A cache with a size of zero holds nothing and every lookup is a miss.
+ */
+class EntryCache {
+
+	// the memory assumed for each entry, beyond its record
+	private static final int ENTRY_OVERHEAD = 64;
+
+	/** An entry held by the cache. */
+	static class CachedEntry {
+		// the encoded record, which is never changed
+		private final ByteBuffer record;
+		// the decoded command, once some reader has decoded it
+		private volatile Command command = null;
+		private volatile boolean decoded = false;
+		CachedEntry(ByteBuffer record) {
+			this.record = record;
+		}
+
+		/**
+		 * Returns the encoded record, in a buffer that the caller has
+		 * exclusive use of the position and limit of.
+		 *
+		 * @return a buffer positioned at the start of the record
+		 */
+		ByteBuffer getRecord() {
+			return record.duplicate();
+		}
+
+		/**
+		 * Returns whether the command has been decoded.
+		 *
+		 * @return {@code true} if {@code getCommand} is valid
+		 */
+		boolean isDecoded() {
+			return decoded;
+		}
+
+		/**
+		 * Returns the decoded command, which may be {@code null} for an
+		 * entry with no command.
+		 *
+		 * @return the decoded {@code Command}
+		 */
+		Command getCommand() {
+			return command;
+		}
+
+		/**
+		 * Sets the decoded command, so that later readers don't decode it.
+		 *
+		 * @param command the decoded {@code Command}
+		 */
+		void setCommand(Command command) {
+			this.command = command;
+			this.decoded = true;
+		}
+	}
+
+	// the configured bound, and the current size of the cached entries
+	private final long maxBytes;
+	private long bytes = 0L;
+
+	// the cached entries, in the order they were written
+	private final LinkedHashMap<Long,CachedEntry> cached =
+		new LinkedHashMap<Long,CachedEntry>();
+
+	// the number of lookups that found and didn't find an entry
+	private final AtomicLong hits = new AtomicLong(0L);
+	private final AtomicLong misses = new AtomicLong(0L);
+
+	/**
+	 * Creates an instance of {@code EntryCache}.
+	 *
+	 * @param maxBytes the most bytes of entries to hold
+	 */
+	EntryCache(long maxBytes) {
+		if (maxBytes < 0L)
+			throw new IllegalArgumentException("invalid cache size: " + maxBytes);
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns whether the cache holds anything, which callers can use to
+	 * avoid copying records that won't be kept.
+	 *
+	 * @return {@code true} if entries are cached {@code false} otherwise
+	 */
+	boolean isEnabled() {
+		return maxBytes > 0L;
+	}
+
+	/**
+	 * Adds an entry that was just written.
+	 *
+	 * @param index the index of the entry
+	 * @param record the entry's encoded record, which must not be changed
+	 * @param command the entry's command, or {@code null} if it hasn't been
+	 *                decoded
+	 */
+	synchronized void put(long index, ByteBuffer record, Command command) {
+		int weight = record.remaining() + ENTRY_OVERHEAD;
+		if (weight > maxBytes)
+			return;
+
+		CachedEntry entry = new CachedEntry(record);
+		if (command != null)
+			entry.setCommand(command);
+
+		CachedEntry previous = cached.put(index, entry);
+		if (previous != null)
+			bytes -= previous.record.remaining() + ENTRY_OVERHEAD;
+		bytes += weight;
+
+		Iterator<CachedEntry> it = cached.values().iterator();
+		while (bytes > maxBytes) {
+			bytes -= it.next().record.remaining() + ENTRY_OVERHEAD;
+			it.remove();
+		}
+	}
+
+	/**
+	 * Returns the cached entry at the given index, counting a hit or a miss.
+	 *
+	 * @param index the index of an entry
+	 *
+	 * @return the {@code CachedEntry} or {@code null} if it isn't cached
+	 */
+	synchronized CachedEntry get(long index) {
+		CachedEntry entry = cached.get(index);
+		if (entry != null)
+			hits.incrementAndGet();
+		else
+			misses.incrementAndGet();
+		return entry;
+	}
+
+	/**
+	 * Drops the given entry and every entry after it, for when the log is
+	 * truncated.
+	 *
+	 * @param index the index of the first entry to drop
+	 */
+	synchronized void removeFrom(long index) {
+		Iterator<Map.Entry<Long,CachedEntry>> it = cached.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long,CachedEntry> entry = it.next();
+			if (entry.getKey() >= index) {
+				bytes -= entry.getValue().record.remaining() + ENTRY_OVERHEAD;
+				it.remove();
+			}
+		}
+	}
+
+	/** Drops every entry. */
+	synchronized void clear() {
+		cached.clear();
+		bytes = 0L;
+	}
+
+	/**
+	 * Returns the number of lookups that found their entry.
+	 *
+	 * @return the hit count
+	 */
+	long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * Returns the number of lookups that didn't find their entry.
+	 *
+	 * @return the miss count
+	 */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns the number of bytes that the cached entries are counted as.
+	 *
+	 * @return the size of the cache
+	 */
+	synchronized long getSize() {
+		return bytes;
+	}
+
+}
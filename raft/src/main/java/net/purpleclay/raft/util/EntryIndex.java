@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+
+/**
+ * Compact, in-memory index of the entries in a {@code DurableLog}. For each
+ * entry this keeps the position of its record within its segment and the term
+ * in which it was appended, stored in primitive arrays so that looking up a
+ * term is just an array access and there are no per-entry objects to scan.
+ * <p>
+ * The arrays are allocated in fixed-size pages so that growing the index never
+ * copies existing entries. Positions are stored as {@code int} values, which
+ * relies on a record never starting more than 2GB into its segment.
+ * <p>
+ * The index covers a contiguous range of entries that need not start at 0,
+ * since entries before a snapshot are discarded. Pages that fall entirely
+ * before the first index are released.
+ * <p>
+ * A single thread is expected to modify the index at a time. Readers may run
+ * concurrently and will see every entry that was added before the next index
+ * they observe. A reader that races with {@code discardBefore} or
+ * {@code reset} may find its entry's page already released, in which case it
+ * gets an {@code IndexOutOfBoundsException} as though the entry had been
+ * discarded before the read started.
+ */
+class EntryIndex {
+
+	// the number of entries in each page, as a power of two
+	private static final int PAGE_SHIFT = 16;
+	private static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+	// the pages of positions and terms, which are appended to as the index
+	// grows and released as the start of the index is discarded
+	private int [][] positionPages = new int[1][];
+	private long [][] termPages = new long[1][];
+
+	// the index of the first entry in the index
+	private volatile long firstIndex = 0L;
+
+	// the index after the last entry, which is written last when an entry
+	// is added so that readers never see an incomplete entry
+	private volatile long nextIndex = 0L;
+
+	/**
+	 * Returns the index of the first entry in the index.
+	 *
+	 * @return the first entry's index
+	 */
+	long getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * Returns the index that the next added entry will have, which is one
+	 * past the last entry in the index.
+	 *
+	 * @return the next entry's index
+	 */
+	long getNextIndex() {
+		return nextIndex;
+	}
+
+	/**
+	 * Adds an entry to the end of the index.
+	 *
+	 * @param position the position of the entry's record in its segment
+	 * @param term the term in which the entry was appended
+	 */
+	void add(long position, long term) {
+		if (position > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("invalid position: " + position);
+
+		long index = nextIndex;
+		int page = (int) (index >>> PAGE_SHIFT);
+		int offset = (int) (index & PAGE_MASK);
+
+		if (page >= positionPages.length) {
+			int length = Math.max(page + 1, positionPages.length * 2);
+			int [][] positions = new int[length][];
+			System.arraycopy(positionPages, 0, positions, 0, positionPages.length);
+			long [][] terms = new long[length][];
+			System.arraycopy(termPages, 0, terms, 0, termPages.length);
+			positionPages = positions;
+			termPages = terms;
+		}
+		if (positionPages[page] == null) {
+			positionPages[page] = new int[PAGE_SIZE];
+			termPages[page] = new long[PAGE_SIZE];
+		}
+
+		positionPages[page][offset] = (int) position;
+		termPages[page][offset] = term;
+
+		nextIndex = index + 1;
+	}
+
+	/**
+	 * Returns the position of the given entry's record in its segment.
+	 *
+	 * @param index the index of an entry
+	 *
+	 * @return the record's position
+	 */
+	long getPosition(long index) {
+		checkIndex(index);
+		int [] page = positionPages[(int) (index >>> PAGE_SHIFT)];
+		// the page is only released once the entry is discarded
+		if (page == null)
+			throw new IndexOutOfBoundsException("discarded index: " + index);
+		return page[(int) (index & PAGE_MASK)];
+	}
+
+	/**
+	 * Returns the term in which the given entry was appended.
+	 *
+	 * @param index the index of an entry
+	 *
+	 * @return the entry's term
+	 */
+	long getTerm(long index) {
+		checkIndex(index);
+		long [] page = termPages[(int) (index >>> PAGE_SHIFT)];
+		// the page is only released once the entry is discarded
+		if (page == null)
+			throw new IndexOutOfBoundsException("discarded index: " + index);
+		return page[(int) (index & PAGE_MASK)];
+	}
+
+	/**
+	 * Removes the given entry and all entries after it. This only resets the
+	 * next index, so the cost does not depend on how many entries are removed.
+	 *
+	 * @param index the index of the first entry to remove
+	 */
+	void truncate(long index) {
+		if ((index < firstIndex) || (index > nextIndex))
+			throw new IllegalArgumentException("invalid index: " + index);
+		nextIndex = index;
+	}
+
+	/**
+	 * Removes all entries before the given index. Entries before the new
+	 * first index must no longer be read.
+	 *
+	 * @param index the index of the first entry to keep
+	 */
+	void discardBefore(long index) {
+		if ((index < firstIndex) || (index > nextIndex))
+			throw new IllegalArgumentException("invalid index: " + index);
+
+		firstIndex = index;
+
+		int lastPage = Math.min((int) (index >>> PAGE_SHIFT), positionPages.length);
+		for (int page = 0; page < lastPage; page++) {
+			positionPages[page] = null;
+			termPages[page] = null;
+		}
+	}
+
+	/**
+	 * Removes all entries, and re-starts the index at the given index.
+	 *
+	 * @param index the index of the next entry to add
+	 */
+	void reset(long index) {
+		if (index < 0L)
+			throw new IllegalArgumentException("invalid index: " + index);
+
+		positionPages = new int[1][];
+		termPages = new long[1][];
+		nextIndex = index;
+		firstIndex = index;
+	}
+
+	/** Checks that the index refers to an entry. */
+	private void checkIndex(long index) {
+		if ((index < firstIndex) || (index >= nextIndex))
+			throw new IndexOutOfBoundsException("invalid index: " + index);
+	}
+
+}
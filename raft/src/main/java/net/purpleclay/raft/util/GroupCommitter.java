@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.purpleclay.raft.Command;
+
+
+/**
+ * Collects the appends to a {@code DurableLog} that arrive while another
+ * append is syncing, so that they're made durable together, with a single
+ * write and a single sync, once the earlier sync completes. An append only
+ * returns once its entries are durable.
+ * <p>
+ * The committer has its own lock, separate from the one the log uses for
+ * disk access, so that appends can queue while a sync is running. Note that
+ * rewinding the log via {@code validateEntry} is not expected to happen
+ * concurrently with appends, which is true of any caller that follows the
+ * RAFT protocol.
+ */
+class GroupCommitter {
+
+	/** The log that groups are written to. */
+	interface Writer {
+		/** Returns the index after the last entry written to the log. */
+		long getNextIndex();
+		/** Returns the term of the last entry written to the log. */
+		long getLastTerm();
+		/** Writes and syncs the given entries, in order. */
+		void write(List<LogEntry> entries) throws IOException;
+		/** Adds an entry that was written to the log's index. */
+		void add(LogEntry entry);
+	}
+
+	/** A collection of appends that are written and synced together. */
+	private static class Group {
+		final List<LogEntry> entries = new ArrayList<LogEntry>();
+		boolean done = false;
+		IOException failure = null;
+	}
+
+	// the log that groups are written to
+	private final Writer writer;
+
+	// lock guarding the group state
+	private final Object groupLock = new Object();
+
+	// the group of appends waiting for the next sync, if any
+	private Group openGroup = null;
+
+	// the latest entry that was appended but is not yet durable, if any
+	private LogEntry lastPendingEntry = null;
+
+	// whether some thread is currently writing & syncing a group
+	private boolean syncInProgress = false;
+
+	/**
+	 * Creates an instance of {@code GroupCommitter}.
+	 *
+	 * @param writer the log that groups are written to
+	 */
+	GroupCommitter(Writer writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Appends entries as part of a group. If no sync is running then the
+	 * caller syncs its own group, otherwise it waits for the running sync
+	 * to finish and then either finds its group already synced by another
+	 * waiting caller or syncs the group itself.
+	 *
+	 * @param commands the commands to append
+	 * @param term the term in which the commands were appended
+	 */
+	void append(Command [] commands, long term) {
+		Group group = null;
+		boolean syncer = false;
+		boolean interrupted = false;
+
+		synchronized (groupLock) {
+			long lastTerm =
+				(lastPendingEntry != null) ? lastPendingEntry.term : writer.getLastTerm();
+			// TODO: what should happen if the term is less than the last term?
+			if (term < lastTerm)
+				throw new IllegalArgumentException("Invalid term");
+
+			long index = (lastPendingEntry != null) ?
+				lastPendingEntry.index + 1 : writer.getNextIndex();
+
+			if (openGroup == null)
+				openGroup = new Group();
+			group = openGroup;
+			for (Command command : commands) {
+				LogEntry entry = new LogEntry(index++, term, command);
+				group.entries.add(entry);
+				lastPendingEntry = entry;
+			}
+
+			while (syncInProgress) {
+				try {
+					groupLock.wait();
+				} catch (InterruptedException ie) {
+					// an append has to finish one way or another, so keep
+					// waiting and restore the status before returning
+					interrupted = true;
+				}
+			}
+
+			// if the group isn't done yet then it's still the open group, so
+			// this thread takes responsibility for the sync
+			if (! group.done) {
+				openGroup = null;
+				syncInProgress = true;
+				syncer = true;
+			}
+		}
+
+		if (interrupted)
+			Thread.currentThread().interrupt();
+
+		if (syncer)
+			syncGroup(group);
+
+		if (group.failure != null) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(group.failure.getMessage());
+			throw new RuntimeException("Failed to write to log", group.failure);
+		}
+	}
+
+	/** Writes and syncs the group, then releases anyone waiting on it. */
+	private void syncGroup(Group group) {
+		IOException failure = null;
+		try {
+			writer.write(group.entries);
+		} catch (IOException ioe) {
+			failure = ioe;
+		}
+
+		synchronized (groupLock) {
+			if (failure == null) {
+				for (LogEntry entry : group.entries)
+					writer.add(entry);
+				if (lastPendingEntry == group.entries.get(group.entries.size() - 1))
+					lastPendingEntry = null;
+			} else {
+				// any appends that were queued behind this group now have
+				// indexes that will never be valid, so fail them as well
+				if (openGroup != null) {
+					openGroup.done = true;
+					openGroup.failure = failure;
+					openGroup = null;
+				}
+				lastPendingEntry = null;
+			}
+
+			group.done = true;
+			group.failure = failure;
+			syncInProgress = false;
+			groupLock.notifyAll();
+		}
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.purpleclay.raft.Command;
+
+
+/**
+ * Reads a log in the original format of {@code DurableLog}, a single file
+ * named {@code COMMAND_FILE} holding a version followed by each entry's
+ * index, term, command length and serialized command. Entries are read
+ * until the end of the file, or until a record is cut short or out of
+ * sequence, which is what a crash or an overwritten re-wind in the original
+ * format left behind.
+ * <p>
+ * The original file is only removed once its entries have been imported and
+ * synced, so if it's found alongside segments then those segments are from
+ * an import that didn't finish, and they're discarded before starting again.
+ */
+class LegacyLogReader {
+
+	// the version of the original format
+	private static final long LEGACY_VERSION = 1L;
+
+	// the stream over the original file
+	private final DataInputStream in;
+
+	// the entry that was just read, and the index expected next
+	private long index = -1L;
+	private long term = 0L;
+	private Command command = null;
+	private long expectedIndex = 0L;
+
+	/**
+	 * Creates an instance of {@code LegacyLogReader}, checking the version.
+	 *
+	 * @param file the original log file
+	 *
+	 * @throws IOException if the file can't be read or has another version
+	 */
+	LegacyLogReader(File file) throws IOException {
+		this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (in.readLong() != LEGACY_VERSION)
+				throw new IOException("invalid log version in " + DurableLog.COMMAND_FILE);
+		} catch (IOException ioe) {
+			in.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Moves to the next entry.
+	 *
+	 * @return whether there was another valid entry
+	 *
+	 * @throws IOException if the file can't be read
+	 */
+	boolean next() throws IOException {
+		long nextIndex;
+		long nextTerm;
+		Command nextCommand = null;
+		try {
+			nextIndex = in.readLong();
+			nextTerm = in.readLong();
+			int length = in.readShort();
+			if ((nextIndex != expectedIndex) || (nextTerm < term) || (length < 0))
+				return false;
+			if (length > 0) {
+				byte [] bytes = new byte[length];
+				in.readFully(bytes);
+				nextCommand = RecordFormat.deserializeCommand(ByteBuffer.wrap(bytes));
+			}
+		} catch (EOFException eofe) {
+			return false;
+		}
+
+		index = nextIndex;
+		term = nextTerm;
+		command = nextCommand;
+		expectedIndex = index + 1;
+		return true;
+	}
+
+	/** Returns the index of the current entry. */
+	long getIndex() {
+		return index;
+	}
+
+	/** Returns the term of the current entry. */
+	long getTerm() {
+		return term;
+	}
+
+	/** Returns the command of the current entry, which may be {@code null}. */
+	Command getCommand() {
+		return command;
+	}
+
+	/** Returns the index of the first entry that wasn't read. */
+	long getExpectedIndex() {
+		return expectedIndex;
+	}
+
+	/**
+	 * Returns whether the reader stopped at the end of the file, rather than
+	 * at an entry that wasn't valid.
+	 */
+	boolean isAtEnd() throws IOException {
+		return in.read() == -1;
+	}
+
+	/** Closes the file. */
+	void close() throws IOException {
+		in.close();
+	}
+
+	/**
+	 * Removes the segments, segment indexes and truncation point left by an
+	 * import that didn't finish.
+	 *
+	 * @param logDir the log directory
+	 *
+	 * @throws IOException if the files can't be removed
+	 */
+	static void removeInterruptedImport(File logDir) throws IOException {
+		String [] names = logDir.list();
+		if (names == null)
+			throw new IOException("cannot list log directory");
+
+		for (String name : names) {
+			if ((LogSegment.isSegmentName(DurableLog.COMMAND_FILE, name) ||
+				 LogSegment.isSegmentName(DurableLog.SEGMENT_INDEX_FILE, name) ||
+				 name.equals(DurableLog.TRUNCATION_FILE)) &&
+				(! new File(logDir, name).delete()))
+				throw new IOException("failed to remove " + name);
+		}
+	}
+
+}
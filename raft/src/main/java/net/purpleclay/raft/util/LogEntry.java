@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.nio.ByteBuffer;
+
+import net.purpleclay.raft.Command;
+
+
+/**
+ * Simple wrapper for the details of an entry being written to a
+ * {@code DurableLog}. The position is relative to the start of the entry's
+ * segment and is set when the entry is written, along with a copy of its
+ * record if it's cached.
+ */
+class LogEntry {
+	long position = 0L;
+	ByteBuffer record = null;
+	final long index;
+	final long term;
+	final Command command;
+	LogEntry(long index, long term, Command command) {
+		this.index = index;
+		this.term = term;
+		this.command = command;
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.StateMachine;
+
+
+/**
+ * Applies a large range of a {@code DurableLog}'s entries, as happens when a
+ * log is re-played after a restart, in stages that overlap: one thread reads
+ * the records in order, a pool of threads decodes them, and the calling
+ * thread applies the commands in order. The queue between the stages is
+ * bounded so that reading never gets too far ahead of applying.
+ * <p>
+ * Sealed segments are loaded into memory as a whole when the reader reaches
+ * them, so that the decoders don't wait on the disk.
+ */
+class LogReplay {
+
+	// the most entries that are read or decoded ahead of being applied
+	private static final int REPLAY_WINDOW = 4096;
+
+	// the segments that records are read from, and the codecs to decode them
+	private final SegmentList segments;
+	private final CommandCodecRegistry codecs;
+
+	// the state machine that the commands are applied to
+	private final StateMachine stateMachine;
+
+	// the number of threads that decode commands
+	private final int threads;
+
+	/**
+	 * Creates an instance of {@code LogReplay}.
+	 *
+	 * @param segments the segments that records are read from
+	 * @param codecs the {@code CommandCodecRegistry} used to decode commands
+	 * @param stateMachine the {@code StateMachine} that commands are applied to
+	 * @param threads the number of threads that decode commands
+	 */
+	LogReplay(SegmentList segments, CommandCodecRegistry codecs, StateMachine stateMachine,
+			  int threads)
+	{
+		this.segments = segments;
+		this.codecs = codecs;
+		this.stateMachine = stateMachine;
+		this.threads = threads;
+	}
+
+	/**
+	 * Applies the given range of entries. A reader thread reads each record
+	 * and hands it to the decoding pool, queueing the pending result, while
+	 * the calling thread takes results from the queue in order and applies
+	 * them.
+	 *
+	 * @param fromIndex the first entry to apply
+	 * @param toIndex the last entry to apply
+	 */
+	void apply(long fromIndex, long toIndex) {
+		BlockingQueue<Future<Command>> pending =
+			new ArrayBlockingQueue<Future<Command>>(REPLAY_WINDOW);
+		ExecutorService decodeExecutor = Executors.newFixedThreadPool(threads);
+
+		Thread reader = new Thread(new Reader(fromIndex, toIndex, pending, decodeExecutor),
+								   "DurableLog replay reader");
+		reader.setDaemon(true);
+		reader.start();
+
+		try {
+			for (long i = fromIndex; i <= toIndex; i++)
+				stateMachine.apply(pending.take().get());
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while applying log", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof RuntimeException)
+				throw (RuntimeException) ee.getCause();
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ee.getCause().getMessage());
+			throw new RuntimeException("Failed to read from log", ee.getCause());
+		} finally {
+			reader.interrupt();
+			decodeExecutor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Task that reads the records in a range, in order, submitting each one
+	 * for decoding. If anything goes wrong reading or submitting a record
+	 * then a failed result is queued in its place, since otherwise the
+	 * thread applying the results would wait for it forever.
+	 */
+	private class Reader implements Runnable {
+		private final long fromIndex;
+		private final long toIndex;
+		private final BlockingQueue<Future<Command>> pending;
+		private final ExecutorService decodeExecutor;
+		Reader(long fromIndex, long toIndex, BlockingQueue<Future<Command>> pending,
+			   ExecutorService decodeExecutor)
+		{
+			this.fromIndex = fromIndex;
+			this.toIndex = toIndex;
+			this.pending = pending;
+			this.decodeExecutor = decodeExecutor;
+		}
+		@Override public void run() {
+			LogSegment segment = null;
+			try {
+				for (long i = fromIndex; i <= toIndex; i++) {
+					try {
+						LogSegment recordSegment = segments.get(segments.find(i));
+						if ((recordSegment != segment) && recordSegment.isSealed())
+							recordSegment.load();
+						segment = recordSegment;
+
+						final ByteBuffer record = segments.readRecord(i);
+						pending.put(decodeExecutor.submit(new Callable<Command>() {
+								public Command call() throws IOException {
+									return RecordFormat.readCommand(record, codecs);
+								}
+							}));
+					} catch (InterruptedException ie) {
+						// the re-play was abandoned
+						return;
+					} catch (final Throwable t) {
+						FutureTask<Command> failure = new FutureTask<Command>(new Callable<Command>() {
+								public Command call() throws Exception {
+									if (t instanceof Error)
+										throw (Error) t;
+									throw (Exception) t;
+								}
+							});
+						failure.run();
+						pending.put(failure);
+						return;
+					}
+				}
+			} catch (InterruptedException ie) {
+				// the re-play was abandoned
+			}
+		}
+	}
+
+}
@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A single file in a segmented {@code DurableLog}. Each segment starts with a
+ * small, fixed-length header recording the format version and the index of
+ * the first entry in the segment, followed by the entry records themselves.
+ * Segments are named by their first index so that ordering the files in a log
+ * directory is just a matter of sorting the names.
+ * <p>
+ * Only the last segment in a log is ever written to. Once a new segment is
+ * started the previous one is sealed and stays immutable until it is either
+ * truncated (when the log is re-wound) or deleted (when the log is compacted).
+ * Reads from a sealed segment are served from a read-only memory mapping of
+ * the file, while reads from the unsealed segment go through the channel.
+ * <p>
+ * Every write is followed by a tail marker that records where the valid data
+ * stops, and which is overwritten by the next write. This lets a segment's
+ * file be preallocated, so that writes only ever overwrite existing blocks
+ * and syncing them doesn't also have to sync a change in the file's size.
+ * <p>
+ * If direct writes are turned on then the unsealed segment is written by a
+ * {@code DirectSegmentWriter}, which is opened on the first write and closed
+ * when the segment is sealed. Recent data is then read from that writer's
+ * memory where it can be. If the file can't be opened for direct I/O then
+ * the segment falls back to its usual channel.
+ * <p>
+ * A sealed segment may be replaced by a compressed copy, whose content is
+ * read through {@code CompressedBlocks} instead of a mapping. A compressed
+ * segment is always sealed and can't be truncated, so {@code expand} is used
+ * first to write an uncompressed copy to replace it with.
+ * <p>
+ * Note that a mapping cannot be explicitly released, so truncating a sealed
+ * segment just drops the mapping and relies on no reader still holding a
+ * view past the new end of the file.
+ */
+class LogSegment {
+
+	// the current version for on-disk segments
+	static final long CURRENT_VERSION = 5L;
+
+	/** The length in bytes of the header at the start of every segment. */
+	static final int HEADER_SIZE = 16;
+
+	/** The value written after the last record to mark the end of the data. */
+	static final long TAIL_MARKER = -1L;
+
+	/** The length in bytes of the tail marker. */
+	static final int TAIL_MARKER_SIZE = 8;
+
+	// the size of each write used to zero-fill a preallocated file
+	private static final int PREALLOCATE_CHUNK_SIZE = 1024 * 1024;
+
+	// the separator between the base file name and the first index
+	private static final char NAME_SEPARATOR = '.';
+
+	// the width used to pad indexes in file names so that they sort correctly
+	private static final int INDEX_WIDTH = 20;
+
+	// the backing file details
+	private final File file;
+	private final RandomAccessFile dataFile;
+	private final FileChannel channel;
+
+	// the index of the first entry in this segment
+	private final long firstIndex;
+
+	// the logical end of the segment, where the next record is written
+	private volatile long end;
+
+	// whether the segment is sealed, and if so its read-only mapping, which
+	// is only created on the first read
+	private volatile boolean sealed = false;
+	private volatile MappedByteBuffer readMap = null;
+
+	// the content of a compressed segment, or null if it's not compressed
+	private final CompressedBlocks compressed;
+
+	// the tail marker written after each write
+	private final ByteBuffer tailMarker =
+		ByteBuffer.allocateDirect(TAIL_MARKER_SIZE).putLong(0, TAIL_MARKER);
+
+	// the pool for direct writes and the size of their cache, if direct
+	// writes are used, and the writer while the segment is unsealed
+	private AlignedBufferPool directBuffers = null;
+	private int directCacheSize = 0;
+	private volatile DirectSegmentWriter directWriter = null;
+
+	/** Creates an instance of {@code LogSegment}. */
+	private LogSegment(File file, RandomAccessFile dataFile, long firstIndex,
+					   long end, CompressedBlocks compressed)
+	{
+		this.file = file;
+		this.dataFile = dataFile;
+		this.channel = dataFile.getChannel();
+		this.firstIndex = firstIndex;
+		this.end = end;
+		this.compressed = compressed;
+		this.sealed = compressed != null;
+	}
+
+	/**
+	 * Creates a new, empty segment in the given directory. If a preallocated
+	 * file is given then the segment's header is written into that file and
+	 * it is renamed to be the segment, otherwise a new file is created. The
+	 * header is forced to disk before this method returns.
+	 *
+	 * @param logDir the directory containing the log
+	 * @param baseName the base name shared by all segments in the log
+	 * @param firstIndex the index of the first entry in the new segment
+	 * @param preallocated a file created by {@code preallocate}, or
+	 *                     {@code null} to start from an empty file
+	 *
+	 * @return the new {@code LogSegment}
+	 *
+	 * @throws IOException if the segment already exists or cannot be created
+	 */
+	static LogSegment create(File logDir, String baseName, long firstIndex,
+							 File preallocated)
+		throws IOException
+	{
+		File file = new File(logDir, getFileName(baseName, firstIndex));
+		if (file.exists())
+			throw new IOException("segment already exists: " + file.getName());
+
+		// the header is written before the file gets the segment's name so
+		// that a segment never exists without its header
+		RandomAccessFile dataFile =
+			new RandomAccessFile((preallocated != null) ? preallocated : file, "rw");
+		try {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + TAIL_MARKER_SIZE);
+			header.putLong(CURRENT_VERSION).putLong(firstIndex).putLong(TAIL_MARKER);
+			header.flip();
+			FileChannel channel = dataFile.getChannel();
+			while (header.hasRemaining())
+				channel.write(header, header.position());
+			channel.force(true);
+		} finally {
+			dataFile.close();
+		}
+
+		if ((preallocated != null) && (! preallocated.renameTo(file)))
+			throw new IOException("failed to rename preallocated segment: " + file.getName());
+
+		return new LogSegment(file, new RandomAccessFile(file, "rw"), firstIndex, HEADER_SIZE,
+							  null);
+	}
+
+	/**
+	 * Fills the given file with zeros up to the given size, and forces it to
+	 * disk, so that it can later be used to create a segment. If the file
+	 * already has some data then filling picks up where it stopped.
+	 *
+	 * @param file the file to fill
+	 * @param size the size in bytes that the file should have
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	static void preallocate(File file, long size) throws IOException {
+		RandomAccessFile dataFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = dataFile.getChannel();
+			if (channel.size() > size)
+				dataFile.setLength(size);
+
+			ByteBuffer zeros = ByteBuffer.allocateDirect(PREALLOCATE_CHUNK_SIZE);
+			long position = channel.size();
+			while (position < size) {
+				zeros.clear();
+				zeros.limit((int) Math.min(zeros.capacity(), size - position));
+				position += channel.write(zeros, position);
+			}
+
+			channel.force(true);
+		} finally {
+			dataFile.close();
+		}
+	}
+
+	/**
+	 * Opens an existing segment, validating its header. The segment is opened
+	 * un-sealed, with its end at the current end of the file, unless it is
+	 * compressed, in which case it's sealed and its end is the end of its
+	 * content.
+	 *
+	 * @param file the segment's file
+	 * @param baseName the base name shared by all segments in the log
+	 *
+	 * @return the opened {@code LogSegment}
+	 *
+	 * @throws IOException if the header is invalid or doesn't match the name
+	 */
+	static LogSegment open(File file, String baseName) throws IOException {
+		long nameIndex = parseFirstIndex(baseName, file.getName());
+		RandomAccessFile dataFile = new RandomAccessFile(file, "rw");
+
+		try {
+			long version = dataFile.readLong();
+			if ((version != CURRENT_VERSION) && (version != CompressedBlocks.COMPRESSED_VERSION))
+				throw new IOException("invalid log version: " + version);
+
+			long firstIndex = dataFile.readLong();
+			if (firstIndex != nameIndex)
+				throw new IOException("segment index mis-match: " + file.getName());
+
+			if (version == CompressedBlocks.COMPRESSED_VERSION) {
+				CompressedBlocks blocks = CompressedBlocks.open(dataFile.getChannel());
+				return new LogSegment(file, dataFile, firstIndex, blocks.getEnd(), blocks);
+			}
+			return new LogSegment(file, dataFile, firstIndex, dataFile.length(), null);
+		} catch (IOException ioe) {
+			dataFile.close();
+			throw ioe;
+		}
+	}
+
+	/**
+	 * Returns the segment file name for the given first index.
+	 *
+	 * @param baseName the base name shared by all segments in the log
+	 * @param firstIndex the index of the first entry in a segment
+	 *
+	 * @return the name of the file for the segment
+	 */
+	static String getFileName(String baseName, long firstIndex) {
+		StringBuilder name = new StringBuilder(baseName).append(NAME_SEPARATOR);
+		String index = String.valueOf(firstIndex);
+		for (int i = index.length(); i < INDEX_WIDTH; i++)
+			name.append('0');
+		return name.append(index).toString();
+	}
+
+	/**
+	 * Returns whether the given file name is a segment of the named log.
+	 *
+	 * @param baseName the base name shared by all segments in the log
+	 * @param fileName the file name to check
+	 *
+	 * @return {@code true} if the name is a segment name {@code false} otherwise
+	 */
+	static boolean isSegmentName(String baseName, String fileName) {
+		if (fileName.length() != baseName.length() + 1 + INDEX_WIDTH)
+			return false;
+		if (! fileName.startsWith(baseName + NAME_SEPARATOR))
+			return false;
+		for (int i = baseName.length() + 1; i < fileName.length(); i++) {
+			if (! Character.isDigit(fileName.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	/** Parses the first index out of a segment file name. */
+	private static long parseFirstIndex(String baseName, String fileName)
+		throws IOException
+	{
+		if (! isSegmentName(baseName, fileName))
+			throw new IOException("invalid segment name: " + fileName);
+		return Long.parseLong(fileName.substring(baseName.length() + 1));
+	}
+
+	/**
+	 * Returns the index of the first entry in this segment.
+	 *
+	 * @return the first entry's index
+	 */
+	long getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * Returns the file backing this segment.
+	 *
+	 * @return the segment's {@code File}
+	 */
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the current length of the segment, including the header.
+	 *
+	 * @return the segment length in bytes
+	 */
+	long size() {
+		return end;
+	}
+
+	/**
+	 * Returns whether this segment has been replaced by a compressed copy.
+	 *
+	 * @return {@code true} if the segment is compressed {@code false} otherwise
+	 */
+	boolean isCompressed() {
+		return compressed != null;
+	}
+
+	/**
+	 * Writes a compressed copy of this sealed segment to the given file. The
+	 * copy is split into blocks that start at the given positions, which
+	 * should be where records start. The file is synced before this returns.
+	 *
+	 * @param boundaries the ascending positions of records where a block may
+	 *                   start
+	 * @param blockSize the size past which a new block is started
+	 * @param dictionary the preset dictionary, or {@code null} for none
+	 * @param target the file to write
+	 *
+	 * @throws IOException if the segment can't be read or the file written
+	 */
+	void compress(long [] boundaries, int blockSize, byte [] dictionary, File target)
+		throws IOException
+	{
+		if ((! sealed) || (compressed != null))
+			throw new IllegalStateException("segment can't be compressed: " + this);
+
+		CompressedBlocks.compress(read(0L, (int) end), boundaries, blockSize, dictionary,
+								  target);
+	}
+
+	/**
+	 * Writes an uncompressed copy of this segment to the given file, ending
+	 * with a tail marker, so that it can be replaced by a segment that can
+	 * be truncated. The file is synced before this returns.
+	 *
+	 * @param target the file to write
+	 *
+	 * @throws IOException if the segment can't be read or the file written
+	 */
+	void expand(File target) throws IOException {
+		RandomAccessFile targetFile = new RandomAccessFile(target, "rw");
+		try {
+			FileChannel out = targetFile.getChannel();
+			out.truncate(0L);
+			tailMarker.clear();
+			ByteBuffer [] buffers = { read(0L, (int) end), tailMarker };
+			while (tailMarker.hasRemaining())
+				out.write(buffers);
+			out.force(true);
+		} finally {
+			targetFile.close();
+		}
+	}
+
+	/**
+	 * Returns whether this segment has been sealed.
+	 *
+	 * @return {@code true} if the segment is sealed {@code false} otherwise
+	 */
+	boolean isSealed() {
+		return sealed;
+	}
+
+	/**
+	 * Marks this segment as immutable, which switches reads over to a
+	 * memory mapping of the file.
+	 */
+	synchronized void seal() {
+		sealed = true;
+		closeDirectWriter();
+	}
+
+	/**
+	 * Turns on direct writes for whenever this segment is unsealed.
+	 *
+	 * @param pool the {@code AlignedBufferPool} that write buffers come from
+	 * @param cacheSize the number of recently written bytes to keep in memory
+	 */
+	synchronized void useDirectWrites(AlignedBufferPool pool, int cacheSize) {
+		directBuffers = pool;
+		directCacheSize = cacheSize;
+	}
+
+	/**
+	 * Sets the end of the segment once a recovery scan has found where the
+	 * valid data stops, which must be where the tail marker was found.
+	 *
+	 * @param position the position of the tail marker
+	 */
+	void setEnd(long position) {
+		if ((position < HEADER_SIZE) || (position > end))
+			throw new IllegalArgumentException("invalid end: " + position);
+		end = position;
+	}
+
+	/**
+	 * Writes the given buffer at the end of the segment, followed by a new
+	 * tail marker, in a single gathering write.
+	 *
+	 * @param buffer the encoded records to write
+	 *
+	 * @return the position where the buffer was written
+	 *
+	 * @throws IOException if the write fails
+	 */
+	long write(ByteBuffer buffer) throws IOException {
+		if (sealed)
+			throw new IllegalStateException("segment is sealed: " + this);
+
+		long position = end;
+		long length = buffer.remaining();
+
+		tailMarker.clear();
+		DirectSegmentWriter writer = getDirectWriter();
+		if (writer != null) {
+			writer.write(buffer, tailMarker, position);
+		} else {
+			ByteBuffer [] buffers = { buffer, tailMarker };
+			channel.position(position);
+			while (tailMarker.hasRemaining())
+				channel.write(buffers);
+		}
+
+		end = position + length;
+		return position;
+	}
+
+	/**
+	 * Returns the direct writer, opening it if direct writes are turned on
+	 * and it isn't open yet, or {@code null} if writes use the channel.
+	 */
+	private synchronized DirectSegmentWriter getDirectWriter() {
+		if ((directWriter == null) && (directBuffers != null)) {
+			try {
+				directWriter = DirectSegmentWriter.open(file, directBuffers, directCacheSize);
+			} catch (IOException ioe) {
+				// TODO: log this case .. the log is still correct, just cached
+				System.out.println("WARNING: direct writes not available for " + this +
+								   ": " + ioe.getMessage());
+				directBuffers = null;
+			}
+		}
+		return directWriter;
+	}
+
+	/** Closes the direct writer, if it's open. */
+	private synchronized void closeDirectWriter() {
+		if (directWriter != null) {
+			directWriter.close();
+			directWriter = null;
+		}
+	}
+
+	/**
+	 * Returns a buffer with the given range of the segment. For a sealed
+	 * segment this is a view on the mapping, otherwise the data is read into
+	 * a new buffer. In either case the caller has exclusive use of the
+	 * returned buffer's position and limit.
+	 *
+	 * @param position the position in the segment to start reading from
+	 * @param length the number of bytes to read
+	 *
+	 * @return a buffer positioned at the start of the data
+	 *
+	 * @throws IOException if the range can't be read
+	 */
+	ByteBuffer read(long position, int length) throws IOException {
+		if ((position < 0L) || (position + length > end))
+			throw new IOException("invalid range in " + this + ": " + position);
+
+		if (compressed != null)
+			return compressed.read(position, length);
+
+		if (sealed) {
+			ByteBuffer view = getReadMap().duplicate();
+			view.limit((int) position + length).position((int) position);
+			return view.slice();
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(position, buffer);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Transfers the given range of the segment straight from the file to the
+	 * channel, which doesn't copy the data through the heap. As with any
+	 * channel transfer this may write fewer bytes than asked for.
+	 *
+	 * @param position the position in the segment to start from
+	 * @param count the number of bytes to transfer
+	 * @param target the channel to write to
+	 *
+	 * @return the number of bytes transferred
+	 *
+	 * @throws IOException if the range can't be read or written
+	 */
+	long transferTo(long position, long count, WritableByteChannel target)
+		throws IOException
+	{
+		if ((position < 0L) || (position + count > end))
+			throw new IOException("invalid range in " + this + ": " + position);
+
+		// a compressed segment is inflated, and a sealed segment that was
+		// closed because it was replaced is still readable from its mapping
+		if (compressed != null)
+			return target.write(compressed.read(position, (int) count));
+		try {
+			return channel.transferTo(position, count, target);
+		} catch (ClosedChannelException cce) {
+			if ((! sealed) || (readMap == null))
+				throw cce;
+			ByteBuffer view = readMap.duplicate();
+			view.limit((int) (position + count)).position((int) position);
+			return target.write(view);
+		}
+	}
+
+	/**
+	 * Reads from the given position in the segment until the buffer is full.
+	 * The data is read from the file, or from a direct writer's memory if it
+	 * was written recently, so this is typically used for a segment that
+	 * hasn't been sealed.
+	 *
+	 * @param position the position in the segment to start reading from
+	 * @param buffer the buffer to fill
+	 *
+	 * @throws IOException if the range can't be read
+	 */
+	void readFully(long position, ByteBuffer buffer) throws IOException {
+		if ((position < 0L) || (position + buffer.remaining() > end))
+			throw new IOException("invalid range in " + this + ": " + position);
+
+		if (compressed != null) {
+			buffer.put(compressed.read(position, buffer.remaining()));
+			return;
+		}
+
+		DirectSegmentWriter writer = directWriter;
+		if ((writer != null) && writer.read(position, buffer))
+			return;
+
+		long readPosition = position;
+		while (buffer.hasRemaining()) {
+			int count = channel.read(buffer, readPosition);
+			if (count < 0)
+				throw new IOException("unexpected end of " + this);
+			readPosition += count;
+		}
+	}
+
+	/**
+	 * Returns a read-only mapping of the whole segment, which is used to scan
+	 * all records when a log is loaded. For a sealed segment this mapping is
+	 * kept for later reads. A compressed segment is inflated into memory,
+	 * followed by a tail marker.
+	 *
+	 * @return a buffer with the complete segment content
+	 *
+	 * @throws IOException if the segment cannot be mapped
+	 */
+	ByteBuffer map() throws IOException {
+		if (compressed != null) {
+			ByteBuffer content = ByteBuffer.allocate((int) end + TAIL_MARKER_SIZE);
+			content.put(compressed.read(0L, (int) end)).putLong(TAIL_MARKER).flip();
+			return content;
+		}
+		if (sealed)
+			return getReadMap().duplicate();
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0L, end);
+	}
+
+	/**
+	 * Reads the whole of a sealed segment into memory, in order, so that
+	 * later reads through its mapping don't wait on the disk.
+	 *
+	 * @throws IOException if the segment cannot be mapped
+	 */
+	void load() throws IOException {
+		if (! sealed)
+			throw new IllegalStateException("segment is not sealed: " + this);
+
+		// compressed blocks are read as they're needed
+		if (compressed == null)
+			getReadMap().load();
+	}
+
+	/** Returns the mapping for a sealed segment, creating it if needed. */
+	private MappedByteBuffer getReadMap() throws IOException {
+		MappedByteBuffer map = readMap;
+		if (map == null) {
+			synchronized (this) {
+				map = readMap;
+				if (map == null) {
+					map = channel.map(FileChannel.MapMode.READ_ONLY, 0L, end);
+					readMap = map;
+				}
+			}
+		}
+		return map;
+	}
+
+	/**
+	 * Forces all written data to disk.
+	 *
+	 * @throws IOException if the sync fails
+	 */
+	void force() throws IOException {
+		channel.force(false);
+	}
+
+	/**
+	 * Discards everything in the segment from the given position onward. If
+	 * the segment was sealed then it is un-sealed, since it is once again at
+	 * the end of the log.
+	 *
+	 * @param position the position of the first record to discard
+	 *
+	 * @throws IOException if the file cannot be truncated
+	 */
+	void truncate(long position) throws IOException {
+		if (position < HEADER_SIZE)
+			throw new IllegalArgumentException("cannot truncate the header");
+		if (compressed != null)
+			throw new IllegalStateException("cannot truncate a compressed segment");
+
+		sealed = false;
+		readMap = null;
+		DirectSegmentWriter writer = directWriter;
+		if (writer != null)
+			writer.truncate(position);
+
+		// the discarded data is dropped from the file, rather than just being
+		// hidden behind a new tail marker, so that if a later write is cut
+		// short the old records after it can't be mistaken for valid ones
+		end = position;
+		dataFile.setLength(position);
+		tailMarker.clear();
+		while (tailMarker.hasRemaining())
+			channel.write(tailMarker, position + tailMarker.position());
+		channel.force(true);
+	}
+
+	/** Closes the segment, ignoring any errors. */
+	void close() {
+		closeDirectWriter();
+		try {
+			dataFile.close();
+		} catch (IOException ioe) { }
+	}
+
+	/**
+	 * Closes and then removes the segment from disk.
+	 *
+	 * @throws IOException if the file could not be removed
+	 */
+	void delete() throws IOException {
+		close();
+		if (! file.delete())
+			throw new IOException("failed to delete segment: " + file.getName());
+	}
+
+	@Override public String toString() {
+		return file.getName();
+	}
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.CommandCodec;
+
+
+/**
+ * The layout of the records in a {@code DurableLog} segment. Each record has
+ * a fixed header of the entry's index and term, how its command is encoded,
+ * the codec key and length of the command and a CRC32 checksum, followed by
+ * the encoded command. The checksum covers everything in the record except
+ * the checksum itself.
+ * <p>
+ * A record of server state has {@code STATE_RECORD} in place of an index, the
+ * term in place of the entry's term and the vote as its content, so it's
+ * checked the same way as any other record.
+ * <p>
+ * Commands are encoded with the {@code CommandCodec} registered for their
+ * identifier, and commands with no registered codec fall back to Java
+ * serialization.
+ */
+abstract class RecordFormat {
+
+	/** The length of the fixed part of each record. */
+	static final int HEADER_SIZE = 29;
+
+	// the offsets of the encoding, command length & checksum within a record
+	static final int ENCODING_OFFSET = 16;
+	static final int LENGTH_OFFSET = 21;
+	static final int CHECKSUM_OFFSET = 25;
+
+	/** The size of the scratch space used to checksum direct buffers. */
+	static final int CHECKSUM_SCRATCH_SIZE = 8192;
+
+	// the value in place of the index that marks a record of server state,
+	// and the length of its content, which is the vote
+	static final long STATE_RECORD = -2L;
+	static final int STATE_CONTENT_SIZE = 8;
+
+	// the ways that a command can be encoded in a record
+	static final byte ENCODING_NONE = 0;
+	static final byte ENCODING_SERIALIZED = 1;
+	static final byte ENCODING_CODEC = 2;
+
+	/** Returns whether the record at the given position is a state record. */
+	static boolean isStateRecord(ByteBuffer records, int position) {
+		return (records.limit() - position >= 8) && (records.getLong(position) == STATE_RECORD);
+	}
+
+	/** Returns the length of the record at the given position, from its header. */
+	static int getRecordLength(ByteBuffer records, int position) {
+		return HEADER_SIZE + records.getInt(position + LENGTH_OFFSET);
+	}
+
+	/**
+	 * Checks that the record at the given position is complete within the
+	 * buffer's limit, has the expected index and matches its checksum.
+	 *
+	 * @return a description of the problem, or {@code null} if the record
+	 *         is valid
+	 */
+	static String checkRecord(ByteBuffer records, int position, long expectedIndex,
+							  CRC32 checksum, byte [] scratch)
+	{
+		if (records.limit() - position < HEADER_SIZE)
+			return "incomplete record at " + position;
+
+		long index = records.getLong(position);
+		int length = records.getInt(position + LENGTH_OFFSET);
+
+		if (index != expectedIndex)
+			return "unexpected index " + index + " at " + position;
+		if ((length < 0) || (records.limit() - position - HEADER_SIZE < length))
+			return "incomplete record at " + position;
+		if (records.getInt(position + CHECKSUM_OFFSET) !=
+			checksumRecord(records, position, length, checksum, scratch))
+			return "invalid checksum at " + position;
+
+		return null;
+	}
+
+	/**
+	 * Returns the checksum of the record at the given position, covering
+	 * everything in the record except the checksum itself.
+	 */
+	static int checksumRecord(ByteBuffer buffer, int position, int commandLength,
+							  CRC32 checksum, byte [] scratch)
+	{
+		checksum.reset();
+		updateChecksum(checksum, buffer, position, CHECKSUM_OFFSET, scratch);
+		updateChecksum(checksum, buffer, position + HEADER_SIZE, commandLength, scratch);
+		return (int) checksum.getValue();
+	}
+
+	/**
+	 * Adds part of a buffer to a checksum. Direct buffers have no backing
+	 * array, so their content is copied through the scratch space.
+	 */
+	private static void updateChecksum(CRC32 checksum, ByteBuffer buffer, int position,
+									   int length, byte [] scratch)
+	{
+		if (buffer.hasArray()) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + position, length);
+			return;
+		}
+
+		ByteBuffer view = buffer.duplicate();
+		view.position(position);
+		while (length > 0) {
+			int count = Math.min(length, scratch.length);
+			view.get(scratch, 0, count);
+			checksum.update(scratch, 0, count);
+			length -= count;
+		}
+	}
+
+	/** Returns a copy of a record, for the cache of recent entries. */
+	static ByteBuffer copyRecord(ByteBuffer buffer, int position, int length) {
+		ByteBuffer source = buffer.duplicate();
+		source.limit(position + length).position(position);
+		ByteBuffer copy = ByteBuffer.allocate(length);
+		copy.put(source).flip();
+		return copy;
+	}
+
+	/** Decodes the command in the record starting at the buffer's position. */
+	static Command readCommand(ByteBuffer record, CommandCodecRegistry codecs)
+		throws IOException
+	{
+		int start = record.position();
+		record.position(start + ENCODING_OFFSET);
+		byte encoding = record.get();
+		int key = record.getInt();
+		int length = record.getInt();
+		if (start + HEADER_SIZE + length > record.limit())
+			throw new IOException("Incomplete record of length " + length);
+		record.limit(start + HEADER_SIZE + length);
+		record.position(start + HEADER_SIZE);
+
+		switch (encoding) {
+		case ENCODING_NONE:
+			return null;
+		case ENCODING_CODEC:
+			CommandCodec codec = codecs.getCodec(key);
+			if (codec == null)
+				throw new IOException("No codec registered for key " + key);
+			return codec.decode(record.slice());
+		case ENCODING_SERIALIZED:
+			return deserializeCommand(record);
+		default:
+			throw new IOException("Unknown command encoding: " + encoding);
+		}
+	}
+
+	// TODO: somewhat inefficient way to marshal commands, but just to start..
+
+	static Command deserializeCommand(ByteBuffer record) throws IOException {
+		byte [] bytes = new byte[record.remaining()];
+		record.get(bytes);
+		ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+		ObjectInputStream objIn = new ObjectInputStream(bytesIn);
+		try {
+			return (Command) objIn.readObject();
+		} catch (ClassNotFoundException cnfe) {
+			throw new IOException("Failed to read command", cnfe);
+		} finally {
+			objIn.close();
+		}
+	}
+
+	static byte [] serializeCommand(Command command) throws IOException {
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		ObjectOutputStream objOut = new ObjectOutputStream(bytesOut);
+		try {
+			objOut.writeObject(command);
+		} finally {
+			objOut.close();
+		}
+		return bytesOut.toByteArray();
+	}
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.CommandCodec;
+
+
+/**
+ * The buffer that a {@code DurableLog} encodes records into before writing
+ * them to a segment, which grows as needed to hold a complete batch. A record
+ * is added in two steps: {@code prepare} works out how its command will be
+ * encoded and returns the record's length, so that the caller can decide
+ * which segment the record goes to first, and {@code put} then encodes it.
+ * <p>
+ * The writer also keeps the checksum state used for the records it writes,
+ * which is used to check records taken from another log as well. Only one
+ * thread uses a writer at a time.
+ */
+class RecordWriter {
+
+	// the codecs for encoding commands, where available
+	private final CommandCodecRegistry codecs;
+
+	// the buffer of encoded records not yet written
+	private ByteBuffer buffer = ByteBuffer.allocateDirect(Short.MAX_VALUE);
+
+	// the checksum state used when writing or checking records
+	private final CRC32 checksum = new CRC32();
+	private final byte [] scratch = new byte[RecordFormat.CHECKSUM_SCRATCH_SIZE];
+
+	// the command of the prepared record and how it's encoded
+	private Command command = null;
+	private CommandCodec codec = null;
+	private byte [] commandBytes = null;
+	private int commandLength = 0;
+
+	/**
+	 * Creates an instance of {@code RecordWriter}.
+	 *
+	 * @param codecs the {@code CommandCodecRegistry} used to encode commands
+	 */
+	RecordWriter(CommandCodecRegistry codecs) {
+		this.codecs = codecs;
+	}
+
+	/**
+	 * Prepares a record for the given command, which may be {@code null}.
+	 *
+	 * @param command the command for the next record
+	 *
+	 * @return the length of the record
+	 *
+	 * @throws IOException if the command can't be serialized
+	 */
+	int prepare(Command command) throws IOException {
+		this.command = command;
+		codec = (command == null) ? null : codecs.getCodec(command.getIdentifier());
+		commandBytes = ((command == null) || (codec != null)) ?
+			null : RecordFormat.serializeCommand(command);
+
+		if (codec != null)
+			commandLength = codec.getEncodedLength(command);
+		else if (commandBytes != null)
+			commandLength = commandBytes.length;
+		else
+			commandLength = 0;
+
+		return RecordFormat.HEADER_SIZE + commandLength;
+	}
+
+	/**
+	 * Adds the prepared record to the buffer, with the given index and term.
+	 *
+	 * @param index the entry's index
+	 * @param term the entry's term
+	 *
+	 * @return the position of the record in the buffer
+	 *
+	 * @throws IOException if the command's codec doesn't write the length
+	 *                     it reported
+	 */
+	int put(long index, long term) throws IOException {
+		byte encoding = RecordFormat.ENCODING_NONE;
+		int key = 0;
+		if (codec != null) {
+			encoding = RecordFormat.ENCODING_CODEC;
+			key = CommandCodecRegistry.getKey(command.getIdentifier());
+		} else if (commandBytes != null) {
+			encoding = RecordFormat.ENCODING_SERIALIZED;
+		}
+
+		ensureCapacity(RecordFormat.HEADER_SIZE + commandLength);
+		int recordStart = buffer.position();
+		buffer.putLong(index).putLong(term);
+		buffer.put(encoding).putInt(key).putInt(commandLength).putInt(0);
+
+		// codecs write straight into the buffer
+		if (codec != null) {
+			int expectedEnd = buffer.position() + commandLength;
+			codec.encode(command, buffer);
+			if (buffer.position() != expectedEnd)
+				throw new IOException("Codec wrote wrong length for " + command.getIdentifier());
+		} else if (commandBytes != null) {
+			buffer.put(commandBytes);
+		}
+
+		buffer.putInt(recordStart + RecordFormat.CHECKSUM_OFFSET,
+			RecordFormat.checksumRecord(buffer, recordStart, commandLength, checksum, scratch));
+
+		command = null;
+		codec = null;
+		commandBytes = null;
+		return recordStart;
+	}
+
+	/**
+	 * Adds a state record to the buffer.
+	 *
+	 * @param term the server's term
+	 * @param votedId the server's vote
+	 */
+	void putState(long term, long votedId) {
+		ensureCapacity(RecordFormat.HEADER_SIZE + RecordFormat.STATE_CONTENT_SIZE);
+		int recordStart = buffer.position();
+		buffer.putLong(RecordFormat.STATE_RECORD).putLong(term);
+		buffer.put(RecordFormat.ENCODING_NONE).putInt(0);
+		buffer.putInt(RecordFormat.STATE_CONTENT_SIZE).putInt(0);
+		buffer.putLong(votedId);
+		buffer.putInt(recordStart + RecordFormat.CHECKSUM_OFFSET,
+			RecordFormat.checksumRecord(buffer, recordStart, RecordFormat.STATE_CONTENT_SIZE,
+										checksum, scratch));
+	}
+
+	/** Returns the number of bytes buffered. */
+	int getPosition() {
+		return buffer.position();
+	}
+
+	/** Returns a copy of a buffered record, for the cache of recent entries. */
+	ByteBuffer copyRecord(int position, int length) {
+		return RecordFormat.copyRecord(buffer, position, length);
+	}
+
+	/** Writes out anything buffered to the segment and leaves the buffer clear. */
+	void writeTo(LogSegment segment) throws IOException {
+		buffer.flip();
+		segment.write(buffer);
+		buffer.clear();
+	}
+
+	/** Drops anything buffered. */
+	void clear() {
+		buffer.clear();
+	}
+
+	/**
+	 * Checks a record using this writer's checksum state.
+	 *
+	 * @see RecordFormat#checkRecord
+	 */
+	String checkRecord(ByteBuffer records, int position, long expectedIndex) {
+		return RecordFormat.checkRecord(records, position, expectedIndex, checksum, scratch);
+	}
+
+	/** Grows the buffer if needed, keeping anything already buffered. */
+	private void ensureCapacity(int length) {
+		if (buffer.remaining() >= length)
+			return;
+
+		int capacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+		ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+		buffer.flip();
+		grown.put(buffer);
+		buffer = grown;
+	}
+
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.LogCursor;
+
+
+/**
+ * Cursor over a {@code DurableLog} that reads records in place. Recent
+ * entries are read from the cache, sealed segments are read through their
+ * mapping and the segment being written is read into a buffer that is
+ * re-used for each record, so nothing is allocated per entry unless the
+ * command is decoded.
+ */
+class SegmentCursor implements LogCursor {
+
+	// where the entries are, and the codecs to decode them
+	private final EntryIndex entries;
+	private final EntryCache entryCache;
+	private final SegmentList segments;
+	private final CommandCodecRegistry codecs;
+
+	// the next index to read and the index where the range ends
+	private long nextIndex;
+	private final long endIndex;
+
+	// the number of bytes that can still be read
+	private long bytesRemaining;
+
+	// the current entry, if any, its command once decoded, and its
+	// cached entry if it was read from the cache
+	private long index = -1L;
+	private Command command = null;
+	private EntryCache.CachedEntry cached = null;
+
+	// the segment being read and the first index of the following segment
+	private LogSegment segment = null;
+	private long segmentEndIndex = 0L;
+
+	// the buffer holding the current record between its position & limit,
+	// and whether that's a mapping of the whole segment
+	private ByteBuffer record = null;
+	private boolean mapped = false;
+
+	// the buffer used to read records from a segment that isn't sealed
+	private ByteBuffer readBuffer = null;
+
+	/**
+	 * Creates an instance of {@code SegmentCursor}.
+	 *
+	 * @param entries the position & term of every entry
+	 * @param entryCache the most recently written entries
+	 * @param segments the segments holding the records
+	 * @param codecs the {@code CommandCodecRegistry} used to decode commands
+	 * @param startingIndex the first index to read
+	 * @param maxEntries the maximum number of entries to read
+	 * @param maxBytes the maximum total size of the entries to read
+	 */
+	SegmentCursor(EntryIndex entries, EntryCache entryCache, SegmentList segments,
+				  CommandCodecRegistry codecs, long startingIndex, int maxEntries,
+				  long maxBytes)
+	{
+		this.entries = entries;
+		this.entryCache = entryCache;
+		this.segments = segments;
+		this.codecs = codecs;
+		this.nextIndex = startingIndex;
+		this.endIndex = startingIndex + maxEntries;
+		this.bytesRemaining = maxBytes;
+	}
+
+	/* Implement LogCursor */
+
+	@Override public boolean next() {
+		if ((nextIndex >= endIndex) || (nextIndex >= entries.getNextIndex()))
+			return false;
+
+		cached = entryCache.get(nextIndex);
+		if (cached != null) {
+			ByteBuffer cachedRecord = cached.getRecord();
+			if ((index != -1L) && (cachedRecord.remaining() > bytesRemaining))
+				return false;
+			bytesRemaining -= cachedRecord.remaining();
+
+			// the segment's mapping is replaced, so it's opened again
+			// if a later entry isn't cached
+			record = cachedRecord;
+			segment = null;
+			index = nextIndex++;
+			command = null;
+			return true;
+		}
+
+		try {
+			if ((segment == null) || (nextIndex >= segmentEndIndex))
+				openSegment();
+
+			long position = entries.getPosition(nextIndex);
+			long end = (nextIndex + 1 < Math.min(entries.getNextIndex(), segmentEndIndex)) ?
+				entries.getPosition(nextIndex + 1) : segment.size();
+			int length = (int) (end - position);
+
+			// the first entry is always read, however large it is
+			if ((index != -1L) && (length > bytesRemaining))
+				return false;
+			bytesRemaining -= length;
+
+			if (mapped) {
+				record.clear();
+				record.position((int) position).limit((int) end);
+			} else {
+				if ((readBuffer == null) || (readBuffer.capacity() < length))
+					readBuffer = ByteBuffer.allocate(Math.max(length, Short.MAX_VALUE));
+				readBuffer.clear().limit(length);
+				segment.readFully(position, readBuffer);
+				readBuffer.flip();
+				record = readBuffer;
+			}
+		} catch (IOException ioe) {
+			// TODO: this is a fatal error .. how do we signal that?
+			System.out.println(ioe.getMessage());
+			throw new RuntimeException("Failed to read from log", ioe);
+		}
+
+		index = nextIndex++;
+		command = null;
+		return true;
+	}
+
+	@Override public long getIndex() {
+		checkEntry();
+		return index;
+	}
+
+	@Override public long getTerm() {
+		checkEntry();
+		return entries.getTerm(index);
+	}
+
+	@Override public Command getCommand() {
+		checkEntry();
+		if ((cached != null) && cached.isDecoded())
+			return cached.getCommand();
+		if ((command == null) && (record.hasRemaining())) {
+			try {
+				command = RecordFormat.readCommand(record, codecs);
+				if (cached != null)
+					cached.setCommand(command);
+			} catch (IOException ioe) {
+				// TODO: this is a fatal error .. how do we signal that?
+				System.out.println(ioe.getMessage());
+				throw new RuntimeException("Failed to read from log", ioe);
+			}
+			record.position(record.limit());
+		}
+		return command;
+	}
+
+	/** Moves to the segment holding the next index. */
+	private void openSegment() throws IOException {
+		int segmentIndex = segments.find(nextIndex);
+		segment = segments.get(segmentIndex);
+		segmentEndIndex = segments.getEndIndex(segmentIndex);
+		// a segment may be sealed while it's being read, but the data
+		// read from the file is still valid, and a compressed segment
+		// is read a block at a time rather than inflated as a whole
+		mapped = segment.isSealed() && (! segment.isCompressed());
+		record = mapped ? segment.map() : null;
+	}
+
+	/** Checks that the cursor is on an entry. */
+	private void checkEntry() {
+		if (index == -1L)
+			throw new IllegalStateException("Cursor is not on an entry");
+	}
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+
+/**
+ * The index of a sealed {@code LogSegment}, kept in its own file alongside
+ * the segment so that loading a log doesn't have to read every record of the
+ * segments that can no longer change. For each entry in the segment this has
+ * the position of its record and its term, and it also has where the
+ * segment's data ends and the latest server state found in the segment, which
+ * is everything that a scan of the segment would find.
+ * <p>
+ * The file starts with a fixed header of the version, the segment's first
+ * index and end, the state's term and vote, and the number of entries. The
+ * positions and then the terms follow, and the file ends with a checksum of
+ * everything before it. A file that doesn't match its checksum is rejected,
+ * and the segment is scanned instead.
+ */
+class SegmentIndexFile {
+
+	// the current version for on-disk segment indexes
+	private static final long CURRENT_VERSION = 1L;
+
+	// the length of the fixed header: version, first index, end, state term
+	// & vote, and entry count
+	private static final int HEADER_SIZE = 44;
+
+	// the index of the segment's first entry, and where its data ends
+	private final long firstIndex;
+	private final long end;
+
+	// the position & term of each entry, of which only the first count are used
+	private final int [] positions;
+	private final long [] terms;
+	private final int count;
+
+	// the latest state in the segment, with a term of -1 if there is none
+	private final long stateTerm;
+	private final long stateVote;
+
+	/**
+	 * Creates an instance of {@code SegmentIndexFile}.
+	 *
+	 * @param firstIndex the index of the segment's first entry
+	 * @param end the position of the segment's tail marker
+	 * @param positions the position of each entry's record
+	 * @param terms the term of each entry
+	 * @param count the number of entries in the segment
+	 * @param stateTerm the term of the latest state in the segment, or -1
+	 * @param stateVote the vote of the latest state in the segment
+	 */
+	SegmentIndexFile(long firstIndex, long end, int [] positions, long [] terms, int count,
+					 long stateTerm, long stateVote)
+	{
+		this.firstIndex = firstIndex;
+		this.end = end;
+		this.positions = positions;
+		this.terms = terms;
+		this.count = count;
+		this.stateTerm = stateTerm;
+		this.stateVote = stateVote;
+	}
+
+	/**
+	 * Reads a segment index from the given file.
+	 *
+	 * @param file the index file
+	 *
+	 * @return the {@code SegmentIndexFile} read from the file
+	 *
+	 * @throws IOException if the file can't be read, or is incomplete or
+	 *                     doesn't match its checksum
+	 */
+	static SegmentIndexFile read(File file) throws IOException {
+		RandomAccessFile dataFile = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = dataFile.getChannel();
+			long length = channel.size();
+			if ((length < HEADER_SIZE + 4) || (length > Integer.MAX_VALUE))
+				throw new IOException("invalid segment index length: " + length);
+
+			ByteBuffer data = ByteBuffer.allocate((int) length);
+			while (data.hasRemaining()) {
+				if (channel.read(data, data.position()) < 0)
+					throw new IOException("unexpected end of segment index");
+			}
+
+			CRC32 checksum = new CRC32();
+			checksum.update(data.array(), 0, data.capacity() - 4);
+			if (data.getInt(data.capacity() - 4) != (int) checksum.getValue())
+				throw new IOException("invalid segment index checksum");
+
+			data.flip();
+			long version = data.getLong();
+			if (version != CURRENT_VERSION)
+				throw new IOException("invalid segment index version: " + version);
+
+			long firstIndex = data.getLong();
+			long end = data.getLong();
+			long stateTerm = data.getLong();
+			long stateVote = data.getLong();
+			int count = data.getInt();
+			if ((count < 0) || ((long) count * 12 != length - HEADER_SIZE - 4))
+				throw new IOException("invalid segment index count: " + count);
+
+			int [] positions = new int[count];
+			data.asIntBuffer().get(positions);
+			data.position(data.position() + count * 4);
+			long [] terms = new long[count];
+			data.asLongBuffer().get(terms);
+
+			return new SegmentIndexFile(firstIndex, end, positions, terms, count,
+										stateTerm, stateVote);
+		} finally {
+			dataFile.close();
+		}
+	}
+
+	/**
+	 * Writes this index to the given file, replacing anything that's there,
+	 * and syncs it before returning.
+	 *
+	 * @param file the file to write
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	void write(File file) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(HEADER_SIZE + count * 12 + 4);
+		data.putLong(CURRENT_VERSION).putLong(firstIndex).putLong(end);
+		data.putLong(stateTerm).putLong(stateVote).putInt(count);
+		data.asIntBuffer().put(positions, 0, count);
+		data.position(data.position() + count * 4);
+		data.asLongBuffer().put(terms, 0, count);
+		data.position(data.position() + count * 8);
+
+		CRC32 checksum = new CRC32();
+		checksum.update(data.array(), 0, data.position());
+		data.putInt((int) checksum.getValue());
+		data.flip();
+
+		RandomAccessFile dataFile = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = dataFile.getChannel();
+			channel.truncate(0L);
+			while (data.hasRemaining())
+				channel.write(data, data.position());
+			channel.force(true);
+		} finally {
+			dataFile.close();
+		}
+	}
+
+	/**
+	 * Returns the index of the segment's first entry.
+	 *
+	 * @return the first entry's index
+	 */
+	long getFirstIndex() {
+		return firstIndex;
+	}
+
+	/**
+	 * Returns the position of the segment's tail marker.
+	 *
+	 * @return the end of the segment's data
+	 */
+	long getEnd() {
+		return end;
+	}
+
+	/**
+	 * Returns the positions of the entries' records, of which the first
+	 * {@code getCount} are valid.
+	 *
+	 * @return the entry positions
+	 */
+	int [] getPositions() {
+		return positions;
+	}
+
+	/**
+	 * Returns the terms of the entries, of which the first {@code getCount}
+	 * are valid.
+	 *
+	 * @return the entry terms
+	 */
+	long [] getTerms() {
+		return terms;
+	}
+
+	/**
+	 * Returns the number of entries in the segment.
+	 *
+	 * @return the entry count
+	 */
+	int getCount() {
+		return count;
+	}
+
+	/**
+	 * Returns the term of the latest state in the segment.
+	 *
+	 * @return the state's term, or -1 if the segment has no state
+	 */
+	long getStateTerm() {
+		return stateTerm;
+	}
+
+	/**
+	 * Returns the vote of the latest state in the segment.
+	 *
+	 * @return the state's vote
+	 */
+	long getStateVote() {
+		return stateVote;
+	}
+
+}
@@ -0,0 +1,865 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * The ordered segment files of a {@code DurableLog}, each named after the
+ * {@code COMMAND_FILE} base name and the index of its first entry. Only the
+ * last segment is written to, and when it would grow past the size defined
+ * by the {@code SEGMENT_SIZE_PROPERTY} property a new segment is started, so
+ * the older files are never written again. A segment always holds at least
+ * one entry, so a single large command may leave a segment longer than the
+ * configured size.
+ * <p>
+ * By default each segment's file is preallocated at the configured size and
+ * filled with zeros ahead of time by a background thread, so appends only
+ * overwrite blocks that already exist and syncing them is cheaper. This is
+ * turned off by setting the {@code PREALLOCATE_PROPERTY} property to
+ * {@code false}. If the {@code DIRECT_IO_PROPERTY} property is {@code true}
+ * then the segment being written is written with direct I/O, where that's
+ * available.
+ * <p>
+ * Once a segment is sealed it's indexed in the background, unless the
+ * {@code SEGMENT_INDEX_PROPERTY} property is {@code false}, so that loading
+ * the log only has to read the segment being written in full. If the
+ * {@code COMPRESSION_PROPERTY} property is {@code true} then it's also
+ * compressed in the background, in blocks that each start at an entry, and
+ * the compressed copy replaces it. A compressed segment that's truncated is
+ * first expanded again.
+ * <p>
+ * Changes are made holding the log's lock, which the background tasks also
+ * take before they replace anything. A task only puts its work in place if
+ * the segment it read wasn't truncated or removed in the meantime. The list
+ * itself is copied on change, since it rarely changes but is read on every
+ * entry lookup.
+ */
+class SegmentList {
+
+	// the file that the next segment is preallocated in
+	private static final String PREALLOCATED_FILE = DurableLog.COMMAND_FILE + ".next";
+
+	// the suffixes of the files that a segment's compressed or expanded copy
+	// is written to before it replaces the segment
+	private static final String COMPRESSING_SUFFIX = ".compressing";
+	private static final String EXPANDING_SUFFIX = ".expanding";
+
+	// the most bytes of sampled records in a compression dictionary, which
+	// is as much as deflate can refer back to
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	// the most of a segment's size that its dictionary can be, as a fraction
+	private static final int DICTIONARY_FRACTION = 16;
+
+	// the size of each buffer used for direct writes, and how many are kept
+	private static final int DIRECT_BUFFER_SIZE = 256 * 1024;
+	private static final int DIRECT_BUFFER_COUNT = 4;
+
+	// the directory containing all segments
+	private final File logDir;
+
+	// the log's lock, which guards changes to the segments
+	private final Object lock;
+
+	// the position & term of all entries, which are kept by the log
+	private final EntryIndex entries;
+
+	// the configured size threshold for starting a new segment
+	private final long segmentSize;
+
+	// the buffers for direct writes and the size of the tail kept in memory,
+	// if direct writes are used
+	private final AlignedBufferPool directBuffers;
+	private final int tailCacheSize;
+
+	// the thread that prepares preallocated segments, if enabled, and the
+	// preparation of the next segment, if one has been started
+	private final ExecutorService preallocator;
+	private Future<Void> preparedSegment = null;
+
+	// the thread that indexes sealed segments, if enabled
+	private final ExecutorService indexer;
+
+	// the thread that compresses sealed segments, if enabled, and the size
+	// of each block and whether a dictionary is used
+	private final ExecutorService compressor;
+	private final int compressionBlockSize;
+	private final boolean compressionDictionary;
+
+	// the ordered segments, where only the last is written to
+	private final List<LogSegment> segments = new CopyOnWriteArrayList<LogSegment>();
+
+	// a count of the times that segments were truncated or removed, so that
+	// a background task can tell if the segment it read is still valid
+	private long generation = 0L;
+
+	/**
+	 * Creates an instance of {@code SegmentList} based on the given
+	 * properties, which are those of the log. No segment is opened until the
+	 * list is loaded or started.
+	 *
+	 * @param logDir the log directory
+	 * @param properties the {@code Properties} defining the log's configuration
+	 * @param entries the log's index of entries
+	 * @param lock the log's lock
+	 */
+	SegmentList(File logDir, Properties properties, EntryIndex entries, Object lock) {
+		this.logDir = logDir;
+		this.entries = entries;
+		this.lock = lock;
+
+		this.segmentSize = Long.parseLong(properties.getProperty(
+			DurableLog.SEGMENT_SIZE_PROPERTY, DurableLog.DEFAULT_SEGMENT_SIZE));
+		if ((segmentSize <= LogSegment.HEADER_SIZE + LogSegment.TAIL_MARKER_SIZE) ||
+			(segmentSize > Integer.MAX_VALUE))
+			throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+
+		this.tailCacheSize = Integer.parseInt(properties.getProperty(
+			DurableLog.TAIL_CACHE_SIZE_PROPERTY, DurableLog.DEFAULT_TAIL_CACHE_SIZE));
+		boolean directIO = Boolean.parseBoolean(
+			properties.getProperty(DurableLog.DIRECT_IO_PROPERTY, "false"));
+		if (directIO && (! DirectSegmentWriter.isSupported())) {
+			// TODO: log this case .. the log is still correct, just cached
+			System.out.println("WARNING: direct I/O is not supported by this runtime");
+			directIO = false;
+		}
+		if (directIO) {
+			String blockSize = properties.getProperty(DurableLog.DIRECT_BLOCK_SIZE_PROPERTY);
+			int alignment = (blockSize != null) ? Integer.parseInt(blockSize) :
+				Math.max(DirectSegmentWriter.getBlockSize(logDir), 4096);
+			if ((alignment > DIRECT_BUFFER_SIZE / 2) || (tailCacheSize < DIRECT_BUFFER_SIZE))
+				throw new IllegalArgumentException("invalid direct I/O sizes");
+			this.directBuffers =
+				new AlignedBufferPool(alignment, DIRECT_BUFFER_SIZE, DIRECT_BUFFER_COUNT);
+		} else {
+			this.directBuffers = null;
+		}
+
+		this.preallocator = Boolean.parseBoolean(
+			properties.getProperty(DurableLog.PREALLOCATE_PROPERTY, "true")) ?
+			createExecutor("DurableLog preallocator") : null;
+
+		this.indexer = Boolean.parseBoolean(
+			properties.getProperty(DurableLog.SEGMENT_INDEX_PROPERTY, "true")) ?
+			createExecutor("DurableLog indexer") : null;
+
+		this.compressor = Boolean.parseBoolean(
+			properties.getProperty(DurableLog.COMPRESSION_PROPERTY, "false")) ?
+			createExecutor("DurableLog compressor") : null;
+		this.compressionBlockSize = Integer.parseInt(properties.getProperty(
+			DurableLog.COMPRESSION_BLOCK_SIZE_PROPERTY,
+			DurableLog.DEFAULT_COMPRESSION_BLOCK_SIZE));
+		if (compressionBlockSize < 1)
+			throw new IllegalArgumentException("invalid block size: " + compressionBlockSize);
+		this.compressionDictionary = Boolean.parseBoolean(
+			properties.getProperty(DurableLog.COMPRESSION_DICTIONARY_PROPERTY, "false"));
+	}
+
+	/** Creates a single, daemon thread for background work on the segments. */
+	private static ExecutorService createExecutor(final String name) {
+		return Executors.newSingleThreadExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, name);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	}
+
+	/**
+	 * Stops the background work and closes every segment. This must not be
+	 * called while holding the log's lock, since the background tasks may
+	 * be waiting for it.
+	 */
+	void shutdown() {
+		if (preallocator != null)
+			preallocator.shutdownNow();
+		if (indexer != null)
+			indexer.shutdownNow();
+		if (compressor != null)
+			compressor.shutdownNow();
+
+		// the background tasks are left to finish with their files, so that
+		// none is still running when the log is opened again
+		awaitTermination(preallocator);
+		awaitTermination(indexer);
+		awaitTermination(compressor);
+
+		synchronized (lock) {
+			for (LogSegment segment : segments)
+				segment.close();
+		}
+	}
+
+	/** Waits a short time for a background executor to finish, if there is one. */
+	private static void awaitTermination(ExecutorService executor) {
+		if (executor == null)
+			return;
+
+		try {
+			executor.awaitTermination(1L, TimeUnit.SECONDS);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Opens and checks the segments in the log directory, after removing any
+	 * files left by an interrupted replacement. All but the last segment are
+	 * sealed, and those are checked in parallel, from their indexes where
+	 * they have valid ones. The scans are returned in order, for the log to
+	 * add their entries, and a problem in a sealed segment is left for the
+	 * log to report.
+	 *
+	 * @param verifyThreads the number of threads that check sealed segments
+	 *
+	 * @return the scan of each segment, or {@code null} if the directory
+	 *         has no segment files
+	 *
+	 * @throws IOException if the segments can't be loaded
+	 */
+	List<SegmentScan> load(int verifyThreads) throws IOException {
+		removeReplacementFiles();
+		String [] segmentNames = listSegmentNames();
+		if (segmentNames.length == 0)
+			return null;
+
+		// a segment's header is synced when it's created, so a segment that
+		// is too short to have a header was being started during a crash
+		int segmentCount = segmentNames.length;
+		if (segmentCount > 0) {
+			File lastFile = new File(logDir, segmentNames[segmentCount - 1]);
+			if (lastFile.length() < LogSegment.HEADER_SIZE) {
+				System.out.println("WARNING: removing incomplete segment " + lastFile.getName());
+				if (! lastFile.delete())
+					throw new IOException("failed to delete segment: " + lastFile.getName());
+				segmentCount--;
+			}
+		}
+
+		for (int i = 0; i < segmentCount; i++) {
+			LogSegment segment =
+				LogSegment.open(new File(logDir, segmentNames[i]), DurableLog.COMMAND_FILE);
+			if (directBuffers != null)
+				segment.useDirectWrites(directBuffers, tailCacheSize);
+			segments.add(segment);
+
+			// everything but the last segment is complete
+			if (i < segmentCount - 1)
+				segment.seal();
+		}
+
+		// a compressed segment can't be written, so if it's the last one,
+		// which happens when a truncation was interrupted, it's expanded
+		if ((segmentCount > 0) && segments.get(segmentCount - 1).isCompressed())
+			expandSegment(segmentCount - 1);
+
+		removeUnusedSegmentIndexes();
+
+		List<Future<SegmentScan>> futures = new ArrayList<Future<SegmentScan>>();
+		ExecutorService verifyExecutor = (segments.size() > 2) && (verifyThreads > 1) ?
+			Executors.newFixedThreadPool(Math.min(verifyThreads, segments.size() - 1)) : null;
+
+		try {
+			for (LogSegment segment : segments) {
+				File indexFile = ((indexer != null) && segment.isSealed()) ?
+					getSegmentIndexFile(segment) : null;
+				SegmentScan.Task task = new SegmentScan.Task(segment, indexFile);
+				if ((verifyExecutor != null) && segment.isSealed()) {
+					futures.add(verifyExecutor.submit(task));
+				} else {
+					FutureTask<SegmentScan> future = new FutureTask<SegmentScan>(task);
+					future.run();
+					futures.add(future);
+				}
+			}
+
+			List<SegmentScan> scans = new ArrayList<SegmentScan>(futures.size());
+			for (Future<SegmentScan> future : futures)
+				scans.add(getScan(future));
+			return scans;
+		} finally {
+			if (verifyExecutor != null)
+				verifyExecutor.shutdownNow();
+		}
+	}
+
+	/** Waits for a segment scan to finish, returning its result. */
+	private static SegmentScan getScan(Future<SegmentScan> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while loading log", ie);
+		} catch (ExecutionException ee) {
+			if (ee.getCause() instanceof IOException)
+				throw (IOException) ee.getCause();
+			throw new IOException("Failed to load log", ee.getCause());
+		}
+	}
+
+	/** Returns the sorted names of all segments in the log directory. */
+	private String [] listSegmentNames() throws IOException {
+		String [] names = logDir.list();
+		if (names == null)
+			throw new IOException("cannot list log directory");
+
+		List<String> segmentNames = new ArrayList<String>();
+		for (String name : names) {
+			if (LogSegment.isSegmentName(DurableLog.COMMAND_FILE, name))
+				segmentNames.add(name);
+		}
+
+		// segment names are padded, so lexical ordering is index ordering
+		String [] sortedNames = segmentNames.toArray(new String[segmentNames.size()]);
+		Arrays.sort(sortedNames);
+		return sortedNames;
+	}
+
+	/**
+	 * Starts an empty list with a new segment.
+	 *
+	 * @param firstIndex the index of the segment's first entry
+	 *
+	 * @throws IOException if the segment can't be created
+	 */
+	void start(long firstIndex) throws IOException {
+		segments.add(createSegment(firstIndex));
+	}
+
+	/** Returns the number of segments. */
+	int size() {
+		return segments.size();
+	}
+
+	/** Returns the segment at the given position in the list. */
+	LogSegment get(int segmentIndex) {
+		return segments.get(segmentIndex);
+	}
+
+	/** Returns the segment currently being written. */
+	LogSegment getTail() {
+		return segments.get(segments.size() - 1);
+	}
+
+	/** Returns the position in the list of the segment holding the index. */
+	int find(long index) {
+		int low = 0;
+		int high = segments.size() - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (segments.get(mid).getFirstIndex() <= index)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the first index of the segment after the given one, or
+	 * {@code Long.MAX_VALUE} for the last segment.
+	 */
+	long getEndIndex(int segmentIndex) {
+		return (segmentIndex + 1 < segments.size()) ?
+			segments.get(segmentIndex + 1).getFirstIndex() : Long.MAX_VALUE;
+	}
+
+	/**
+	 * Returns whether writing the given number of bytes for the entry at the
+	 * given index would push the segment past the size threshold. A segment
+	 * is never left without any entries, so this is never true of its first.
+	 */
+	boolean isFull(LogSegment segment, long index, long length) {
+		return (index > segment.getFirstIndex()) &&
+			(segment.size() + length + LogSegment.TAIL_MARKER_SIZE > segmentSize);
+	}
+
+	/**
+	 * Seals the current tail segment and starts a new one at the index.
+	 *
+	 * @param firstIndex the index of the new segment's first entry
+	 *
+	 * @return the new segment
+	 *
+	 * @throws IOException if the tail can't be synced or the segment created
+	 */
+	LogSegment roll(long firstIndex) throws IOException {
+		LogSegment tail = getTail();
+		tail.force();
+		tail.seal();
+		scheduleIndexing(tail);
+		scheduleCompression(tail);
+
+		LogSegment segment = createSegment(firstIndex);
+		segments.add(segment);
+		return segment;
+	}
+
+	/**
+	 * Removes the given entry and everything after it from disk. Any later
+	 * segments are deleted, starting from the end so that a failure part-way
+	 * through still leaves a contiguous log on-disk, and the segment holding
+	 * the entry is truncated.
+	 *
+	 * @param index the first index to remove
+	 *
+	 * @throws IOException if the segments can't be changed
+	 */
+	void truncate(long index) throws IOException {
+		generation++;
+
+		int segmentIndex = find(index);
+		for (int i = segments.size() - 1; i > segmentIndex; i--)
+			deleteSegment(segments.remove(i));
+
+		// the segment's index no longer matches once it's truncated
+		deleteSegmentIndex(segments.get(segmentIndex));
+		if (segments.get(segmentIndex).isCompressed())
+			expandSegment(segmentIndex);
+		segments.get(segmentIndex).truncate(entries.getPosition(index));
+	}
+
+	/**
+	 * Deletes the segments, oldest first, that hold only entries before the
+	 * given index. The segment holding the index is always kept.
+	 *
+	 * @param index the earliest index to keep
+	 *
+	 * @return the first index of the first segment that's left
+	 *
+	 * @throws IOException if a segment can't be deleted
+	 */
+	long discardBefore(long index) throws IOException {
+		while ((segments.size() > 1) && (segments.get(1).getFirstIndex() <= index))
+			deleteSegment(segments.remove(0));
+		return segments.get(0).getFirstIndex();
+	}
+
+	/**
+	 * Deletes every segment, newest first, leaving the list empty.
+	 *
+	 * @throws IOException if a segment can't be deleted
+	 */
+	void clear() throws IOException {
+		generation++;
+
+		for (int i = segments.size() - 1; i >= 0; i--)
+			deleteSegment(segments.remove(i));
+	}
+
+	/**
+	 * Reads the complete record for the given entry. The length of the record
+	 * is known from where the next record starts, or the end of the segment
+	 * for the last record in a segment.
+	 *
+	 * @param index the entry's index
+	 *
+	 * @return a buffer holding the record between its position & limit
+	 *
+	 * @throws IOException if the record can't be read
+	 */
+	ByteBuffer readRecord(long index) throws IOException {
+		int segmentIndex = find(index);
+		LogSegment segment = segments.get(segmentIndex);
+
+		long position = entries.getPosition(index);
+		long end = (index + 1 < Math.min(entries.getNextIndex(), getEndIndex(segmentIndex))) ?
+			entries.getPosition(index + 1) : segment.size();
+
+		return segment.read(position, (int) (end - position));
+	}
+
+	/**
+	 * Returns a range of records from the segment holding the starting index,
+	 * which stops at the end of that segment, after the given number of
+	 * entries or before the record that would take the range past the given
+	 * number of bytes. The first record is always included.
+	 *
+	 * @param startingIndex the first index in the range
+	 * @param maxEntries the maximum number of entries
+	 * @param maxBytes the maximum total length of the records
+	 *
+	 * @return the range of records
+	 *
+	 * @throws IOException if a record's length can't be read
+	 */
+	SegmentRecords getRecords(long startingIndex, int maxEntries, long maxBytes)
+		throws IOException
+	{
+		int segmentIndex = find(startingIndex);
+		LogSegment segment = segments.get(segmentIndex);
+		long segmentEndIndex = Math.min(getEndIndex(segmentIndex), entries.getNextIndex());
+		long endIndex = Math.min(startingIndex + maxEntries, segmentEndIndex);
+
+		long start = entries.getPosition(startingIndex);
+		long end = start;
+		long index = startingIndex;
+		while (index < endIndex) {
+			long recordEnd = getRecordEnd(segment, index, segmentEndIndex);
+			if ((index > startingIndex) && (recordEnd - start > maxBytes))
+				break;
+			end = recordEnd;
+			index++;
+		}
+
+		return new SegmentRecords(segment, start, end - start, startingIndex,
+								  (int) (index - startingIndex));
+	}
+
+	/**
+	 * Returns where the record for the given entry ends in its segment. The
+	 * end is where the next record starts, except for the last indexed entry
+	 * in a segment, where the length is read from the record header since
+	 * later records may have been written but not yet indexed.
+	 */
+	private long getRecordEnd(LogSegment segment, long index, long segmentEndIndex)
+		throws IOException
+	{
+		if (index + 1 < segmentEndIndex)
+			return entries.getPosition(index + 1);
+
+		long position = entries.getPosition(index);
+		ByteBuffer header = segment.read(position, RecordFormat.HEADER_SIZE);
+		return position + RecordFormat.getRecordLength(header, header.position());
+	}
+
+	/**
+	 * Creates a new segment. If a preallocated file is ready then it's used
+	 * for the segment, and then the next file is prepared, otherwise this
+	 * doesn't wait and the segment starts out empty.
+	 */
+	private LogSegment createSegment(long firstIndex) throws IOException {
+		synchronized (lock) {
+			File preallocated = null;
+			if ((preparedSegment != null) && preparedSegment.isDone()) {
+				try {
+					preparedSegment.get();
+					preallocated = new File(logDir, PREALLOCATED_FILE);
+				} catch (ExecutionException ee) {
+					// TODO: log this case .. the log is still correct, just slower
+					System.out.println("WARNING: failed to preallocate segment: " +
+									   ee.getCause().getMessage());
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+				}
+				preparedSegment = null;
+			}
+
+			LogSegment segment =
+				LogSegment.create(logDir, DurableLog.COMMAND_FILE, firstIndex, preallocated);
+			if (directBuffers != null)
+				segment.useDirectWrites(directBuffers, tailCacheSize);
+			prepareNext();
+			return segment;
+		}
+	}
+
+	/** Starts preparing the next preallocated file, if it isn't already. */
+	void prepareNext() {
+		synchronized (lock) {
+			if ((preallocator == null) || (preparedSegment != null) || preallocator.isShutdown())
+				return;
+
+			preparedSegment = preallocator.submit(new Callable<Void>() {
+					public Void call() throws IOException {
+						LogSegment.preallocate(new File(logDir, PREALLOCATED_FILE), segmentSize);
+						return null;
+					}
+				});
+		}
+	}
+
+	/** Queues a sealed segment to be indexed, if indexes are on. */
+	private void scheduleIndexing(final LogSegment segment) {
+		if (indexer == null)
+			return;
+
+		try {
+			indexer.execute(new Runnable() {
+					public void run() {
+						indexSegment(segment);
+					}
+				});
+		} catch (RejectedExecutionException ree) {
+			// shutting down, so the segment is indexed after a re-start
+		}
+	}
+
+	/**
+	 * Scans a sealed segment and writes its index. The scan reads the
+	 * segment rather than the in-memory index, since the last entries of
+	 * the segment may not have been added to that yet. The index is only
+	 * put in place if the segment is still sealed and wasn't truncated in
+	 * the meantime. A segment that was replaced by a compressed copy still
+	 * has the same index.
+	 */
+	private void indexSegment(LogSegment segment) {
+		long startGeneration;
+		synchronized (lock) {
+			if ((! segments.contains(segment)) || (! segment.isSealed()))
+				return;
+			startGeneration = generation;
+		}
+
+		File indexFile = getSegmentIndexFile(segment);
+		File tempFile = new File(logDir, indexFile.getName() + SegmentScan.INDEX_TEMP_SUFFIX);
+		try {
+			SegmentScan scan = SegmentScan.scan(segment);
+			if (scan.problem != null)
+				throw new IOException(scan.problem);
+			scan.writeIndex(segment, tempFile);
+
+			synchronized (lock) {
+				LogSegment current = segments.get(find(segment.getFirstIndex()));
+				if ((current.getFirstIndex() == segment.getFirstIndex()) &&
+					current.isSealed() && (startGeneration == generation) &&
+					(! indexer.isShutdown()))
+				{
+					SegmentScan.replaceIndex(tempFile, indexFile);
+					return;
+				}
+			}
+		} catch (IOException ioe) {
+			// an index that's interrupted by a shutdown is written on re-start
+			if (! indexer.isShutdown()) {
+				// TODO: log this case .. the log is still correct, just slower
+				System.out.println("WARNING: failed to index segment " + segment + ": " +
+								   ioe.getMessage());
+			}
+		}
+
+		if (tempFile.exists() && (! tempFile.delete()))
+			System.out.println("WARNING: failed to remove " + tempFile.getName());
+	}
+
+	/** Returns the file for the given segment's index. */
+	private File getSegmentIndexFile(LogSegment segment) {
+		return new File(logDir, LogSegment.getFileName(DurableLog.SEGMENT_INDEX_FILE,
+													   segment.getFirstIndex()));
+	}
+
+	/** Removes the index of a segment, if it has one. */
+	private void deleteSegmentIndex(LogSegment segment) throws IOException {
+		File indexFile = getSegmentIndexFile(segment);
+		if (indexFile.exists() && (! indexFile.delete()))
+			throw new IOException("failed to remove segment index: " + indexFile.getName());
+	}
+
+	/**
+	 * Removes a segment and its index, where the index goes first so that an
+	 * index is never left for a later segment with the same first index.
+	 */
+	private void deleteSegment(LogSegment segment) throws IOException {
+		deleteSegmentIndex(segment);
+		segment.delete();
+	}
+
+	/**
+	 * Removes every segment index that isn't for one of the sealed segments,
+	 * which is left when a segment's index was written but the segment was
+	 * then removed, or when indexes are turned off.
+	 */
+	private void removeUnusedSegmentIndexes() throws IOException {
+		Set<String> used = new HashSet<String>();
+		if (indexer != null) {
+			for (LogSegment segment : segments) {
+				if (segment.isSealed())
+					used.add(getSegmentIndexFile(segment).getName());
+			}
+		}
+
+		String [] names = logDir.list();
+		if (names == null)
+			throw new IOException("cannot list log directory");
+
+		for (String name : names) {
+			if (LogSegment.isSegmentName(DurableLog.SEGMENT_INDEX_FILE, name) &&
+				(! used.contains(name)) && (! new File(logDir, name).delete()))
+				throw new IOException("failed to remove " + name);
+		}
+	}
+
+	/**
+	 * Removes any copies of segments, and any segment indexes, left by an
+	 * interrupted replacement.
+	 */
+	private void removeReplacementFiles() throws IOException {
+		String [] names = logDir.list();
+		if (names == null)
+			throw new IOException("cannot list log directory");
+
+		for (String name : names) {
+			if ((name.endsWith(COMPRESSING_SUFFIX) || name.endsWith(EXPANDING_SUFFIX) ||
+				 (name.startsWith(DurableLog.SEGMENT_INDEX_FILE) &&
+				  name.endsWith(SegmentScan.INDEX_TEMP_SUFFIX))) &&
+				(! new File(logDir, name).delete()))
+				throw new IOException("failed to remove " + name);
+		}
+	}
+
+	/** Queues every sealed segment that isn't compressed to be compressed. */
+	void compressSealed() {
+		for (LogSegment segment : segments) {
+			if (segment.isSealed() && (! segment.isCompressed()))
+				scheduleCompression(segment);
+		}
+	}
+
+	/** Queues a sealed segment to be compressed, if compression is on. */
+	private void scheduleCompression(final LogSegment segment) {
+		if (compressor == null)
+			return;
+
+		try {
+			compressor.execute(new Runnable() {
+					public void run() {
+						compressSegment(segment);
+					}
+				});
+		} catch (RejectedExecutionException ree) {
+			// shutting down, so the segment is compressed after a re-start
+		}
+	}
+
+	/**
+	 * Writes a compressed copy of a sealed segment and then, as long as the
+	 * segment wasn't truncated or removed in the meantime, replaces the
+	 * segment with it. Blocks start at entries, so that reading any entry
+	 * only inflates one block.
+	 */
+	private void compressSegment(LogSegment segment) {
+		long [] boundaries;
+		long startGeneration;
+		synchronized (lock) {
+			int segmentIndex = segments.indexOf(segment);
+			if ((segmentIndex == -1) || (segmentIndex == segments.size() - 1) ||
+				(! segment.isSealed()) || segment.isCompressed())
+				return;
+
+			// the last entries of a segment may not be indexed in memory
+			// yet, but any entries can be used as boundaries
+			long first = Math.max(segment.getFirstIndex(), entries.getFirstIndex());
+			long next = Math.min(segments.get(segmentIndex + 1).getFirstIndex(),
+								 entries.getNextIndex());
+			boundaries = new long[(int) Math.max(0L, next - first)];
+			for (int i = 0; i < boundaries.length; i++)
+				boundaries[i] = entries.getPosition(first + i);
+			startGeneration = generation;
+		}
+
+		File target = new File(logDir, segment.getFile().getName() + COMPRESSING_SUFFIX);
+		try {
+			byte [] dictionary =
+				compressionDictionary ? sampleDictionary(segment, boundaries) : null;
+			segment.compress(boundaries, compressionBlockSize, dictionary, target);
+
+			synchronized (lock) {
+				int segmentIndex = segments.indexOf(segment);
+				if ((segmentIndex != -1) && segment.isSealed() &&
+					(startGeneration == generation) && (! compressor.isShutdown()))
+				{
+					replaceSegment(segmentIndex, target);
+					return;
+				}
+			}
+		} catch (IOException ioe) {
+			// TODO: log this case .. the log is still correct, just larger
+			System.out.println("WARNING: failed to compress segment " + segment + ": " +
+							   ioe.getMessage());
+		}
+
+		if (target.exists() && (! target.delete()))
+			System.out.println("WARNING: failed to remove " + target.getName());
+	}
+
+	/**
+	 * Builds a preset dictionary from records sampled evenly across the
+	 * segment, in order, so that the most recent commands are the cheapest
+	 * for deflate to refer back to. The dictionary is stored with the
+	 * segment, so it's kept to a small part of the segment's size.
+	 */
+	private static byte [] sampleDictionary(LogSegment segment, long [] boundaries)
+		throws IOException
+	{
+		long end = segment.size();
+		int dictionarySize = (int) Math.min(DICTIONARY_SIZE, end / DICTIONARY_FRACTION);
+		if ((boundaries.length == 0) || (dictionarySize == 0))
+			return null;
+
+		int stride = (int) Math.max(1L, (end - boundaries[0]) / dictionarySize);
+		ByteArrayOutputStream dictionary = new ByteArrayOutputStream(dictionarySize);
+		for (int i = 0; i < boundaries.length; i += stride) {
+			long recordEnd = (i + 1 < boundaries.length) ? boundaries[i + 1] : end;
+			int length = (int) Math.min(recordEnd - boundaries[i],
+										dictionarySize - dictionary.size());
+			if (length <= 0)
+				break;
+
+			ByteBuffer record = segment.read(boundaries[i], length);
+			byte [] bytes = new byte[length];
+			record.get(bytes);
+			dictionary.write(bytes, 0, length);
+		}
+		return dictionary.toByteArray();
+	}
+
+	/** Replaces a compressed segment with an uncompressed copy. */
+	private void expandSegment(int segmentIndex) throws IOException {
+		LogSegment segment = segments.get(segmentIndex);
+		File target = new File(logDir, segment.getFile().getName() + EXPANDING_SUFFIX);
+		segment.expand(target);
+		replaceSegment(segmentIndex, target);
+	}
+
+	/**
+	 * Renames a copy of a segment's content over the segment's file, and
+	 * opens it in place of the segment. Positions within the two are the
+	 * same. A reader that's still using the old segment can keep reading
+	 * it through its mapping.
+	 */
+	private void replaceSegment(int segmentIndex, File replacement) throws IOException {
+		LogSegment old = segments.get(segmentIndex);
+		if (old.isSealed() && (! old.isCompressed()))
+			old.map();
+
+		if (! replacement.renameTo(old.getFile()))
+			throw new IOException("failed to replace segment: " + old);
+
+		LogSegment segment = LogSegment.open(old.getFile(), DurableLog.COMMAND_FILE);
+		if (segment.size() > old.size())
+			segment.setEnd(old.size());
+		if (directBuffers != null)
+			segment.useDirectWrites(directBuffers, tailCacheSize);
+
+		segments.set(segmentIndex, segment);
+		old.close();
+	}
+
+}
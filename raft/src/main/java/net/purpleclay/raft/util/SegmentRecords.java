@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import net.purpleclay.raft.LogRecords;
+
+
+/**
+ * A range of records in a single {@code LogSegment}, which is transferred
+ * straight from the segment's file without being copied through the heap.
+ * Note that a range is read from the segment when it's used, so if the
+ * segment is deleted first then the channel is closed and using the range
+ * fails.
+ */
+class SegmentRecords implements LogRecords {
+
+	// the segment and where the range is in it
+	private final LogSegment segment;
+	private final long position;
+	private final long length;
+
+	// the entries in the range
+	private final long firstIndex;
+	private final int entryCount;
+
+	/**
+	 * Creates an instance of {@code SegmentRecords}.
+	 *
+	 * @param segment the segment holding the records, or {@code null} if
+	 *                the range is empty
+	 * @param position the position of the first record in the segment
+	 * @param length the total length of the records
+	 * @param firstIndex the index of the first entry
+	 * @param entryCount the number of entries
+	 */
+	SegmentRecords(LogSegment segment, long position, long length, long firstIndex,
+				   int entryCount)
+	{
+		this.segment = segment;
+		this.position = position;
+		this.length = length;
+		this.firstIndex = firstIndex;
+		this.entryCount = entryCount;
+	}
+
+	/* Implement LogRecords */
+
+	@Override public long getFirstIndex() {
+		return firstIndex;
+	}
+
+	@Override public int getEntryCount() {
+		return entryCount;
+	}
+
+	@Override public long getLength() {
+		return length;
+	}
+
+	@Override public void transferTo(WritableByteChannel target) throws IOException {
+		long transferred = 0L;
+		while (transferred < length)
+			transferred += segment.transferTo(position + transferred,
+											  length - transferred, target);
+	}
+
+	@Override public long transferTo(long offset, WritableByteChannel target)
+		throws IOException
+	{
+		if ((offset < 0L) || (offset > length))
+			throw new IllegalArgumentException("Invalid offset: " + offset);
+		if (offset == length)
+			return 0L;
+		return segment.transferTo(position + offset, length - offset, target);
+	}
+
+	@Override public ByteBuffer getBuffer() throws IOException {
+		if (length == 0L)
+			return ByteBuffer.allocate(0);
+		return segment.read(position, (int) length);
+	}
+
+}
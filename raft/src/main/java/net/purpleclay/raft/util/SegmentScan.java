@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.zip.CRC32;
+
+import net.purpleclay.raft.StateLog;
+
+
+/**
+ * The entries found in a {@code LogSegment}, either by reading through all of
+ * its records or from its {@code SegmentIndexFile}, and where the valid data
+ * in the segment stops. A scan checks that every record is complete, has the
+ * next index and matches its checksum, and stops at the tail marker or at the
+ * first record that doesn't pass, noting the problem.
+ * <p>
+ * An index is only trusted once it's checked against the segment: beyond its
+ * own checksum, the segment's tail marker has to be where the index says the
+ * data ends, and the last entry's record has to be valid. A segment whose
+ * index doesn't pass is scanned and indexed again.
+ */
+class SegmentScan {
+
+	/**
+	 * The suffix of the file that a segment's index is written to before it
+	 * replaces any earlier index.
+	 */
+	static final String INDEX_TEMP_SUFFIX = ".new";
+
+	// the position & term of each entry, of which only the first count are used
+	int [] positions = new int[1024];
+	long [] terms = new long[1024];
+	int count = 0;
+
+	// where the valid data ends, and the problem found there if any
+	int validEnd = 0;
+	String problem = null;
+
+	// the latest state in the segment, if any
+	long stateTerm = StateLog.NO_STATE;
+	long stateVote = -1L;
+
+	/** Adds an entry found in the segment. */
+	private void add(int position, long term) {
+		if (count == positions.length) {
+			positions = Arrays.copyOf(positions, count * 2);
+			terms = Arrays.copyOf(terms, count * 2);
+		}
+		positions[count] = position;
+		terms[count] = term;
+		count++;
+	}
+
+	/**
+	 * Reads through all records in a segment, checking that each one is
+	 * complete, has the next index and matches its checksum. The scan stops
+	 * at the tail marker, or at the first record that doesn't pass.
+	 *
+	 * @param segment the segment to scan
+	 *
+	 * @return the result of the scan
+	 *
+	 * @throws IOException if the segment can't be read
+	 */
+	static SegmentScan scan(LogSegment segment) throws IOException {
+		SegmentScan scan = new SegmentScan();
+		CRC32 checksum = new CRC32();
+		byte [] scratch = new byte[RecordFormat.CHECKSUM_SCRATCH_SIZE];
+
+		ByteBuffer records = segment.map();
+		int position = LogSegment.HEADER_SIZE;
+		long expectedIndex = segment.getFirstIndex();
+
+		while (position < records.limit()) {
+			if ((records.limit() - position >= LogSegment.TAIL_MARKER_SIZE) &&
+				(records.getLong(position) == LogSegment.TAIL_MARKER))
+				break;
+
+			if (RecordFormat.isStateRecord(records, position)) {
+				scan.problem = RecordFormat.checkRecord(records, position,
+														RecordFormat.STATE_RECORD,
+														checksum, scratch);
+				if ((scan.problem == null) &&
+					(records.getInt(position + RecordFormat.LENGTH_OFFSET) !=
+					 RecordFormat.STATE_CONTENT_SIZE))
+					scan.problem = "invalid state record at " + position;
+				if (scan.problem != null)
+					break;
+
+				scan.stateTerm = records.getLong(position + 8);
+				scan.stateVote = records.getLong(position + RecordFormat.HEADER_SIZE);
+				position += RecordFormat.HEADER_SIZE + RecordFormat.STATE_CONTENT_SIZE;
+				continue;
+			}
+
+			scan.problem =
+				RecordFormat.checkRecord(records, position, expectedIndex, checksum, scratch);
+			if (scan.problem != null)
+				break;
+
+			scan.add(position, records.getLong(position + 8));
+			position += RecordFormat.getRecordLength(records, position);
+			expectedIndex++;
+		}
+
+		scan.validEnd = position;
+		return scan;
+	}
+
+	/**
+	 * Loads the entries of a sealed segment from its index, after checking
+	 * that the index matches the segment.
+	 *
+	 * @param segment the sealed segment
+	 * @param indexFile the segment's index file
+	 *
+	 * @return the entries in the index
+	 *
+	 * @throws IOException if the index can't be read or doesn't match
+	 */
+	static SegmentScan readIndex(LogSegment segment, File indexFile) throws IOException {
+		SegmentIndexFile index = SegmentIndexFile.read(indexFile);
+		long end = index.getEnd();
+		int count = index.getCount();
+
+		if (index.getFirstIndex() != segment.getFirstIndex())
+			throw new IOException("mis-matched first index " + index.getFirstIndex());
+		if (segment.isCompressed() ?
+			(end != segment.size()) :
+			((end < LogSegment.HEADER_SIZE) ||
+			 (end + LogSegment.TAIL_MARKER_SIZE > segment.size()) ||
+			 (segment.read(end, LogSegment.TAIL_MARKER_SIZE).getLong() != LogSegment.TAIL_MARKER)))
+			throw new IOException("no tail marker at " + end);
+
+		if (count > 0) {
+			long position = index.getPositions()[count - 1];
+			if ((position < LogSegment.HEADER_SIZE) || (position >= end))
+				throw new IOException("invalid position " + position);
+			String problem = RecordFormat.checkRecord(
+				segment.read(position, (int) (end - position)), 0,
+				segment.getFirstIndex() + count - 1, new CRC32(),
+				new byte[RecordFormat.CHECKSUM_SCRATCH_SIZE]);
+			if (problem != null)
+				throw new IOException("invalid last record at " + position);
+		}
+
+		SegmentScan scan = new SegmentScan();
+		scan.positions = index.getPositions();
+		scan.terms = index.getTerms();
+		scan.count = count;
+		scan.validEnd = (int) end;
+		scan.stateTerm = index.getStateTerm();
+		scan.stateVote = index.getStateVote();
+		return scan;
+	}
+
+	/**
+	 * Writes this scan as the index of the given segment.
+	 *
+	 * @param segment the sealed segment that was scanned
+	 * @param file the file to write
+	 *
+	 * @throws IOException if the file can't be written
+	 */
+	void writeIndex(LogSegment segment, File file) throws IOException {
+		new SegmentIndexFile(segment.getFirstIndex(), validEnd, positions, terms, count,
+							 stateTerm, stateVote).write(file);
+	}
+
+	/**
+	 * Renames a newly written index over any earlier one.
+	 *
+	 * @param tempFile the new index
+	 * @param indexFile the segment's index file
+	 *
+	 * @throws IOException if the index can't be replaced
+	 */
+	static void replaceIndex(File tempFile, File indexFile) throws IOException {
+		if ((indexFile.exists() && (! indexFile.delete())) || (! tempFile.renameTo(indexFile)))
+			throw new IOException("failed to replace segment index: " + indexFile.getName());
+	}
+
+	/**
+	 * Task that scans a single segment, or loads it from its index if it has
+	 * one. A sealed segment that's scanned is indexed for the next time, with
+	 * the index written to a separate file first so that an index file is
+	 * always complete.
+	 */
+	static class Task implements Callable<SegmentScan> {
+		private final LogSegment segment;
+		private final File indexFile;
+		Task(LogSegment segment, File indexFile) {
+			this.segment = segment;
+			this.indexFile = indexFile;
+		}
+		@Override public SegmentScan call() throws IOException {
+			if (indexFile == null)
+				return scan(segment);
+
+			if (indexFile.exists()) {
+				try {
+					return readIndex(segment, indexFile);
+				} catch (ClosedByInterruptException cbie) {
+					// the load already failed elsewhere
+					throw cbie;
+				} catch (IOException ioe) {
+					// TODO: log this case .. the log is still correct, just slower
+					System.out.println("WARNING: ignoring index of " + segment + " (" +
+									   ioe.getMessage() + ")");
+				}
+			}
+
+			SegmentScan scan = scan(segment);
+			if (scan.problem == null) {
+				try {
+					File tempFile = new File(indexFile.getParentFile(),
+											 indexFile.getName() + INDEX_TEMP_SUFFIX);
+					scan.writeIndex(segment, tempFile);
+					replaceIndex(tempFile, indexFile);
+				} catch (IOException ioe) {
+					// TODO: log this case .. the log is still correct, just slower
+					System.out.println("WARNING: failed to index " + segment + ": " +
+									   ioe.getMessage());
+				}
+			}
+			return scan;
+		}
+	}
+
+}
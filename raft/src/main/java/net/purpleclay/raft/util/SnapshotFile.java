@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import net.purpleclay.raft.SnapshotStateMachine;
+
+
+/**
+ * The latest snapshot of a {@code DurableLog}, kept in the log directory as
+ * the {@code SNAPSHOT_FILE} file. The file starts with a fixed header of the
+ * version and the index & term of the last entry the snapshot covers, and
+ * the state machine's encoded state follows.
+ * <p>
+ * A new snapshot is written and synced to a separate file first, and then
+ * renamed over the latest one, so the snapshot in place is always complete.
+ * A separate file that's left behind was never completed and is discarded.
+ */
+class SnapshotFile {
+
+	// the current version for on-disk snapshots
+	private static final long CURRENT_VERSION = 1L;
+
+	// the length of the snapshot header: version, index & term
+	private static final int HEADER_SIZE = 24;
+
+	// the latest snapshot, and the file a new one is written to first
+	private final File file;
+	private final File tempFile;
+
+	// the index & term of the last entry covered by the latest snapshot
+	private long index = 0L;
+	private long term = 0L;
+
+	/**
+	 * Creates an instance of {@code SnapshotFile}.
+	 *
+	 * @param logDir the log directory
+	 */
+	SnapshotFile(File logDir) {
+		this.file = new File(logDir, DurableLog.SNAPSHOT_FILE);
+		this.tempFile = new File(logDir, DurableLog.SNAPSHOT_FILE + ".new");
+	}
+
+	/**
+	 * Discards a snapshot that was never completed, if there is one.
+	 *
+	 * @throws IOException if the incomplete snapshot can't be removed
+	 */
+	void removeIncomplete() throws IOException {
+		if (tempFile.exists() && (! tempFile.delete()))
+			throw new IOException("failed to remove incomplete snapshot");
+	}
+
+	/** Returns whether there is a snapshot. */
+	boolean exists() {
+		return file.exists();
+	}
+
+	/**
+	 * Restores the given state machine from the snapshot, after which the
+	 * index & term it covers are available.
+	 *
+	 * @param stateMachine the state machine to restore
+	 *
+	 * @throws IOException if the snapshot can't be read
+	 */
+	void restore(SnapshotStateMachine stateMachine) throws IOException {
+		DataInputStream in =
+			new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			checkVersion(in);
+			index = in.readLong();
+			term = in.readLong();
+			stateMachine.readSnapshot(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Returns the snapshot's encoded state, without its header.
+	 *
+	 * @return the snapshot content, or {@code null} if there is no snapshot
+	 *
+	 * @throws IOException if the snapshot can't be read
+	 */
+	byte [] read() throws IOException {
+		if (! file.exists())
+			return null;
+
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			checkVersion(in);
+			in.skipBytes(HEADER_SIZE - 8);
+			byte [] snapshot = new byte[(int) (file.length() - HEADER_SIZE)];
+			in.readFully(snapshot);
+			return snapshot;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Durably writes a new snapshot, replacing the latest one. The content is
+	 * either the given bytes or, if those are {@code null}, the current state
+	 * of the state machine.
+	 *
+	 * @param index the index of the last entry covered by the snapshot
+	 * @param term the term of the last entry covered by the snapshot
+	 * @param snapshot the encoded state, or {@code null}
+	 * @param stateMachine the state machine to encode if there is no content
+	 *
+	 * @throws IOException if the snapshot can't be written
+	 */
+	void write(long index, long term, byte [] snapshot, SnapshotStateMachine stateMachine)
+		throws IOException
+	{
+		FileOutputStream fileOut = new FileOutputStream(tempFile);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.writeLong(CURRENT_VERSION);
+			out.writeLong(index);
+			out.writeLong(term);
+			if (snapshot != null)
+				out.write(snapshot);
+			else
+				stateMachine.writeSnapshot(out);
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+
+		// rename is atomic where it can replace an existing file, otherwise
+		// the old snapshot has to be removed first
+		if (! tempFile.renameTo(file)) {
+			if ((! file.delete()) || (! tempFile.renameTo(file)))
+				throw new IOException("failed to replace snapshot");
+		}
+
+		this.index = index;
+		this.term = term;
+	}
+
+	/** Returns the index of the last entry covered by the snapshot. */
+	long getIndex() {
+		return index;
+	}
+
+	/** Returns the term of the last entry covered by the snapshot. */
+	long getTerm() {
+		return term;
+	}
+
+	/** Reads the version at the start of a snapshot and checks it. */
+	private static void checkVersion(DataInputStream in) throws IOException {
+		long version = in.readLong();
+		if (version != CURRENT_VERSION)
+			throw new IOException("invalid snapshot version: " + version);
+	}
+
+}
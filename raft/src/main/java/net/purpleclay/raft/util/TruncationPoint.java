@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+
+/**
+ * The point that a {@code DurableLog} is being truncated from, kept in the
+ * log directory as the {@code TRUNCATION_FILE} file while the segments are
+ * cut back. The point is synced before any segment is changed and removed
+ * once they all are, so if the log is interrupted part-way through then the
+ * cut is finished when the log is loaded, and discarded entries never come
+ * back after a restart.
+ * <p>
+ * The point also holds the latest server state, since the record of that
+ * state may be in the part that's cut. It ends with a checksum, and a point
+ * that wasn't completely written means that no segment was changed yet.
+ */
+class TruncationPoint {
+
+	// the length of the truncation point: index, state term & vote, and the
+	// checksum of those
+	private static final int SIZE = 28;
+
+	// the index being truncated from and the latest state
+	private final long index;
+	private final long stateTerm;
+	private final long stateVote;
+
+	private TruncationPoint(long index, long stateTerm, long stateVote) {
+		this.index = index;
+		this.stateTerm = stateTerm;
+		this.stateVote = stateVote;
+	}
+
+	/**
+	 * Durably records the index that the log is about to be truncated from,
+	 * along with the latest state.
+	 *
+	 * @param logDir the log directory
+	 * @param index the first index being removed
+	 * @param stateTerm the latest state's term
+	 * @param stateVote the latest state's vote
+	 *
+	 * @throws IOException if the point can't be written
+	 */
+	static void write(File logDir, long index, long stateTerm, long stateVote)
+		throws IOException
+	{
+		ByteBuffer point = ByteBuffer.allocate(SIZE - 4);
+		point.putLong(index).putLong(stateTerm).putLong(stateVote);
+		CRC32 checksum = new CRC32();
+		checksum.update(point.array());
+
+		FileOutputStream fileOut =
+			new FileOutputStream(new File(logDir, DurableLog.TRUNCATION_FILE));
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+			out.write(point.array());
+			out.writeInt((int) checksum.getValue());
+			out.flush();
+			fileOut.getFD().sync();
+		} finally {
+			fileOut.close();
+		}
+	}
+
+	/** Returns whether there is a truncation point. */
+	static boolean exists(File logDir) {
+		return new File(logDir, DurableLog.TRUNCATION_FILE).exists();
+	}
+
+	/**
+	 * Reads the truncation point.
+	 *
+	 * @param logDir the log directory
+	 *
+	 * @return the point, or {@code null} if it wasn't completely written
+	 *
+	 * @throws IOException if the point can't be read
+	 */
+	static TruncationPoint read(File logDir) throws IOException {
+		File file = new File(logDir, DurableLog.TRUNCATION_FILE);
+		if (file.length() != SIZE)
+			return null;
+
+		byte [] point = new byte[SIZE - 4];
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			in.readFully(point);
+			CRC32 checksum = new CRC32();
+			checksum.update(point);
+			if (in.readInt() != (int) checksum.getValue())
+				return null;
+		} finally {
+			in.close();
+		}
+
+		ByteBuffer values = ByteBuffer.wrap(point);
+		return new TruncationPoint(values.getLong(), values.getLong(), values.getLong());
+	}
+
+	/**
+	 * Removes the truncation point once the log no longer needs it.
+	 *
+	 * @param logDir the log directory
+	 *
+	 * @throws IOException if the point can't be removed
+	 */
+	static void delete(File logDir) throws IOException {
+		if (! new File(logDir, DurableLog.TRUNCATION_FILE).delete())
+			throw new IOException("failed to remove truncation point");
+	}
+
+	/** Returns the first index being removed. */
+	long getIndex() {
+		return index;
+	}
+
+	/** Returns the term of the latest state when the point was written. */
+	long getStateTerm() {
+		return stateTerm;
+	}
+
+	/** Returns the vote of the latest state when the point was written. */
+	long getStateVote() {
+		return stateVote;
+	}
+
+}
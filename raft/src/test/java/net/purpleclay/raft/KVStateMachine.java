@@ -7,13 +7,20 @@
 
 package net.purpleclay.raft;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 
 /** Testing class that provides a key-value {@code StateMachine}. */
-public class KVStateMachine implements StateMachine {
+public class KVStateMachine implements SnapshotStateMachine {
 
 	public static final String COMMAND_ID = KVCommand.class.getName();
 
@@ -28,6 +35,23 @@ public class KVStateMachine implements StateMachine {
 		kvMap.put(kvCmd.key, kvCmd.value);
 	}
 
+	@Override public void writeSnapshot(OutputStream out) throws IOException {
+		DataOutputStream dataOut = new DataOutputStream(out);
+		dataOut.writeInt(kvMap.size());
+		for (Map.Entry<String,String> entry : kvMap.entrySet()) {
+			dataOut.writeUTF(entry.getKey());
+			dataOut.writeUTF(entry.getValue());
+		}
+		dataOut.flush();
+	}
+
+	@Override public void readSnapshot(InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		kvMap.clear();
+		for (int count = dataIn.readInt(); count > 0; count--)
+			kvMap.put(dataIn.readUTF(), dataIn.readUTF());
+	}
+
 	public String getValue(String key) {
 		return kvMap.get(key);
 	}
@@ -36,6 +60,31 @@ public class KVStateMachine implements StateMachine {
 		return new KVCommand(key, value);
 	}
 
+	public static CommandCodec createCodec() {
+		return new KVCodec();
+	}
+
+	private static class KVCodec implements CommandCodec {
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+		@Override public int getEncodedLength(Command command) {
+			KVCommand kvCmd = (KVCommand) command;
+			return 8 + kvCmd.key.getBytes(UTF8).length + kvCmd.value.getBytes(UTF8).length;
+		}
+		@Override public void encode(Command command, ByteBuffer buffer) {
+			KVCommand kvCmd = (KVCommand) command;
+			byte [] key = kvCmd.key.getBytes(UTF8);
+			byte [] value = kvCmd.value.getBytes(UTF8);
+			buffer.putInt(key.length).put(key).putInt(value.length).put(value);
+		}
+		@Override public Command decode(ByteBuffer buffer) {
+			byte [] key = new byte[buffer.getInt()];
+			buffer.get(key);
+			byte [] value = new byte[buffer.getInt()];
+			buffer.get(value);
+			return new KVCommand(new String(key, UTF8), new String(value, UTF8));
+		}
+	}
+
 	private static class KVCommand implements Command, Serializable {
 		private static final long serialVersionUID = -6729316535780966854L;
 		final String key;
@@ -38,6 +38,14 @@ public class NonDurableLog implements Log {
 		return entries.get((int) getLastIndex()).term;
 	}
 
+	@Override public long getDurableIndex() {
+		return getLastIndex();
+	}
+
+	@Override public void setDurabilityListener(DurabilityListener listener) {
+		// every append is as durable as it will ever be when it returns
+	}
+
 	@Override public synchronized boolean hasEntry(long index, long term) {
 		if ((index < 0) || (index >= entries.size()))
 			return false;
@@ -63,6 +71,11 @@ public class NonDurableLog implements Log {
 		entries.add(new Entry(term, command));
 	}
 
+	@Override public synchronized void append(Command [] commands, long term) {
+		for (Command command : commands)
+			entries.add(new Entry(term, command));
+	}
+
 	@Override public synchronized void applied(long appliedIndex) {
 		if (appliedIndex <= commitIndex) 
 			return;
@@ -74,6 +87,22 @@ public class NonDurableLog implements Log {
 			stateMachine.apply(entries.get((int) i).command);
 	}
 
+	@Override public long getSnapshotIndex() {
+		return 0L;
+	}
+
+	@Override public long compact() {
+		throw new UnsupportedOperationException("Compaction not supported");
+	}
+
+	@Override public byte [] getSnapshot() {
+		return null;
+	}
+
+	@Override public void installSnapshot(long index, long term, byte [] snapshot) {
+		throw new UnsupportedOperationException("Compaction not supported");
+	}
+
 	@Override public synchronized Command [] getEntries(long startingIndex) {
 		if ((startingIndex < 1) || (startingIndex >= entries.size()))
 			return new Command[0];
@@ -83,6 +112,38 @@ public class NonDurableLog implements Log {
 		return commandArray;
 	}
 	
+	@Override public synchronized LogCursor getCursor(long startingIndex, final int maxEntries,
+													 long maxBytes)
+	{
+		if ((startingIndex < 1) || (maxEntries < 1) || (maxBytes < 1L))
+			throw new IllegalArgumentException("Invalid cursor range");
+
+		// entries aren't encoded, so the byte limit is ignored
+		final long firstIndex = startingIndex;
+		return new LogCursor() {
+			private long index = firstIndex - 1;
+			@Override public boolean next() {
+				synchronized (NonDurableLog.this) {
+					if ((index + 1 >= firstIndex + maxEntries) || (index + 1 >= entries.size()))
+						return false;
+					index++;
+					return true;
+				}
+			}
+			@Override public long getIndex() {
+				return index;
+			}
+			@Override public long getTerm() {
+				return NonDurableLog.this.getTerm(index);
+			}
+			@Override public Command getCommand() {
+				synchronized (NonDurableLog.this) {
+					return entries.get((int) index).command;
+				}
+			}
+		};
+	}
+
 	private class Entry {
 		final long term;
 		final Command command;
@@ -8,6 +8,7 @@
 package net.purpleclay.raft.local;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
@@ -18,11 +19,13 @@ import java.util.concurrent.TimeUnit;
 
 import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.KVStateMachine;
+import net.purpleclay.raft.Log;
 import net.purpleclay.raft.MembershipHandle;
 import net.purpleclay.raft.Message;
 import net.purpleclay.raft.NonDurableLog;
 import net.purpleclay.raft.ProxyServer;
 import net.purpleclay.raft.InternalServer;
+import net.purpleclay.raft.util.DurableLog;
 
 
 /** Testing utility for a fixed collection of {@code LocalServer} instances. */
@@ -34,6 +37,8 @@ public class LocalCluster {
 		new ConcurrentHashMap<Long,ProxyServer>();
 	private final Map<Long,KVStateMachine> kvMachines =
 		new ConcurrentHashMap<Long,KVStateMachine>();
+	private final Map<Long,Log> logs =
+		new ConcurrentHashMap<Long,Log>();
 
 	private final Properties properties = new Properties();
 
@@ -46,6 +51,19 @@ public class LocalCluster {
 	public LocalCluster(int size, int threads, File tmpDir,
 						long heartbeat, long termTimeout)
 	{
+		this(size, threads, tmpDir, heartbeat, termTimeout, new Properties());
+	}
+
+	public LocalCluster(int size, int threads, File tmpDir,
+						long heartbeat, long termTimeout, Properties serverProperties)
+	{
+		this(size, threads, tmpDir, heartbeat, termTimeout, serverProperties, false);
+	}
+
+	public LocalCluster(int size, int threads, File tmpDir, long heartbeat,
+						long termTimeout, Properties serverProperties, boolean durable)
+	{
+		properties.putAll(serverProperties);
 		properties.setProperty(LocalServer.HEARTBEAT_PROPERTY,
 							   String.valueOf(heartbeat));
 		properties.setProperty(LocalServer.TERM_TIMEOUT_PROPERTY,
@@ -59,8 +77,24 @@ public class LocalCluster {
 			stateDir.mkdir();
 			properties.setProperty(LocalServer.STATE_DIR_PROPERTY, stateDir.getAbsolutePath());
 
-			LocalServer ls = LocalServer.createInstance(i, new NonDurableLog(kv),
-														membershipHandle, properties);
+			Log log = null;
+			if (durable) {
+				File logDir = new File(tmpDir, i + "-log");
+				logDir.mkdir();
+				Properties logProperties = new Properties();
+				logProperties.putAll(properties);
+				logProperties.setProperty(DurableLog.LOG_DIR_PROPERTY, logDir.getAbsolutePath());
+				try {
+					log = new DurableLog(logProperties, kv);
+				} catch (IOException ioe) {
+					throw new IllegalStateException("failed to open log", ioe);
+				}
+			} else {
+				log = new NonDurableLog(kv);
+			}
+			logs.put(i, log);
+
+			LocalServer ls = LocalServer.createInstance(i, log, membershipHandle, properties);
 			localServers.put(i, ls);
 			proxyServers.put(i, new ProxyServer(ls, threads));
 		}
@@ -74,6 +108,10 @@ public class LocalCluster {
 	public void shutdown() {
 		for (InternalServer server : proxyServers.values())
 			server.shutdown();
+		for (Log log : logs.values()) {
+			if (log instanceof DurableLog)
+				((DurableLog) log).shutdown();
+		}
 	}
 
 	public boolean checkTerms() {
@@ -135,6 +173,14 @@ public class LocalCluster {
 		return null;
 	}
 
+	public LocalServer getLocalServer(long id) {
+		return localServers.get(id);
+	}
+
+	public Log getLog(long id) {
+		return logs.get(id);
+	}
+
 	public void sendUpdate(String key, String value) {
 		InternalServer leader = getLeader();
 		if (leader == null)
@@ -7,12 +7,20 @@
 
 package net.purpleclay.raft.local;
 
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import net.purpleclay.raft.CommandResultListener;
+import net.purpleclay.raft.KVStateMachine;
 import net.purpleclay.raft.ProxyServer;
+import net.purpleclay.raft.util.DurableLog;
 
 
 /** Basic tests for clusters of {@code LocalServer}s. */
@@ -54,6 +62,92 @@ public class LocalClusterTest {
 		}
 	}
 
+	@Test
+	public void testEventLoop() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH EVENT LOOPS");
+		Properties p = new Properties();
+		p.setProperty(LocalServer.EVENT_LOOP_PROPERTY, "true");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 500L, 1000L, p);
+		try {
+			basicStressTest(cluster);
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testBatching() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH BATCHING");
+		Properties p = new Properties();
+		p.setProperty(LocalServer.BATCH_DELAY_PROPERTY, "5");
+		p.setProperty(LocalServer.BATCH_ENTRIES_PROPERTY, "2");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 500L, 1000L, p);
+		try {
+			basicStressTest(cluster);
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testDurableLog() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH DURABLE LOGS");
+		Properties p = new Properties();
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "4096");
+		p.setProperty(LocalServer.CATCH_UP_ENTRIES_PROPERTY, "1");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 500L, 1000L, p, true);
+		try {
+			basicStressTest(cluster);
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testSnapshotCatchUp() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH SNAPSHOTS");
+		Properties p = new Properties();
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "4096");
+		p.setProperty(DurableLog.SNAPSHOT_INTERVAL_PROPERTY, "10");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 500L, 1000L, p, true);
+		try {
+			cluster.start();
+			Thread.sleep(2000L);
+			ProxyServer leader = cluster.getLeader();
+			Assert.assertNotNull("no leader elected", leader);
+
+			// a follower misses enough updates that the leader compacts past
+			// the end of its log
+
+			ProxyServer offlineServer = cluster.getFollower();
+			System.out.println("Disconnecting server: " + offlineServer.getId());
+			offlineServer.disconnect();
+
+			for (int i = 1; i <= 30; i++)
+				cluster.sendUpdate("k", "v" + i, leader);
+
+			Thread.sleep(500L);
+
+			Assert.assertTrue("leader did not compact",
+							  cluster.getLog(leader.getId()).getSnapshotIndex() >
+							  cluster.getLog(offlineServer.getId()).getLastIndex());
+
+			// once it's back the follower is caught up from the snapshot
+
+			System.out.println("Reconnecting server: " + offlineServer.getId());
+			offlineServer.reconnect();
+
+			Thread.sleep(3000L);
+
+			Assert.assertTrue("invalid commit index", cluster.checkCommitIndex());
+			Assert.assertTrue("state machines are not synchronized", cluster.checkKey("k"));
+			Assert.assertTrue("follower did not install the snapshot",
+							  cluster.getLog(offlineServer.getId()).getSnapshotIndex() > 0L);
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
 	@Test
 	public void testSevenServers() throws Exception {
 		System.out.println("\nSTARTING TEST FOR 7 SERVERS");
@@ -65,6 +159,74 @@ public class LocalClusterTest {
 		}
 	}
 
+	@Test
+	public void testBackgroundSyncLatency() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH BACKGROUND SYNCS");
+		Properties p = new Properties();
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, DurableLog.Durability.INTERVAL.name());
+		p.setProperty(DurableLog.SYNC_INTERVAL_PROPERTY, "10");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 2000L, 4000L, p, true);
+		try {
+			cluster.start();
+			Thread.sleep(5000L);
+			Assert.assertNotNull("no leader elected", cluster.getLeader());
+
+			// the entries only become durable after the append is answered,
+			// so without acknowledging them then each commit would wait for
+			// the next heartbeat
+
+			for (int i = 1; i <= 10; i++) {
+				long start = System.currentTimeMillis();
+				Assert.assertTrue("update failed", cluster.waitOnUpdate("k", "v" + i, 5000L));
+				long latency = System.currentTimeMillis() - start;
+				Assert.assertTrue("commit waited for a heartbeat: " + latency + "ms",
+								  latency < 1000L);
+			}
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
+	@Test
+	public void testShutdownWithHeldCommands() throws Exception {
+		System.out.println("\nSTARTING TEST FOR 3 SERVERS WITH HELD COMMANDS");
+		Properties p = new Properties();
+		p.setProperty(LocalServer.BATCH_DELAY_PROPERTY, "60000");
+		p.setProperty(LocalServer.BATCH_ENTRIES_PROPERTY, "100");
+		LocalCluster cluster = new LocalCluster(3, 1, tmpDir.getRoot(), 500L, 1000L, p);
+		try {
+			cluster.start();
+			Thread.sleep(2000L);
+			ProxyServer leader = cluster.getLeader();
+			Assert.assertNotNull("no leader elected", leader);
+
+			// the leader holds the command for a batch that won't fill, and
+			// is stopped before the batch is due .. it's cut off first so
+			// that losing its leadership can't be what rejects the command
+
+			final CountDownLatch latch = new CountDownLatch(1);
+			final AtomicBoolean applied = new AtomicBoolean(false);
+			cluster.getLocalServer(leader.getId()).
+				send(KVStateMachine.createCommand("k", "v"), new CommandResultListener() {
+						public void commandApplied() {
+							applied.set(true);
+							latch.countDown();
+						}
+						public void commandFailed() {
+							latch.countDown();
+						}
+					});
+			Assert.assertEquals("command was not held", 1L, latch.getCount());
+			leader.disconnect();
+			leader.shutdown();
+
+			Assert.assertTrue("held command was dropped", latch.await(5L, TimeUnit.SECONDS));
+			Assert.assertFalse("held command was applied", applied.get());
+		} finally {
+			cluster.shutdown();
+		}
+	}
+
 	private void basicStressTest(LocalCluster cluster) throws Exception {
 		cluster.start();
 
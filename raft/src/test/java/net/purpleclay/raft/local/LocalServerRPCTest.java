@@ -3,6 +3,7 @@ package net.purpleclay.raft.local;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -12,6 +13,8 @@ import net.purpleclay.raft.Command;
 import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.InternalServer;
 import net.purpleclay.raft.KVStateMachine;
+import net.purpleclay.raft.Log;
+import net.purpleclay.raft.LogRecords;
 import net.purpleclay.raft.MembershipHandle;
 import net.purpleclay.raft.Message;
 import net.purpleclay.raft.NonDurableLog;
@@ -19,6 +22,7 @@ import net.purpleclay.raft.client.Server;
 import net.purpleclay.raft.client.ServerBuilder;
 import net.purpleclay.raft.local.LocalServer.Role;
 import net.purpleclay.raft.util.AbstractServer;
+import net.purpleclay.raft.util.DurableLog;
 
 import org.junit.After;
 import org.junit.Before;
@@ -108,6 +112,83 @@ public class LocalServerRPCTest {
 		Assert.assertEquals(1, appendResponse.getIndex());
 	}
 	
+	@Test
+	public void testRequestAppendWithLongerLog() throws Exception {
+		// the follower already has entries past the ones in a message that
+		// was re-sent, so it only acknowledges what the message matched
+
+		realServer.shutdown();
+		mh = new RPCTestMembershipHandle();
+		KVStateMachine kv = new KVStateMachine();
+		NonDurableLog log = new NonDurableLog(kv);
+		log.append(new Command[] {KVStateMachine.createCommand("key1", "value1"),
+								  KVStateMachine.createCommand("key2", "value2"),
+								  KVStateMachine.createCommand("key3", "value3")}, 1);
+		realServer = buildRealServer(mh, kv, log);
+
+		RPCTestServer testServer = new RPCTestServer(mh);
+		realServer.start();
+
+		Command[] commands = {KVStateMachine.createCommand("key1", "value1")};
+		AppendRequestMsg appendRequest = new AppendRequestMsg(testServer.getId(), 1, 0, 0, commands, 0);
+		send(realServer, appendRequest);
+		AppendResponseMsg appendResponse = testServer.getAppendResponseMsg(1, TimeUnit.SECONDS);
+		Assert.assertEquals(true, appendResponse.getResponse());
+		Assert.assertEquals(1, appendResponse.getIndex());
+		Assert.assertEquals(3, log.getLastIndex());
+	}
+
+	@Test
+	public void testRequestAppendRecordsWithConflictingSuffix() throws Exception {
+		// the leader's log diverges from the follower's after the first entry,
+		// and the follower holds a longer suffix from the older term
+
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("leader").getAbsolutePath());
+		DurableLog leaderLog = new DurableLog(p, new KVStateMachine());
+		leaderLog.append(KVStateMachine.createCommand("key1", "value1"), 1);
+		leaderLog.append(KVStateMachine.createCommand("key2", "other"), 2);
+
+		realServer.shutdown();
+		mh = new RPCTestMembershipHandle();
+		KVStateMachine kv = new KVStateMachine();
+		p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("follower").getAbsolutePath());
+		DurableLog log = new DurableLog(p, kv);
+		log.append(new Command[] {KVStateMachine.createCommand("key1", "value1"),
+								  KVStateMachine.createCommand("key2", "value2"),
+								  KVStateMachine.createCommand("key3", "value3")}, 1);
+		realServer = buildRealServer(mh, kv, log);
+
+		RPCTestServer testServer = new RPCTestServer(mh);
+		realServer.start();
+
+		try {
+			// a page holding only the first entry matches what the follower
+			// has, but the entries after it haven't been matched
+
+			LogRecords records = leaderLog.getRecords(1, 1, Long.MAX_VALUE);
+			send(realServer, new AppendRecordsMsg(testServer.getId(), 2, 0, 0, records, 0));
+			AppendResponseMsg appendResponse = testServer.getAppendResponseMsg(1, TimeUnit.SECONDS);
+			Assert.assertEquals(true, appendResponse.getResponse());
+			Assert.assertEquals(1, appendResponse.getIndex());
+
+			// the next page replaces the conflicting suffix
+
+			records = leaderLog.getRecords(2, 1, Long.MAX_VALUE);
+			send(realServer, new AppendRecordsMsg(testServer.getId(), 2, 1, 1, records, 0));
+			appendResponse = testServer.getAppendResponseMsg(1, TimeUnit.SECONDS);
+			Assert.assertEquals(true, appendResponse.getResponse());
+			Assert.assertEquals(2, appendResponse.getIndex());
+			Assert.assertEquals(2, log.getLastIndex());
+			Assert.assertTrue(log.hasEntry(2, 2));
+		} finally {
+			realServer.shutdown();
+			log.shutdown();
+			leaderLog.shutdown();
+		}
+	}
+
 	private static void send(InternalServer server, Message msg) {
 //		System.out.println("SEND: " + msg);
 		server.invoke(msg);
@@ -115,8 +196,10 @@ public class LocalServerRPCTest {
 	
 	private LocalServer buildRealServer(RPCTestMembershipHandle mh) {
 		KVStateMachine kv = new KVStateMachine();
-		NonDurableLog log = new NonDurableLog(kv);
-		
+		return buildRealServer(mh, kv, new NonDurableLog(kv));
+	}
+
+	private LocalServer buildRealServer(RPCTestMembershipHandle mh, KVStateMachine kv, Log log) {
 		LocalServer realServer = (LocalServer) new ServerBuilder().withStateMachine(kv)
 				.withStateDir(tmpDir.getRoot().getAbsolutePath())
 				.withLog(log)
@@ -7,10 +7,15 @@
 
 package net.purpleclay.raft.local;
 
+import java.io.File;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Properties;
 
+import net.purpleclay.raft.Command;
+import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.KVStateMachine;
 import net.purpleclay.raft.Log;
 import net.purpleclay.raft.MembershipHandle;
@@ -18,6 +23,9 @@ import net.purpleclay.raft.Message;
 import net.purpleclay.raft.NonDurableLog;
 import net.purpleclay.raft.InternalServer;
 import net.purpleclay.raft.StateMachine;
+import net.purpleclay.raft.client.Server;
+import net.purpleclay.raft.util.AbstractServer;
+import net.purpleclay.raft.util.DurableLog;
 
 import org.junit.Assert;
 import org.junit.Rule;
@@ -58,6 +66,65 @@ public class LocalServerTest {
 		Assert.assertEquals("not leader", server.getRole(), LocalServer.Role.LEADER);
 	}
 	
+	@Test
+	public void restartServerWithStateInLog() throws Exception {
+		DurableLog log = createDurableLog(new KVStateMachine());
+		CandidateMembershipHandle mh = new CandidateMembershipHandle();
+		LocalServer server = createStateLogServer(log, mh, false);
+		server.start();
+
+		server.invoke(new VoteRequestMsg(2L, 5L, 0L, 0L));
+		Assert.assertTrue("vote not granted", mh.getVoteResponse(2L).getResponse());
+
+		server.shutdown();
+		log.shutdown();
+
+		// the term and vote are read back from the log
+		log = createDurableLog(new KVStateMachine());
+		Assert.assertEquals("term not in log", 5L, log.getStateTerm());
+		Assert.assertEquals("vote not in log", 2L, log.getStateVote());
+
+		mh = new CandidateMembershipHandle();
+		server = createStateLogServer(log, mh, true);
+		server.start();
+		try {
+			// another candidate in the same term doesn't get a second vote,
+			// but the one that was voted for still does
+			server.invoke(new VoteRequestMsg(3L, 5L, 0L, 0L));
+			Assert.assertFalse("voted twice in a term", mh.getVoteResponse(3L).getResponse());
+			server.invoke(new VoteRequestMsg(2L, 5L, 0L, 0L));
+			Assert.assertTrue("vote was lost", mh.getVoteResponse(2L).getResponse());
+		} finally {
+			server.shutdown();
+			log.shutdown();
+		}
+	}
+
+	private DurableLog createDurableLog(StateMachine sm) throws Exception {
+		File logDir = new File(tmpDir.getRoot(), "log");
+		logDir.mkdir();
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, logDir.getAbsolutePath());
+		return new DurableLog(p, sm);
+	}
+
+	private LocalServer createStateLogServer(Log log, CandidateMembershipHandle mh,
+											 boolean restart)
+	{
+		Properties p = new Properties();
+		p.setProperty(LocalServer.STATE_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(LocalServer.STATE_IN_LOG_PROPERTY, "true");
+
+		LocalServer server = null;
+		if (restart)
+			server = LocalServer.loadInstance(log, mh, p);
+		else
+			server = LocalServer.createInstance(1L, log, mh, p);
+		mh.servers.put(server.getId(), server);
+
+		return server;
+	}
+
 	private LocalServer createServer(StateMachine sm, Log log, boolean restart) {
 		Properties p = new Properties();
 		p.setProperty(LocalServer.STATE_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
@@ -83,4 +150,39 @@ public class LocalServerTest {
 		}
 		@Override public Collection<InternalServer> getServers() { return servers; }
 	}
+
+	/** Membership of a server and two candidates that note their votes. */
+	private static class CandidateMembershipHandle implements MembershipHandle {
+		final Map<Long,InternalServer> servers = new HashMap<Long,InternalServer>();
+		CandidateMembershipHandle() {
+			servers.put(2L, new CandidateServer(2L));
+			servers.put(3L, new CandidateServer(3L));
+		}
+		VoteResponseMsg getVoteResponse(long candidateId) {
+			VoteResponseMsg response = ((CandidateServer) servers.get(candidateId)).response;
+			Assert.assertNotNull("no vote response", response);
+			return response;
+		}
+		@Override public int getMembershipCount() { return servers.size(); }
+		@Override public void invokeAll(Message message) { }
+		@Override public InternalServer findServer(long id) { return servers.get(id); }
+		@Override public Collection<InternalServer> getServers() { return servers.values(); }
+	}
+
+	/** Candidate that only keeps the latest vote response it was sent. */
+	private static class CandidateServer extends AbstractServer {
+		volatile VoteResponseMsg response = null;
+		CandidateServer(long id) {
+			super(id);
+		}
+		@Override public void invoke(Message message) {
+			if (message instanceof VoteResponseMsg)
+				response = (VoteResponseMsg) message;
+		}
+		@Override public void start() { }
+		@Override public void shutdown() { }
+		@Override public void send(Command command) { }
+		@Override public void send(Command command, CommandResultListener listener) { }
+		@Override public Server getLeader() { return null; }
+	}
 }
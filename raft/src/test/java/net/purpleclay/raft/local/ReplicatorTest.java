@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.local;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/** Tests for the leader's per-follower {@code Replicator}. */
+public class ReplicatorTest {
+
+	@Test
+	public void testWindow() {
+		Replicator replicator = new Replicator(3, 10L);
+
+		// a new follower is probed with one page until it answers
+
+		Assert.assertTrue("cannot probe", replicator.canSend());
+		replicator.sent(10L, 20L);
+		Assert.assertFalse("sent past the probe", replicator.canSend());
+		replicator.acknowledged(20L);
+
+		// then pages are pipelined up to the window
+
+		replicator.sent(20L, 30L);
+		replicator.sent(30L, 40L);
+		replicator.sent(40L, 50L);
+		Assert.assertFalse("sent past the window", replicator.canSend());
+		Assert.assertEquals("invalid next index", 51L, replicator.getNextIndex());
+
+		replicator.acknowledged(30L);
+		Assert.assertTrue("window not opened", replicator.canSend());
+		Assert.assertEquals("invalid match index", 30L, replicator.getMatchIndex());
+
+		// hearing that everything sent is there empties the window
+
+		replicator.acknowledged(50L);
+		Assert.assertFalse("pages still in flight", replicator.isInFlight());
+	}
+
+	@Test
+	public void testBackOff() {
+		Replicator replicator = new Replicator(4, 0L);
+		replicator.sent(0L, 10L);
+		replicator.acknowledged(10L);
+		replicator.sent(10L, 20L);
+		replicator.sent(20L, 30L);
+		replicator.sent(30L, 40L);
+
+		// a heartbeat that overtook the pages is ignored
+
+		Assert.assertFalse("backed off for a heartbeat", replicator.rejected(40L, 10L));
+		Assert.assertEquals("invalid next index", 41L, replicator.getNextIndex());
+
+		// a rejected page backs off to the follower's index and probes
+
+		Assert.assertTrue("didn't back off", replicator.rejected(20L, 15L));
+		Assert.assertEquals("invalid next index", 16L, replicator.getNextIndex());
+		replicator.sent(15L, 25L);
+		Assert.assertFalse("sent past the probe", replicator.canSend());
+
+		// the other pages sent before the back-off are rejected too
+
+		Assert.assertFalse("backed off for a stale page", replicator.rejected(30L, 15L));
+		Assert.assertEquals("invalid next index", 26L, replicator.getNextIndex());
+
+		// a rejection without a request doesn't back off, but it does answer
+		// a page, so the probe's slot is released
+
+		Assert.assertFalse("backed off without a request",
+						   replicator.rejected(AppendResponseMsg.NO_REQUEST,
+											   AppendResponseMsg.NO_INDEX));
+		Assert.assertEquals("invalid next index", 26L, replicator.getNextIndex());
+		Assert.assertFalse("probe still in flight", replicator.isInFlight());
+		Assert.assertTrue("slot not released", replicator.canSend());
+	}
+
+	@Test
+	public void testStalled() {
+		Replicator replicator = new Replicator(4, 0L);
+		replicator.sent(0L, 10L);
+		replicator.acknowledged(10L);
+		replicator.sent(10L, 20L);
+		replicator.sent(20L, 30L);
+
+		// a response since the last heartbeat means nothing is lost
+
+		Assert.assertFalse("stalled after a response", replicator.checkStalled());
+
+		// but pages with no response by the next heartbeat are sent again
+
+		Assert.assertTrue("not stalled", replicator.checkStalled());
+		Assert.assertEquals("invalid next index", 11L, replicator.getNextIndex());
+		Assert.assertTrue("cannot probe", replicator.canSend());
+		Assert.assertFalse("stalled with nothing in flight", replicator.checkStalled());
+	}
+
+}
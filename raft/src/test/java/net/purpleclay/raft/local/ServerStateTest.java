@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.local;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import net.purpleclay.raft.KVStateMachine;
+import net.purpleclay.raft.util.DurableLog;
+
+
+/** Tests for the slotted, durable {@code ServerState}. */
+public class ServerStateTest {
+
+	@Rule
+    public TemporaryFolder tmpDir = new TemporaryFolder();
+
+	@Test
+	public void testRestart() throws Exception {
+		String path = tmpDir.getRoot().getAbsolutePath();
+
+		ServerState state = new ServerState(path, 7L);
+		state.updateCurrentTerm(3L);
+		state.updateLastVotedId(5L);
+		state.updateCommitIndex(42L);
+		state.shutdown();
+
+		state = new ServerState(path);
+		Assert.assertEquals("invalid server id", 7L, state.getServerId());
+		Assert.assertEquals("invalid term", 3L, state.getCurrentTerm());
+		Assert.assertEquals("invalid vote", 5L, state.getLastVotedId());
+		Assert.assertEquals("invalid commit index", 42L, state.getCommitIndex());
+
+		// a new term clears the vote
+		state.updateCurrentTerm(4L);
+		state.shutdown();
+
+		state = new ServerState(path, 7L);
+		Assert.assertEquals("invalid term", 4L, state.getCurrentTerm());
+		Assert.assertEquals("invalid vote", ServerState.NO_VOTE, state.getLastVotedId());
+		state.shutdown();
+
+		try {
+			new ServerState(path, 8L);
+			Assert.fail("loaded state for another server");
+		} catch (IllegalStateException ise) { }
+	}
+
+	@Test
+	public void testStateLog() throws Exception {
+		String path = tmpDir.newFolder("state").getAbsolutePath();
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("log").getAbsolutePath());
+
+		// state from the file is carried into a log that has none
+
+		ServerState state = new ServerState(path, 7L);
+		state.updateCurrentTerm(3L);
+		state.shutdown();
+
+		DurableLog log = new DurableLog(p, new KVStateMachine());
+		state = new ServerState(path, 7L, log);
+		Assert.assertEquals("invalid term", 3L, log.getStateTerm());
+
+		// after that the term and vote are only written to the log
+
+		state.updateCurrentTerm(4L);
+		state.updateLastVotedId(5L);
+		state.sync();
+		state.shutdown();
+		log.shutdown();
+
+		state = new ServerState(path, 7L);
+		Assert.assertEquals("invalid term", 3L, state.getCurrentTerm());
+		state.shutdown();
+
+		log = new DurableLog(p, new KVStateMachine());
+		state = new ServerState(path, 7L, log);
+		Assert.assertEquals("invalid term", 4L, state.getCurrentTerm());
+		Assert.assertEquals("invalid vote", 5L, state.getLastVotedId());
+		state.shutdown();
+		log.shutdown();
+	}
+
+	@Test
+	public void testCommitIndex() throws Exception {
+		String path = tmpDir.getRoot().getAbsolutePath();
+
+		// commit index updates are written in the background
+
+		ServerState state = new ServerState(path, 1L);
+		for (long i = 1L; i <= 1000L; i++)
+			state.updateCommitIndex(i);
+		Assert.assertEquals("invalid commit index", 1000L, state.getCommitIndex());
+
+		long written = 0L;
+		for (int i = 0; (i < 200) && (written != 1000L); i++) {
+			Thread.sleep(10L);
+			ServerState reader = new ServerState(path);
+			written = reader.getCommitIndex();
+			reader.shutdown();
+		}
+		Assert.assertEquals("commit index not written", 1000L, written);
+
+		// but a term update is written before it returns, along with the
+		// latest commit index
+
+		state.updateCommitIndex(1001L);
+		state.updateCurrentTerm(2L);
+		ServerState reader = new ServerState(path);
+		Assert.assertEquals("invalid term", 2L, reader.getCurrentTerm());
+		Assert.assertEquals("invalid commit index", 1001L, reader.getCommitIndex());
+		reader.shutdown();
+		state.shutdown();
+	}
+
+	@Test
+	public void testTornUpdate() throws Exception {
+		String path = tmpDir.getRoot().getAbsolutePath();
+
+		// the creation and each update alternate slots, so the term update
+		// is in the first slot and the vote is in the second
+		ServerState state = new ServerState(path, 1L);
+		state.updateCurrentTerm(2L);
+		state.updateLastVotedId(3L);
+		state.shutdown();
+
+		// damage the latest update, which falls back to the one before
+
+		RandomAccessFile file = new RandomAccessFile(new File(path, "server.state"), "rw");
+		file.seek(ServerState.SLOT_SIZE + ServerState.SLOT_CONTENT_SIZE - 1);
+		byte lastByte = file.readByte();
+		file.seek(ServerState.SLOT_SIZE + ServerState.SLOT_CONTENT_SIZE - 1);
+		file.writeByte(lastByte ^ 0xFF);
+		file.close();
+
+		state = new ServerState(path);
+		Assert.assertEquals("invalid term", 2L, state.getCurrentTerm());
+		Assert.assertEquals("invalid vote", ServerState.NO_VOTE, state.getLastVotedId());
+
+		// the next update goes to the damaged slot
+
+		state.updateLastVotedId(4L);
+		state.shutdown();
+
+		state = new ServerState(path);
+		Assert.assertEquals("invalid vote", 4L, state.getLastVotedId());
+		state.shutdown();
+	}
+
+	@Test
+	public void testUnslottedFile() throws Exception {
+		File dir = tmpDir.getRoot();
+		DataOutputStream out =
+			new DataOutputStream(new FileOutputStream(new File(dir, "server.state")));
+		out.writeLong(1L);
+		out.writeLong(9L);
+		out.writeLong(6L);
+		out.writeLong(11L);
+		out.writeLong(2L);
+		out.close();
+
+		ServerState state = new ServerState(dir.getAbsolutePath());
+		Assert.assertEquals("invalid server id", 9L, state.getServerId());
+		Assert.assertEquals("invalid term", 6L, state.getCurrentTerm());
+		Assert.assertEquals("invalid commit index", 11L, state.getCommitIndex());
+		Assert.assertEquals("invalid vote", 2L, state.getLastVotedId());
+		state.shutdown();
+
+		state = new ServerState(dir.getAbsolutePath());
+		Assert.assertEquals("invalid term", 6L, state.getCurrentTerm());
+		state.shutdown();
+	}
+
+	@Test
+	public void testGrownUnslottedFile() throws Exception {
+		// the original file had a record appended for every update, so a
+		// server that ran for a while has a file longer than the slots, and
+		// after a re-start later records were written over from the second
+		// one on, so the newest record isn't the last
+
+		File dir = tmpDir.getRoot();
+		DataOutputStream out =
+			new DataOutputStream(new FileOutputStream(new File(dir, "server.state")));
+		for (int i = 1; i <= 300; i++)
+			writeUnslottedRecord(out, 9L, 7L, i, (i < 200) ? ServerState.NO_VOTE : 3L);
+		for (int i = 1; i <= 20; i++)
+			writeUnslottedRecord(out, 9L, 5L, i, 2L);
+		out.writeInt(0);
+		out.close();
+		Assert.assertTrue("file too small", new File(dir, "server.state").length() > 8192L);
+
+		ServerState state = new ServerState(dir.getAbsolutePath(), 9L);
+		Assert.assertEquals("invalid server id", 9L, state.getServerId());
+		Assert.assertEquals("invalid term", 7L, state.getCurrentTerm());
+		Assert.assertEquals("invalid commit index", 300L, state.getCommitIndex());
+		Assert.assertEquals("invalid vote", 3L, state.getLastVotedId());
+		state.updateCurrentTerm(8L);
+		state.shutdown();
+
+		Assert.assertFalse("converted file left behind",
+						   new File(dir, "server.state.new").exists());
+		Assert.assertEquals("file not converted", 2L * ServerState.SLOT_SIZE,
+							new File(dir, "server.state").length());
+
+		state = new ServerState(dir.getAbsolutePath());
+		Assert.assertEquals("invalid term", 8L, state.getCurrentTerm());
+		Assert.assertEquals("invalid commit index", 300L, state.getCommitIndex());
+		state.shutdown();
+	}
+
+	/** Writes one record of the original state file. */
+	private static void writeUnslottedRecord(DataOutputStream out, long id, long term,
+											 long index, long votedId)
+		throws Exception
+	{
+		out.writeLong(1L);
+		out.writeLong(id);
+		out.writeLong(term);
+		out.writeLong(index);
+		out.writeLong(votedId);
+	}
+
+}
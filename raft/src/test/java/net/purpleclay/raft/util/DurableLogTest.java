@@ -7,16 +7,32 @@
 
 package net.purpleclay.raft.util;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.CRC32;
 
 import org.junit.Assert;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import net.purpleclay.raft.Command;
 import net.purpleclay.raft.KVStateMachine;
 import net.purpleclay.raft.Log;
+import net.purpleclay.raft.LogCursor;
+import net.purpleclay.raft.LogRecords;
+import net.purpleclay.raft.StateLog;
 import net.purpleclay.raft.StateMachine;
 
 
@@ -81,6 +97,1058 @@ public class DurableLogTest {
 		Assert.assertEquals("invalid commit index", 3L, log.getCommitIndex());
 	}
 
+	@Test
+	public void testSegments() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		KVStateMachine kv = new KVStateMachine();
+		Log log = createLog(p, kv);
+
+		for (int i = 1; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+
+		Assert.assertTrue("log was not segmented", countSegments() > 2);
+
+		((DurableLog) log).shutdown();
+
+		// re-start and then re-wind into an earlier segment
+
+		kv = new KVStateMachine();
+		log = createLog(p, kv);
+
+		Assert.assertEquals("invalid last index", 20L, log.getLastIndex());
+		Assert.assertEquals("invalid entry count", 20, log.getEntries(1L).length);
+
+		int segmentCount = countSegments();
+		log.validateEntry(5L, 2L);
+
+		Assert.assertEquals("invalid last index", 4L, log.getLastIndex());
+		Assert.assertTrue("segments were not removed", countSegments() < segmentCount);
+
+		log.append(KVStateMachine.createCommand("k", "v5"), 2L);
+		log.append(KVStateMachine.createCommand("k", "v6"), 2L);
+
+		((DurableLog) log).shutdown();
+
+		// re-start and check that nothing pruned came back
+
+		kv = new KVStateMachine();
+		log = createLog(p, kv);
+
+		Assert.assertEquals("invalid last index", 6L, log.getLastIndex());
+		Assert.assertTrue("missing entry", log.hasEntry(4L, 1L));
+		Assert.assertTrue("missing entry", log.hasEntry(5L, 2L));
+		Assert.assertTrue("missing entry", log.hasEntry(6L, 2L));
+
+		log.applied(6L);
+		Assert.assertEquals("invalid state entry", "v6", kv.getValue("k"));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testLegacyImport() throws Exception {
+		// a log in the original format, with entries across two terms and a
+		// final entry that was cut short
+
+		File legacyFile = new File(tmpDir.getRoot(), DurableLog.COMMAND_FILE);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(legacyFile));
+		out.writeLong(1L);
+		writeLegacyEntry(out, 0L, 0L, null);
+		for (int i = 1; i <= 30; i++)
+			writeLegacyEntry(out, i, (i <= 20) ? 1L : 2L,
+							 KVStateMachine.createCommand("k", "v" + i));
+		out.writeLong(31L);
+		out.writeLong(2L);
+		out.close();
+
+		// leave the start of an import that was interrupted
+
+		new FileOutputStream(new File(tmpDir.getRoot(),
+									  LogSegment.getFileName(DurableLog.COMMAND_FILE, 7L))).close();
+
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "1024");
+
+		KVStateMachine kv = new KVStateMachine();
+		DurableLog log = (DurableLog) createLog(p, kv);
+
+		Assert.assertFalse("original file not removed", legacyFile.exists());
+		Assert.assertTrue("log was not segmented", countSegments() > 1);
+		Assert.assertEquals("invalid last index", 30L, log.getLastIndex());
+		Assert.assertEquals("invalid last term", 2L, log.getLastTerm());
+		Assert.assertTrue("missing entry", log.hasEntry(20L, 1L));
+		Assert.assertTrue("missing entry", log.hasEntry(21L, 2L));
+		log.shutdown();
+
+		// the imported log loads like any other
+
+		kv = new KVStateMachine();
+		log = (DurableLog) createLog(p, kv);
+		Assert.assertEquals("invalid last index", 30L, log.getLastIndex());
+		log.applied(30L);
+		Assert.assertEquals("invalid state entry", "v30", kv.getValue("k"));
+
+		log.append(KVStateMachine.createCommand("k", "v31"), 2L);
+		Assert.assertEquals("invalid last index", 31L, log.getLastIndex());
+		log.shutdown();
+	}
+
+	@Test
+	public void testBatchAppend() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		Log log = createLog(p, new KVStateMachine());
+		log.append(KVStateMachine.createCommand("k", "v1"), 1L);
+
+		// a batch that spans several segments
+
+		Command [] batch = new Command[10];
+		for (int i = 0; i < batch.length; i++)
+			batch[i] = KVStateMachine.createCommand("k", "v" + (i + 2));
+		log.append(batch, 2L);
+		log.append(new Command[0], 2L);
+
+		Assert.assertEquals("invalid last index", 11L, log.getLastIndex());
+		Assert.assertEquals("invalid last term", 2L, log.getLastTerm());
+		Assert.assertTrue("missing entry", log.hasEntry(1L, 1L));
+		Assert.assertTrue("missing entry", log.hasEntry(2L, 2L));
+
+		((DurableLog) log).shutdown();
+
+		KVStateMachine kv = new KVStateMachine();
+		log = createLog(p, kv);
+
+		Assert.assertEquals("invalid last index", 11L, log.getLastIndex());
+		log.applied(11L);
+		Assert.assertEquals("invalid state entry", "v11", kv.getValue("k"));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testPreallocation() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "4096");
+
+		Log log = createLog(p, new KVStateMachine());
+
+		// wait for the next segment to be prepared in the background
+		File prepared = new File(tmpDir.getRoot(), DurableLog.COMMAND_FILE + ".next");
+		for (int i = 0; (i < 100) && (prepared.length() < 4096L); i++)
+			Thread.sleep(50L);
+		Assert.assertEquals("segment was not preallocated", 4096L, prepared.length());
+		Thread.sleep(200L);
+
+		int entryCount = 0;
+		while (countSegments() < 2)
+			log.append(KVStateMachine.createCommand("k", "v" + (++entryCount)), 1L);
+
+		// the new segment is full-size from the start, and the data in the
+		// old one stops at the tail marker rather than at the end of the file
+
+		String [] names = listSegments();
+		Assert.assertEquals("invalid segment size", 4096L,
+							new File(tmpDir.getRoot(), names[1]).length());
+
+		((DurableLog) log).shutdown();
+
+		KVStateMachine kv = new KVStateMachine();
+		log = createLog(p, kv);
+
+		Assert.assertEquals("invalid last index", entryCount, log.getLastIndex());
+		log.append(KVStateMachine.createCommand("k", "last"), 1L);
+		log.applied(entryCount + 1);
+		Assert.assertEquals("invalid state entry", "last", kv.getValue("k"));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testDirectIO() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, String.valueOf(64 * 1024));
+		p.setProperty(DurableLog.DIRECT_IO_PROPERTY, "true");
+
+		// entries of all sizes, including one larger than a write buffer,
+		// end part-way through blocks and are read back from memory
+
+		StringBuilder large = new StringBuilder();
+		while (large.length() < 300 * 1024)
+			large.append("0123456789");
+
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 200; i++) {
+			String value = (i == 100) ? large.toString() : "v" + i;
+			log.append(KVStateMachine.createCommand("k" + i, value), 1L);
+		}
+
+		LogCursor cursor = log.getCursor(1L, 1000, Long.MAX_VALUE);
+		for (long i = 1L; i <= 200L; i++) {
+			Assert.assertTrue("missing entry", cursor.next());
+			KVStateMachine kv = new KVStateMachine();
+			kv.apply(cursor.getCommand());
+			Assert.assertEquals("invalid command", (i == 100L) ? large.toString() : "v" + i,
+								kv.getValue("k" + i));
+		}
+
+		// a truncated tail is written over and everything survives a restart
+
+		log.validateEntry(199L, 2L);
+		log.append(KVStateMachine.createCommand("k", "last"), 2L);
+		((DurableLog) log).shutdown();
+
+		KVStateMachine kv = new KVStateMachine();
+		log = createLog(p, kv);
+		Assert.assertEquals("invalid last index", 199L, log.getLastIndex());
+		log.applied(199L);
+		Assert.assertEquals("invalid state entry", "last", kv.getValue("k"));
+		Assert.assertEquals("invalid state entry", large.toString(), kv.getValue("k100"));
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.GROUP_COMMIT_PROPERTY, "true");
+
+		final Log log = createLog(p, new KVStateMachine());
+		final int threadCount = 8;
+		final int appendCount = 50;
+
+		Thread [] threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			final String key = "k" + i;
+			threads[i] = new Thread() {
+					public void run() {
+						for (int j = 0; j < appendCount; j++)
+							log.append(KVStateMachine.createCommand(key, "v" + j), 1L);
+					}
+				};
+			threads[i].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		Assert.assertEquals("invalid last index", threadCount * appendCount, log.getLastIndex());
+
+		((DurableLog) log).shutdown();
+
+		// re-start and check that every entry made it to disk in order
+
+		KVStateMachine kv = new KVStateMachine();
+		Log restarted = createLog(p, kv);
+
+		Assert.assertEquals("invalid last index", threadCount * appendCount, restarted.getLastIndex());
+
+		restarted.applied(restarted.getLastIndex());
+		for (int i = 0; i < threadCount; i++)
+			Assert.assertEquals("invalid state entry", "v" + (appendCount - 1), kv.getValue("k" + i));
+
+		((DurableLog) restarted).shutdown();
+	}
+
+	@Test
+	public void testDurability() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, "batch");
+		p.setProperty(DurableLog.SYNC_ENTRIES_PROPERTY, "4");
+		p.setProperty(DurableLog.SYNC_INTERVAL_PROPERTY, "60000");
+
+		// batched syncs only move the durable index every few entries
+
+		Log log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid durable index", 0L, log.getDurableIndex());
+		for (int i = 1; i <= 3; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+		Assert.assertEquals("invalid durable index", 0L, log.getDurableIndex());
+		log.append(KVStateMachine.createCommand("k", "v4"), 1L);
+		Assert.assertEquals("invalid durable index", 4L, log.getDurableIndex());
+		log.append(KVStateMachine.createCommand("k", "v5"), 1L);
+		Assert.assertEquals("invalid durable index", 4L, log.getDurableIndex());
+
+		// discarded entries are no longer durable
+
+		log.validateEntry(3L, 2L);
+		Assert.assertEquals("invalid durable index", 2L, log.getDurableIndex());
+		((DurableLog) log).shutdown();
+
+		// everything that was loaded is durable
+
+		log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid durable index", 2L, log.getDurableIndex());
+		((DurableLog) log).shutdown();
+
+		// interval syncs catch up in the background
+
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, "interval");
+		p.setProperty(DurableLog.SYNC_INTERVAL_PROPERTY, "5");
+		log = createLog(p, new KVStateMachine());
+		log.append(KVStateMachine.createCommand("k", "v3"), 2L);
+		for (int i = 0; (i < 200) && (log.getDurableIndex() < 3L); i++)
+			Thread.sleep(10L);
+		Assert.assertEquals("invalid durable index", 3L, log.getDurableIndex());
+		((DurableLog) log).shutdown();
+
+		// buffered writes count as durable right away
+
+		p.setProperty(DurableLog.DURABILITY_PROPERTY, "buffered");
+		log = createLog(p, new KVStateMachine());
+		log.append(KVStateMachine.createCommand("k", "v4"), 2L);
+		Assert.assertEquals("invalid durable index", 4L, log.getDurableIndex());
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testCodec() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+
+		CommandCodecRegistry codecs = new CommandCodecRegistry();
+		codecs.addCodec(KVStateMachine.createCodec(), KVStateMachine.COMMAND_ID);
+
+		// a value that would not fit in the original short length field
+		StringBuilder largeValue = new StringBuilder();
+		for (int i = 0; i < 50000; i++)
+			largeValue.append((char) ('a' + (i % 26)));
+
+		KVStateMachine kv = new KVStateMachine();
+		Log log = new DurableLog(p, kv, codecs);
+
+		log.append(KVStateMachine.createCommand("k1", "v1"), 1L);
+		log.append(KVStateMachine.createCommand("k2", largeValue.toString()), 1L);
+
+		((DurableLog) log).shutdown();
+
+		kv = new KVStateMachine();
+		log = new DurableLog(p, kv, codecs);
+		log.applied(2L);
+
+		Assert.assertEquals("invalid state entry", "v1", kv.getValue("k1"));
+		Assert.assertEquals("invalid state entry", largeValue.toString(), kv.getValue("k2"));
+
+		((DurableLog) log).shutdown();
+
+		// without the codec the entries can't be decoded
+
+		log = new DurableLog(p, new KVStateMachine());
+		try {
+			log.applied(1L);
+			Assert.fail("decoded without a codec");
+		} catch (RuntimeException re) { }
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testCursor() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k" + i, "v" + i), (i + 1) / 2);
+
+		// read across several segments, both sealed and not
+
+		LogCursor cursor = log.getCursor(3L, 100, Long.MAX_VALUE);
+		for (long i = 3L; i <= 20L; i++) {
+			Assert.assertTrue("missing entry", cursor.next());
+			Assert.assertEquals("invalid index", i, cursor.getIndex());
+			Assert.assertEquals("invalid term", (i + 1) / 2, cursor.getTerm());
+
+			KVStateMachine kv = new KVStateMachine();
+			kv.apply(cursor.getCommand());
+			Assert.assertEquals("invalid command", "v" + i, kv.getValue("k" + i));
+		}
+		Assert.assertFalse("read past the end", cursor.next());
+
+		// check the bounds on entries & bytes
+
+		cursor = log.getCursor(5L, 4, Long.MAX_VALUE);
+		Assert.assertEquals("invalid entry count", 4, countEntries(cursor));
+
+		cursor = log.getCursor(5L, 100, 1L);
+		Assert.assertEquals("invalid entry count", 1, countEntries(cursor));
+
+		cursor = log.getCursor(21L, 100, Long.MAX_VALUE);
+		Assert.assertEquals("invalid entry count", 0, countEntries(cursor));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testCompression() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "4096");
+		p.setProperty(DurableLog.PREALLOCATE_PROPERTY, "false");
+		p.setProperty(DurableLog.ENTRY_CACHE_SIZE_PROPERTY, "0");
+		p.setProperty(DurableLog.COMPRESSION_PROPERTY, "true");
+		p.setProperty(DurableLog.COMPRESSION_BLOCK_SIZE_PROPERTY, "512");
+		p.setProperty(DurableLog.COMPRESSION_DICTIONARY_PROPERTY, "true");
+
+		DurableLog log = (DurableLog) createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 200; i++)
+			log.append(KVStateMachine.createCommand("key", "value" + i), 1L);
+
+		// sealed segments are compressed in the background
+
+		int segmentCount = countSegments();
+		Assert.assertTrue("too few segments", segmentCount > 2);
+		for (int i = 0; (i < 200) && (countCompressedSegments() < segmentCount - 1); i++)
+			Thread.sleep(25L);
+		Assert.assertEquals("segments not compressed", segmentCount - 1,
+							countCompressedSegments());
+		Assert.assertTrue("segment not smaller",
+						  new File(tmpDir.getRoot(), listSegments()[0]).length() < 2048L);
+
+		// entries are read the same way, whether compressed or not
+
+		LogCursor cursor = log.getCursor(1L, 1000, Long.MAX_VALUE);
+		for (long i = 1L; i <= 200L; i++) {
+			Assert.assertTrue("missing entry", cursor.next());
+			KVStateMachine kv = new KVStateMachine();
+			kv.apply(cursor.getCommand());
+			Assert.assertEquals("invalid command", "value" + i, kv.getValue("key"));
+		}
+
+		Properties fp = new Properties();
+		fp.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("follower").getAbsolutePath());
+		DurableLog follower = (DurableLog) createLog(fp, new KVStateMachine());
+		long index = 1L;
+		while (index <= log.getLastIndex()) {
+			LogRecords records = log.getRecords(index, 1000, Long.MAX_VALUE);
+			follower.appendRecords(new BufferRecords(records.getFirstIndex(),
+													 records.getEntryCount(),
+													 records.getBuffer()));
+			index += records.getEntryCount();
+		}
+		Assert.assertEquals("invalid last index", 200L, follower.getLastIndex());
+		follower.shutdown();
+
+		// a compressed segment is expanded to be truncated
+
+		log.validateEntry(10L, 2L);
+		Assert.assertEquals("invalid last index", 9L, log.getLastIndex());
+		log.append(KVStateMachine.createCommand("key", "last"), 2L);
+		log.shutdown();
+
+		KVStateMachine kv = new KVStateMachine();
+		log = (DurableLog) createLog(p, kv);
+		Assert.assertEquals("invalid last index", 10L, log.getLastIndex());
+		log.applied(10L);
+		Assert.assertEquals("invalid state entry", "last", kv.getValue("key"));
+		log.shutdown();
+	}
+
+	@Test
+	public void testEntryCache() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+		p.setProperty(DurableLog.ENTRY_CACHE_SIZE_PROPERTY, "1024");
+
+		DurableLog log = (DurableLog) createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 40; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+
+		// only the tail is cached, but everything can be read
+
+		LogCursor cursor = log.getCursor(1L, 100, Long.MAX_VALUE);
+		for (long i = 1L; i <= 40L; i++) {
+			Assert.assertTrue("missing entry", cursor.next());
+			KVStateMachine kv = new KVStateMachine();
+			kv.apply(cursor.getCommand());
+			Assert.assertEquals("invalid command", "v" + i, kv.getValue("k"));
+		}
+		long hits = log.getEntryCacheHits();
+		long misses = log.getEntryCacheMisses();
+		Assert.assertTrue("no cache hits", hits > 0L);
+		Assert.assertTrue("no cache misses", misses > 0L);
+		Assert.assertEquals("invalid lookup count", 40L, hits + misses);
+
+		// a truncated entry isn't read from the cache
+
+		log.validateEntry(40L, 2L);
+		log.append(KVStateMachine.createCommand("k", "new"), 2L);
+		cursor = log.getCursor(40L, 1, Long.MAX_VALUE);
+		Assert.assertTrue("missing entry", cursor.next());
+		KVStateMachine kv = new KVStateMachine();
+		kv.apply(cursor.getCommand());
+		Assert.assertEquals("invalid command", "new", kv.getValue("k"));
+		Assert.assertEquals("invalid cache hits", hits + 1, log.getEntryCacheHits());
+		log.shutdown();
+
+		// a log with no cache misses every time
+
+		p.setProperty(DurableLog.ENTRY_CACHE_SIZE_PROPERTY, "0");
+		kv = new KVStateMachine();
+		log = (DurableLog) createLog(p, kv);
+		log.applied(40L);
+		Assert.assertEquals("invalid state entry", "new", kv.getValue("k"));
+		Assert.assertEquals("invalid cache hits", 0L, log.getEntryCacheHits());
+		log.shutdown();
+	}
+
+	@Test
+	public void testRecords() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		DurableLog leader = (DurableLog) createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 20; i++)
+			leader.append(KVStateMachine.createCommand("k", "v" + i), (i + 1) / 2);
+
+		Properties fp = new Properties();
+		fp.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("follower").getAbsolutePath());
+		fp.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+		KVStateMachine kv = new KVStateMachine();
+		DurableLog follower = (DurableLog) createLog(fp, kv);
+
+		// the follower diverged from the leader at its last entry
+
+		follower.append(KVStateMachine.createCommand("k", "v1"), 1L);
+		follower.append(KVStateMachine.createCommand("k", "x"), 7L);
+
+		// a range of records never spans segments, so page through them
+
+		long index = 1L;
+		while (index <= leader.getLastIndex()) {
+			LogRecords records = leader.getRecords(index, 5, Long.MAX_VALUE);
+			Assert.assertEquals("invalid first index", index, records.getFirstIndex());
+			Assert.assertTrue("empty records", records.getEntryCount() > 0);
+			follower.appendRecords(records);
+			index += records.getEntryCount();
+		}
+		Assert.assertEquals("invalid entry count", 0,
+							leader.getRecords(21L, 5, Long.MAX_VALUE).getEntryCount());
+		Assert.assertEquals("invalid entry count", 1,
+							leader.getRecords(1L, 5, 1L).getEntryCount());
+
+		Assert.assertEquals("invalid last index", 20L, follower.getLastIndex());
+		for (long i = 1L; i <= 20L; i++)
+			Assert.assertTrue("missing entry", follower.hasEntry(i, (i + 1) / 2));
+
+		// records that the follower already has are skipped
+
+		follower.appendRecords(leader.getRecords(3L, 5, Long.MAX_VALUE));
+		Assert.assertEquals("invalid last index", 20L, follower.getLastIndex());
+
+		// damaged records are rejected
+
+		ByteBuffer data = leader.getRecords(1L, 5, Long.MAX_VALUE).getBuffer();
+		ByteBuffer damaged = ByteBuffer.allocate(data.remaining());
+		damaged.put(data).flip();
+		damaged.put(damaged.limit() - 1, (byte) (damaged.get(damaged.limit() - 1) ^ 0xFF));
+		BufferRecords copy = new BufferRecords(1L, 5, damaged);
+		try {
+			follower.appendRecords(copy);
+			Assert.fail("appended damaged records");
+		} catch (IllegalArgumentException iae) { }
+
+		follower.applied(20L);
+		Assert.assertEquals("invalid state entry", "v20", kv.getValue("k"));
+
+		leader.shutdown();
+		follower.shutdown();
+
+		follower = (DurableLog) createLog(fp, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 20L, follower.getLastIndex());
+		follower.shutdown();
+	}
+
+	@Test
+	public void testReplay() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "65536");
+		p.setProperty(DurableLog.REPLAY_THREADS_PROPERTY, "4");
+		p.setProperty(DurableLog.GROUP_COMMIT_PROPERTY, "true");
+
+		int entryCount = 5000;
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= entryCount; i++)
+			log.append(KVStateMachine.createCommand("k" + (i % 100), "v" + i), 1L);
+		((DurableLog) log).shutdown();
+
+		// each key's final value is only right if commands were applied in order
+
+		KVStateMachine kv = new KVStateMachine();
+		log = createLog(p, kv);
+		log.applied(entryCount);
+
+		Assert.assertEquals("invalid commit index", entryCount, log.getCommitIndex());
+		for (int i = entryCount - 99; i <= entryCount; i++)
+			Assert.assertEquals("invalid state entry", "v" + i, kv.getValue("k" + (i % 100)));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test(timeout = 60000L)
+	public void testReplayFailure() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "16384");
+		p.setProperty(DurableLog.REPLAY_THREADS_PROPERTY, "4");
+
+		int entryCount = 2000;
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= entryCount; i++)
+			log.append(KVStateMachine.createCommand("k" + (i % 100), "v" + i), 1L);
+		((DurableLog) log).shutdown();
+
+		// loading the log indexes the sealed segments
+
+		log = createLog(p, new KVStateMachine());
+		((DurableLog) log).shutdown();
+		Assert.assertTrue("sealed segments not indexed", countSegmentIndexes() > 1);
+
+		// swap two positions in the first segment's index, which isn't noticed
+		// until the reader reaches a record that ends before it starts
+
+		String indexName = null;
+		for (String name : tmpDir.getRoot().list()) {
+			if (LogSegment.isSegmentName(DurableLog.SEGMENT_INDEX_FILE, name) &&
+				((indexName == null) || (name.compareTo(indexName) < 0)))
+				indexName = name;
+		}
+		File indexFile = new File(tmpDir.getRoot(), indexName);
+		SegmentIndexFile index = SegmentIndexFile.read(indexFile);
+		int [] positions = index.getPositions();
+		int position = positions[10];
+		positions[10] = positions[11];
+		positions[11] = position;
+		new SegmentIndexFile(index.getFirstIndex(), index.getEnd(), positions, index.getTerms(),
+							 index.getCount(), index.getStateTerm(),
+							 index.getStateVote()).write(indexFile);
+
+		// the re-play fails rather than waiting on the reader forever
+
+		log = createLog(p, new KVStateMachine());
+		try {
+			log.applied(entryCount);
+			Assert.fail("re-played a damaged segment");
+		} catch (RuntimeException re) { }
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testCompaction() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		KVStateMachine kv = new KVStateMachine();
+		Log log = createLog(p, kv);
+
+		for (int i = 1; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k" + (i % 3), "v" + i), 1L);
+		log.applied(15L);
+
+		int segmentCount = countSegments();
+		Assert.assertEquals("invalid snapshot index", 15L, log.compact());
+		Assert.assertEquals("invalid snapshot index", 15L, log.getSnapshotIndex());
+		Assert.assertTrue("segments were not removed", countSegments() < segmentCount);
+
+		Assert.assertTrue("missing entry", log.hasEntry(15L, 1L));
+		Assert.assertEquals("invalid entry count", 5, log.getEntries(16L).length);
+		try {
+			log.getEntries(1L);
+			Assert.fail("read compacted entries");
+		} catch (IllegalArgumentException iae) { }
+
+		((DurableLog) log).shutdown();
+
+		// re-start from the snapshot and re-play the remaining entries
+
+		kv = new KVStateMachine();
+		log = createLog(p, kv);
+
+		Assert.assertEquals("invalid commit index", 15L, log.getCommitIndex());
+		Assert.assertEquals("invalid last index", 20L, log.getLastIndex());
+		Assert.assertEquals("invalid state entry", "v15", kv.getValue("k0"));
+
+		log.applied(20L);
+		Assert.assertEquals("invalid state entry", "v20", kv.getValue("k2"));
+
+		byte [] snapshot = log.getSnapshot();
+
+		((DurableLog) log).shutdown();
+
+		// install the snapshot into a new, empty log
+
+		File otherDir = tmpDir.newFolder("other");
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, otherDir.getAbsolutePath());
+
+		kv = new KVStateMachine();
+		log = createLog(p, kv);
+		log.installSnapshot(15L, 1L, snapshot);
+
+		Assert.assertEquals("invalid commit index", 15L, log.getCommitIndex());
+		Assert.assertEquals("invalid last index", 15L, log.getLastIndex());
+		Assert.assertEquals("invalid last term", 1L, log.getLastTerm());
+		Assert.assertEquals("invalid state entry", "v14", kv.getValue("k2"));
+
+		log.append(KVStateMachine.createCommand("k2", "v16"), 2L);
+		log.applied(16L);
+		Assert.assertEquals("invalid state entry", "v16", kv.getValue("k2"));
+
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testTruncation() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), (i + 1) / 2);
+		int segmentCount = countSegments();
+
+		// a cut across several segments is complete once it returns
+
+		log.validateEntry(5L, 7L);
+		Assert.assertEquals("invalid last index", 4L, log.getLastIndex());
+		Assert.assertTrue("segments not removed", countSegments() < segmentCount);
+		File truncation = new File(tmpDir.getRoot(), DurableLog.TRUNCATION_FILE);
+		Assert.assertFalse("truncation point not removed", truncation.exists());
+		((DurableLog) log).shutdown();
+
+		log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 4L, log.getLastIndex());
+		((DurableLog) log).shutdown();
+
+		// a cut that was interrupted is finished when the log is loaded
+
+		byte [] point = ByteBuffer.allocate(24).putLong(3L).putLong(-1L).putLong(-1L).array();
+		CRC32 checksum = new CRC32();
+		checksum.update(point);
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(truncation));
+		out.write(point);
+		out.writeInt((int) checksum.getValue());
+		out.close();
+
+		log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 2L, log.getLastIndex());
+		Assert.assertFalse("truncation point not removed", truncation.exists());
+		((DurableLog) log).shutdown();
+
+		// but a point that wasn't completely written is ignored
+
+		out = new DataOutputStream(new FileOutputStream(truncation));
+		out.writeLong(1L);
+		out.close();
+
+		log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 2L, log.getLastIndex());
+		Assert.assertFalse("truncation point not removed", truncation.exists());
+		((DurableLog) log).shutdown();
+	}
+
+	@Test
+	public void testState() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+
+		DurableLog log = (DurableLog) createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid term", StateLog.NO_STATE, log.getStateTerm());
+
+		// state is written among the entries and found again on restart
+
+		log.appendState(1L, 3L);
+		for (int i = 1; i <= 10; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+		log.appendState(2L, -1L);
+		log.appendState(2L, 4L);
+		for (int i = 11; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 2L);
+		log.syncState();
+		log.shutdown();
+
+		log = (DurableLog) createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 20L, log.getLastIndex());
+		Assert.assertEquals("invalid term", 2L, log.getStateTerm());
+		Assert.assertEquals("invalid vote", 4L, log.getStateVote());
+
+		// records passed to another log leave the state behind
+
+		Properties fp = new Properties();
+		fp.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.newFolder("follower").getAbsolutePath());
+		DurableLog follower = (DurableLog) createLog(fp, new KVStateMachine());
+		long index = 1L;
+		while (index <= log.getLastIndex()) {
+			LogRecords records = log.getRecords(index, 100, Long.MAX_VALUE);
+			follower.appendRecords(records);
+			index += records.getEntryCount();
+		}
+		Assert.assertEquals("invalid last index", 20L, follower.getLastIndex());
+		Assert.assertEquals("invalid term", StateLog.NO_STATE, follower.getStateTerm());
+		follower.shutdown();
+
+		// truncating away the segments that held the state keeps it
+
+		log.validateEntry(2L, 7L);
+		Assert.assertEquals("invalid last index", 1L, log.getLastIndex());
+		log.shutdown();
+
+		log = (DurableLog) createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid term", 2L, log.getStateTerm());
+		Assert.assertEquals("invalid vote", 4L, log.getStateVote());
+		log.shutdown();
+	}
+
+	@Test
+	public void testRecovery() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+		p.setProperty(DurableLog.VERIFY_THREADS_PROPERTY, "4");
+		p.setProperty(DurableLog.PREALLOCATE_PROPERTY, "false");
+
+		Log log = createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 20; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+		((DurableLog) log).shutdown();
+
+		String [] names = listSegments();
+		File tail = new File(tmpDir.getRoot(), names[names.length - 1]);
+		File sealed = new File(tmpDir.getRoot(), names[0]);
+
+		// a write that was cut short drops just the last entry, where the
+		// end of each file is the last record followed by the tail marker
+
+		int markerSize = 8;
+		RandomAccessFile file = new RandomAccessFile(tail, "rw");
+		file.setLength(file.length() - markerSize - 3L);
+		file.close();
+
+		log = createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 19L, log.getLastIndex());
+		log.append(KVStateMachine.createCommand("k", "v20"), 2L);
+		((DurableLog) log).shutdown();
+
+		// as does a write that was only partly synced
+
+		file = new RandomAccessFile(tail, "rw");
+		file.seek(file.length() - markerSize - 1L);
+		byte lastByte = file.readByte();
+		file.seek(file.length() - markerSize - 1L);
+		file.writeByte(lastByte ^ 0xFF);
+		file.close();
+
+		KVStateMachine kv = new KVStateMachine();
+		log = createLog(p, kv);
+		Assert.assertEquals("invalid last index", 19L, log.getLastIndex());
+		log.applied(19L);
+		Assert.assertEquals("invalid state entry", "v19", kv.getValue("k"));
+		((DurableLog) log).shutdown();
+
+		// but a problem in an older segment is an error
+
+		file = new RandomAccessFile(sealed, "rw");
+		file.seek(file.length() - markerSize - 1L);
+		lastByte = file.readByte();
+		file.seek(file.length() - markerSize - 1L);
+		file.writeByte(lastByte ^ 0xFF);
+		file.close();
+
+		try {
+			createLog(p, new KVStateMachine());
+			Assert.fail("loaded a corrupt segment");
+		} catch (IOException ioe) { }
+	}
+
+	@Test
+	public void testSegmentIndex() throws Exception {
+		Properties p = new Properties();
+		p.setProperty(DurableLog.LOG_DIR_PROPERTY, tmpDir.getRoot().getAbsolutePath());
+		p.setProperty(DurableLog.SEGMENT_SIZE_PROPERTY, "512");
+		p.setProperty(DurableLog.PREALLOCATE_PROPERTY, "false");
+
+		DurableLog log = (DurableLog) createLog(p, new KVStateMachine());
+		for (int i = 1; i <= 10; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 1L);
+		log.appendState(2L, 5L);
+		for (int i = 11; i <= 40; i++)
+			log.append(KVStateMachine.createCommand("k", "v" + i), 2L);
+
+		// each sealed segment is indexed in the background
+
+		int segmentCount = countSegments();
+		Assert.assertTrue("too few segments", segmentCount > 2);
+		for (int i = 0; (i < 200) && (countSegmentIndexes() < segmentCount - 1); i++)
+			Thread.sleep(25L);
+		Assert.assertEquals("segments not indexed", segmentCount - 1, countSegmentIndexes());
+		log.shutdown();
+
+		// sealed segments are loaded from their indexes
+
+		KVStateMachine kv = new KVStateMachine();
+		log = (DurableLog) createLog(p, kv);
+		Assert.assertEquals("invalid last index", 40L, log.getLastIndex());
+		Assert.assertTrue("missing entry", log.hasEntry(10L, 1L));
+		Assert.assertTrue("missing entry", log.hasEntry(11L, 2L));
+		Assert.assertEquals("invalid term", 2L, log.getStateTerm());
+		Assert.assertEquals("invalid vote", 5L, log.getStateVote());
+		log.applied(40L);
+		Assert.assertEquals("invalid state entry", "v40", kv.getValue("k"));
+		log.shutdown();
+
+		// an index that doesn't pass its checksum is ignored and re-written
+
+		File index = new File(tmpDir.getRoot(), LogSegment.getFileName(DurableLog.SEGMENT_INDEX_FILE, 0L));
+		RandomAccessFile file = new RandomAccessFile(index, "rw");
+		file.seek(20L);
+		byte value = file.readByte();
+		file.seek(20L);
+		file.writeByte(value ^ 0xFF);
+		file.close();
+		long length = index.length();
+
+		kv = new KVStateMachine();
+		log = (DurableLog) createLog(p, kv);
+		Assert.assertEquals("invalid last index", 40L, log.getLastIndex());
+		log.applied(40L);
+		Assert.assertEquals("invalid state entry", "v40", kv.getValue("k"));
+		Assert.assertEquals("index not re-written", length, index.length());
+		Assert.assertEquals("segments not indexed", segmentCount - 1, countSegmentIndexes());
+
+		// a truncated segment and any later segments lose their indexes
+
+		log.validateEntry(5L, 3L);
+		Assert.assertEquals("invalid last index", 4L, log.getLastIndex());
+		Assert.assertEquals("index not removed", countSegments() - 1, countSegmentIndexes());
+		log.shutdown();
+
+		log = (DurableLog) createLog(p, new KVStateMachine());
+		Assert.assertEquals("invalid last index", 4L, log.getLastIndex());
+		log.shutdown();
+	}
+
+	/** Reads through a cursor, returning the number of entries. */
+	private static int countEntries(LogCursor cursor) {
+		int count = 0;
+		while (cursor.next())
+			count++;
+		return count;
+	}
+
+	/** Writes an entry in the original, single-file log format. */
+	private static void writeLegacyEntry(DataOutputStream out, long index, long term,
+										 Command command)
+		throws IOException
+	{
+		out.writeLong(index);
+		out.writeLong(term);
+		if (command == null) {
+			out.writeShort(0);
+			return;
+		}
+
+		ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+		ObjectOutputStream objOut = new ObjectOutputStream(bytesOut);
+		objOut.writeObject(command);
+		objOut.close();
+		out.writeShort(bytesOut.size());
+		bytesOut.writeTo(out);
+	}
+
+	/** Returns the names of the segment files in the log directory, in order. */
+	private String [] listSegments() {
+		List<String> names = new ArrayList<String>();
+		for (String name : tmpDir.getRoot().list()) {
+			if (LogSegment.isSegmentName(DurableLog.COMMAND_FILE, name))
+				names.add(name);
+		}
+		Collections.sort(names);
+		return names.toArray(new String[names.size()]);
+	}
+
+	/** Returns the number of segment files that have been compressed. */
+	private int countCompressedSegments() throws IOException {
+		int count = 0;
+		for (String name : listSegments()) {
+			RandomAccessFile file = new RandomAccessFile(new File(tmpDir.getRoot(), name), "r");
+			try {
+				if ((file.length() >= 8) && (file.readLong() == CompressedBlocks.COMPRESSED_VERSION))
+					count++;
+			} finally {
+				file.close();
+			}
+		}
+		return count;
+	}
+
+	/** Returns the number of segment indexes in the log directory. */
+	private int countSegmentIndexes() {
+		int count = 0;
+		for (String name : tmpDir.getRoot().list()) {
+			if (LogSegment.isSegmentName(DurableLog.SEGMENT_INDEX_FILE, name))
+				count++;
+		}
+		return count;
+	}
+
+	/** Returns the number of segment files in the log directory. */
+	private int countSegments() {
+		int count = 0;
+		for (String name : tmpDir.getRoot().list()) {
+			if (LogSegment.isSegmentName(DurableLog.COMMAND_FILE, name))
+				count++;
+		}
+		return count;
+	}
+
+	/** Records held in a buffer, as they would be once received. */
+	private static class BufferRecords implements LogRecords {
+		private final long firstIndex;
+		private final int entryCount;
+		private final ByteBuffer data;
+		BufferRecords(long firstIndex, int entryCount, ByteBuffer data) {
+			this.firstIndex = firstIndex;
+			this.entryCount = entryCount;
+			this.data = data;
+		}
+		@Override public long getFirstIndex() {
+			return firstIndex;
+		}
+		@Override public int getEntryCount() {
+			return entryCount;
+		}
+		@Override public long getLength() {
+			return data.remaining();
+		}
+		@Override public void transferTo(WritableByteChannel target) throws IOException {
+			target.write(data.duplicate());
+		}
+		@Override public long transferTo(long offset, WritableByteChannel target)
+			throws IOException
+		{
+			ByteBuffer buffer = data.duplicate();
+			buffer.position(buffer.position() + (int) offset);
+			return target.write(buffer);
+		}
+		@Override public ByteBuffer getBuffer() {
+			return data.duplicate();
+		}
+	}
+
 	/** Abstraction so that this test suite could be re-used for other logs. */
 	private Log createLog(Properties p, StateMachine sm) throws IOException {
 		return new DurableLog(p, sm);
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.raft.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/** Tests for the paged, primitive {@code EntryIndex}. */
+public class EntryIndexTest {
+
+	@Test
+	public void testAcrossPages() {
+		EntryIndex index = new EntryIndex();
+		int count = 200000;
+
+		for (int i = 0; i < count; i++)
+			index.add(i * 10L, i / 1000);
+
+		Assert.assertEquals("invalid size", count, index.getNextIndex());
+		for (int i = 0; i < count; i += 997) {
+			Assert.assertEquals("invalid position", i * 10L, index.getPosition(i));
+			Assert.assertEquals("invalid term", i / 1000, index.getTerm(i));
+		}
+	}
+
+	@Test
+	public void testTruncate() {
+		EntryIndex index = new EntryIndex();
+		for (int i = 0; i < 100; i++)
+			index.add(i, 1L);
+
+		index.truncate(40L);
+		Assert.assertEquals("invalid size", 40L, index.getNextIndex());
+
+		index.add(7L, 2L);
+		Assert.assertEquals("invalid position", 7L, index.getPosition(40L));
+		Assert.assertEquals("invalid term", 2L, index.getTerm(40L));
+
+		try {
+			index.getTerm(41L);
+			Assert.fail("read past the end of the index");
+		} catch (IndexOutOfBoundsException ioobe) { }
+	}
+
+	@Test
+	public void testConcurrentDiscard() throws Exception {
+		final EntryIndex index = new EntryIndex();
+		final int count = 300000;
+		for (int i = 0; i < count; i++)
+			index.add(i, i);
+
+		// a reader keeps reading entries as they're discarded, and should
+		// only ever find them missing, never half-released
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread reader = new Thread(new Runnable() {
+				public void run() {
+					try {
+						while (! done.get()) {
+							for (long i = 0; i < count; i += 101) {
+								try {
+									if (index.getTerm(i) != i)
+										throw new IllegalStateException("invalid term at " + i);
+									if (index.getPosition(i) != i)
+										throw new IllegalStateException("invalid position at " + i);
+								} catch (IndexOutOfBoundsException ioobe) {
+									// the entry was discarded
+								}
+							}
+						}
+					} catch (Throwable t) {
+						failure.set(t);
+					}
+				}
+			});
+		reader.start();
+
+		for (long first = 1; first < count; first += 997)
+			index.discardBefore(first);
+		done.set(true);
+		reader.join();
+
+		Assert.assertNull("reader failed: " + failure.get(), failure.get());
+		Assert.assertEquals("invalid term", count - 1, index.getTerm(count - 1));
+	}
+
+}
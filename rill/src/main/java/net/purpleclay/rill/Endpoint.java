@@ -9,6 +9,8 @@ package net.purpleclay.rill;
 
 import java.io.IOException;
 
+import net.purpleclay.raft.LogRecords;
+
 public interface Endpoint {
 
 	void addListener(EndpointListener listener);
@@ -17,6 +19,9 @@ public interface Endpoint {
 
 	void send(byte [] message) throws IOException;
 
+	/** Sends a message followed by raw log records, as a single message. */
+	void send(byte [] message, LogRecords records) throws IOException;
+
 	boolean send(byte [] message, EndpointListener responseListener);
 
 	byte [] sendAndReceive(byte [] message);
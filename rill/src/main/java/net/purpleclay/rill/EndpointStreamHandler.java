@@ -16,4 +16,10 @@ public interface EndpointStreamHandler {
 
 	void encodeOutput(byte [] input, ByteBuffer output);
 
+	/**
+	 * Encodes the start of a message whose last bytes follow on the stream.
+	 * The whole message must be less than 2GB long.
+	 */
+	void encodeOutput(byte [] input, long trailingLength, ByteBuffer output);
+
 }
@@ -13,12 +13,15 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 import net.purpleclay.raft.Command;
 import net.purpleclay.raft.CommandResultListener;
 import net.purpleclay.raft.InternalServer;
+import net.purpleclay.raft.LogRecords;
 import net.purpleclay.raft.MembershipHandle;
 import net.purpleclay.raft.Message;
+import net.purpleclay.raft.RecordMessage;
 import net.purpleclay.raft.client.Server;
 import net.purpleclay.raft.util.AbstractServer;
 import net.purpleclay.raft.util.DynamicMembershipHandle;
@@ -70,7 +73,16 @@ public class RemoteServer extends AbstractServer {
 
 	@Override public void invoke(Message msg) {
 		try {
-			endpoint.send((new RemoteCall(msg, getId())).toBytes());
+			byte [] call = (new RemoteCall(msg, getId())).toBytes();
+
+			// log records aren't serialized with their message, but instead
+			// follow it straight from the log
+			LogRecords records = (msg instanceof RecordMessage) ?
+				((RecordMessage) msg).getRecords() : null;
+			if (records != null)
+				endpoint.send(call, records);
+			else
+				endpoint.send(call);
 		} catch (IOException ioe) {
 			// TODO: probably need some kind of invocation exception?
 			System.out.println(ioe.getMessage());
@@ -106,6 +118,7 @@ public class RemoteServer extends AbstractServer {
 	private static class RemoteCall implements Serializable {
 		static final long serialVersionUID = 1L;
 		private enum CallType { MESSAGE, COMMAND };
+		private static final int LENGTH_SIZE = 4;
 		private final CallType type;
 		private final Object content;
 		private final long targetServer;
@@ -128,26 +141,44 @@ public class RemoteServer extends AbstractServer {
 			else
 				server.send((Command) (content));
 		}
+		// the call is prefixed with its length, so that anything after it
+		// in the same message can be found
 		byte [] toBytes() throws IOException {
 			ByteArrayOutputStream bytesOut = new ByteArrayOutputStream();
+			bytesOut.write(new byte[LENGTH_SIZE]);
 			ObjectOutputStream objOut = new ObjectOutputStream(bytesOut);
 			try {
 				objOut.writeObject(this);
-				return bytesOut.toByteArray();
 			} finally {
 				objOut.close();
 			}
+			byte [] bytes = bytesOut.toByteArray();
+			ByteBuffer.wrap(bytes).putInt(bytes.length - LENGTH_SIZE);
+			return bytes;
 		}
 		static RemoteCall fromBytes(byte [] bytes) throws IOException {
-			ByteArrayInputStream bytesIn = new ByteArrayInputStream(bytes);
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			int length = buffer.getInt();
+			ByteArrayInputStream bytesIn =
+				new ByteArrayInputStream(bytes, LENGTH_SIZE, length);
 			ObjectInputStream objIn = new ObjectInputStream(bytesIn);
+			RemoteCall call = null;
 			try {
-				return (RemoteCall) objIn.readObject();
+				call = (RemoteCall) objIn.readObject();
 			} catch (ClassNotFoundException cnfe) {
 				throw new IOException("failed to read object", cnfe);
 			} finally {
 				objIn.close();
 			}
+
+			// anything after the call is the log records for its message
+			if (bytes.length > LENGTH_SIZE + length) {
+				if (! (call.content instanceof RecordMessage))
+					throw new IOException("unexpected data after call");
+				buffer.position(LENGTH_SIZE + length);
+				((RecordMessage) call.content).attachRecords(buffer);
+			}
+			return call;
 		}
 	}
 
@@ -9,6 +9,8 @@ package net.purpleclay.rill.server;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
 
 import net.purpleclay.rill.Endpoint;
 import net.purpleclay.rill.EndpointStreamHandler;
@@ -16,25 +18,68 @@ import net.purpleclay.rill.EndpointStreamHandler;
 
 class DefaultStreamHandler implements EndpointStreamHandler {
 
+	// the messages that have been partly read, by endpoint, which is only
+	// used from the thread that reads all endpoints
+	private final Map<Endpoint,PartialMessage> partialMessages =
+		new IdentityHashMap<Endpoint,PartialMessage>();
+
+	/**
+	 * Reads at most one message from the input, leaving anything after it in
+	 * the buffer. A message may arrive over several reads, so the part that
+	 * has been read so far is kept until the rest arrives.
+	 */
 	@Override public byte [] handleInput(Endpoint endpoint, ByteBuffer input)
 		throws IOException
 	{
-		// TODO: for now, assume that all messages are self-contained, but
-		// in practice this should be bundling up message details
+		PartialMessage partial = partialMessages.get(endpoint);
+		if (partial == null) {
+			if (! input.hasRemaining())
+				return null;
+			partial = new PartialMessage();
+			partialMessages.put(endpoint, partial);
+		}
+
+		if (partial.message == null) {
+			while (partial.length.hasRemaining() && input.hasRemaining())
+				partial.length.put(input.get());
+			if (partial.length.hasRemaining())
+				return null;
 
-		int msgLen = input.getInt();
+			int msgLen = partial.length.getInt(0);
+			if (msgLen < 0)
+				throw new IOException("invalid message length: " + msgLen);
+			partial.message = ByteBuffer.allocate(msgLen);
+		}
 
-		if (input.remaining() != msgLen)
-			throw new IOException("wrong amount of data available: " + input.remaining() + ", " + msgLen);
+		int count = Math.min(partial.message.remaining(), input.remaining());
+		ByteBuffer chunk = input.duplicate();
+		chunk.limit(chunk.position() + count);
+		partial.message.put(chunk);
+		input.position(input.position() + count);
+		if (partial.message.hasRemaining())
+			return null;
 
-		byte [] message = new byte[msgLen];
-		input.get(message);
-		return message;
+		partialMessages.remove(endpoint);
+		return partial.message.array();
 	}
 
 	@Override public void encodeOutput(byte [] input, ByteBuffer output) {
-		output.putInt(input.length);
+		encodeOutput(input, 0L, output);
+	}
+
+	@Override public void encodeOutput(byte [] input, long trailingLength, ByteBuffer output) {
+		// the length is sent as an int, so a longer message can't be framed
+		long length = input.length + trailingLength;
+		if ((trailingLength < 0L) || (length > Integer.MAX_VALUE))
+			throw new IllegalArgumentException("invalid message length: " + length);
+		output.putInt((int) length);
 		output.put(input);
 	}
 
+	/** A message's length, once it's read, and the message read so far. */
+	private static class PartialMessage {
+		final ByteBuffer length = ByteBuffer.allocate(4);
+		ByteBuffer message = null;
+	}
+
 }
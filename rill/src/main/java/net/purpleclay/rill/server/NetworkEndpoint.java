@@ -10,10 +10,14 @@ package net.purpleclay.rill.server;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.util.Collection;
 import java.util.concurrent.ConcurrentSkipListSet;
 
+import net.purpleclay.raft.LogRecords;
 import net.purpleclay.rill.Endpoint;
 import net.purpleclay.rill.EndpointListener;
 import net.purpleclay.rill.EndpointStreamHandler;
@@ -29,6 +33,12 @@ class NetworkEndpoint implements Endpoint {
 	private final int BUF_LEN = 1024 * 16;
 	private final ByteBuffer outputBuffer = ByteBuffer.allocateDirect(BUF_LEN);
 
+	// the channel is non-blocking so that it can be read from the manager's
+	// selector, so a send that fills the socket waits on this selector until
+	// the channel can take more
+	private static final long WRITE_WAIT = 1000L;
+	private volatile Selector writeSelector = null;
+
 	private final Collection<EndpointListener> listeners =
 		new ConcurrentSkipListSet<EndpointListener>();
 
@@ -58,8 +68,49 @@ class NetworkEndpoint implements Endpoint {
 		*/
 		outputBuffer.clear();
 		streamHandler.encodeOutput(message, outputBuffer);
-		outputBuffer.rewind();
-		channel.write(outputBuffer);
+		outputBuffer.flip();
+		write(outputBuffer);
+	}
+
+	@Override public synchronized void send(byte [] message, LogRecords records)
+		throws IOException
+	{
+		// the records go straight from the log to the socket after the rest
+		// of the message, so they're never copied through this buffer
+		outputBuffer.clear();
+		streamHandler.encodeOutput(message, records.getLength(), outputBuffer);
+		outputBuffer.flip();
+		write(outputBuffer);
+
+		long offset = 0L;
+		while (offset < records.getLength()) {
+			long written = records.transferTo(offset, channel);
+			if (written == 0L)
+				awaitWritable();
+			offset += written;
+		}
+	}
+
+	/** Writes all of the buffer, waiting whenever the socket is full. */
+	private void write(ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.write(buffer) == 0)
+				awaitWritable();
+		}
+	}
+
+	/** Waits until the channel can take more output, or the wait times out. */
+	private void awaitWritable() throws IOException {
+		if (writeSelector == null) {
+			writeSelector = Selector.open();
+			channel.register(writeSelector, SelectionKey.OP_WRITE);
+		}
+		try {
+			writeSelector.select(WRITE_WAIT);
+			writeSelector.selectedKeys().clear();
+		} catch (ClosedSelectorException cse) {
+			throw new IOException("Connection was closed");
+		}
 	}
 
 	@Override public boolean send(byte [] message,
@@ -96,6 +147,16 @@ class NetworkEndpoint implements Endpoint {
 	}
 
 	void notifyClosed() {
+		// a send that's waiting on the socket is woken, and fails
+		Selector selector = writeSelector;
+		if (selector != null) {
+			try {
+				selector.close();
+			} catch (IOException ioe) {
+				System.out.println(ioe.getMessage());
+			}
+		}
+
 		for (EndpointListener listener : listeners)
 			listener.disconnected();
 	}
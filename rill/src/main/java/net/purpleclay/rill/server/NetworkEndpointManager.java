@@ -135,10 +135,12 @@ public class NetworkEndpointManager implements EndpointManager {
 			if (len < 0)
 				throw new IOException("Connection was closed");
 
-			inputBuffer.rewind();
-			byte [] message =
-				streamHandler.handleInput((Endpoint) key.attachment(), inputBuffer);
-			if (message != null) {
+			// a read may hold several messages, or only part of one
+			inputBuffer.flip();
+			byte [] message = null;
+			while ((message = streamHandler.handleInput((Endpoint) key.attachment(),
+														inputBuffer)) != null)
+			{
 				// TODO: needs to be handed off to some kind of queue..
 				((NetworkEndpoint) key.attachment()).notifyMessage(message);
 			}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.rill.server;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.purpleclay.raft.LogRecords;
+import net.purpleclay.rill.Endpoint;
+import net.purpleclay.rill.EndpointListener;
+
+
+/** Tests for the framing done by {@code DefaultStreamHandler}. */
+public class DefaultStreamHandlerTest {
+
+	@Test
+	public void testSplitReads() throws Exception {
+		DefaultStreamHandler handler = new DefaultStreamHandler();
+		Endpoint endpoint = new TestEndpoint();
+		ByteBuffer stream = encode(handler, bytes(100, 1));
+
+		// the message arrives a byte at a time, splitting the length as well
+
+		byte [] message = null;
+		while (stream.hasRemaining()) {
+			Assert.assertNull("message returned early", message);
+			ByteBuffer input = ByteBuffer.allocate(1);
+			input.put(stream.get()).flip();
+			message = handler.handleInput(endpoint, input);
+			Assert.assertFalse("input not consumed", input.hasRemaining());
+		}
+		Assert.assertArrayEquals("invalid message", bytes(100, 1), message);
+	}
+
+	@Test
+	public void testCoalescedReads() throws Exception {
+		DefaultStreamHandler handler = new DefaultStreamHandler();
+		Endpoint endpoint = new TestEndpoint();
+		Endpoint otherEndpoint = new TestEndpoint();
+
+		// two messages and the start of a third arrive in one read
+
+		ByteBuffer third = encode(handler, bytes(50, 3));
+		ByteBuffer input = ByteBuffer.allocate(1024);
+		input.put(encode(handler, bytes(10, 1)));
+		input.put(encode(handler, bytes(20, 2)));
+		input.put((ByteBuffer) third.duplicate().limit(30));
+		input.flip();
+
+		Assert.assertArrayEquals("invalid message", bytes(10, 1),
+								 handler.handleInput(endpoint, input));
+		Assert.assertArrayEquals("invalid message", bytes(20, 2),
+								 handler.handleInput(endpoint, input));
+		Assert.assertNull("partial message returned", handler.handleInput(endpoint, input));
+		Assert.assertFalse("input not consumed", input.hasRemaining());
+
+		// another endpoint's input doesn't disturb the partial message
+
+		Assert.assertArrayEquals("invalid message", bytes(5, 4),
+								 handler.handleInput(otherEndpoint,
+													 encode(handler, bytes(5, 4))));
+
+		third.position(30);
+		Assert.assertArrayEquals("invalid message", bytes(50, 3),
+								 handler.handleInput(endpoint, third));
+		Assert.assertNull("message returned from no input",
+						  handler.handleInput(endpoint, ByteBuffer.allocate(0)));
+	}
+
+	@Test
+	public void testTrailingRecords() throws Exception {
+		DefaultStreamHandler handler = new DefaultStreamHandler();
+		Endpoint endpoint = new TestEndpoint();
+
+		// the records follow the message on the stream, and are read back as
+		// part of the same message
+
+		byte [] records = bytes(300, 7);
+		ByteBuffer input = ByteBuffer.allocate(1024);
+		handler.encodeOutput(bytes(40, 1), records.length, input);
+		input.put(records);
+		input.flip();
+
+		byte [] message = handler.handleInput(endpoint, input);
+		Assert.assertEquals("invalid message length", 340, message.length);
+		for (int i = 0; i < 40; i++)
+			Assert.assertEquals("invalid message", 1 + i, message[i]);
+		for (int i = 0; i < 300; i++)
+			Assert.assertEquals("invalid records", records[i], message[40 + i]);
+		Assert.assertFalse("input not consumed", input.hasRemaining());
+	}
+
+	@Test
+	public void testMessageTooLong() throws Exception {
+		try {
+			new DefaultStreamHandler().encodeOutput(new byte[16], Integer.MAX_VALUE,
+													ByteBuffer.allocate(32));
+			Assert.fail("encoded a message longer than 2GB");
+		} catch (IllegalArgumentException iae) { }
+	}
+
+	/** Returns a buffer with the given message encoded for the stream. */
+	private static ByteBuffer encode(DefaultStreamHandler handler, byte [] message) {
+		ByteBuffer output = ByteBuffer.allocate(message.length + 4);
+		handler.encodeOutput(message, output);
+		output.flip();
+		return output;
+	}
+
+	/** Returns bytes counting up from the given value. */
+	private static byte [] bytes(int length, int first) {
+		byte [] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) (first + i);
+		return bytes;
+	}
+
+	/** Endpoint that's only used to keep track of partial messages. */
+	private static class TestEndpoint implements Endpoint {
+		@Override public void addListener(EndpointListener listener) { }
+		@Override public void removeListener(EndpointListener listener) { }
+		@Override public void send(byte [] message) { }
+		@Override public void send(byte [] message, LogRecords records) { }
+		@Override public boolean send(byte [] message, EndpointListener responseListener) {
+			return false;
+		}
+		@Override public byte [] sendAndReceive(byte [] message) {
+			return null;
+		}
+		@Override public void close() { }
+	}
+
+}
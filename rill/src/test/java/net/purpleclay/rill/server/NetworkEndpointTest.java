@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2013-2014, Seth Proctor. All rights reserved.
+ *
+ * This software is distributed under the BSD license. See the terms of the
+ * license in the documentation provided with this software.
+ */
+
+package net.purpleclay.rill.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.purpleclay.raft.LogRecords;
+
+
+/** Tests for sending on a {@code NetworkEndpoint}. */
+public class NetworkEndpointTest {
+
+	@Test
+	public void testSendRecords() throws Exception {
+		ServerSocketChannel serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+		SocketChannel channel = SocketChannel.open(serverChannel.socket().getLocalSocketAddress());
+		final SocketChannel peer = serverChannel.accept();
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+
+		try {
+			// the channel is non-blocking, as it is when it's read by a manager,
+			// and the records are much larger than the socket will buffer, so
+			// the send has to wait for the slow reader to catch up
+
+			channel.configureBlocking(false);
+			NetworkEndpoint endpoint = new NetworkEndpoint(channel, new DefaultStreamHandler());
+
+			byte [] message = new byte[40];
+			for (int i = 0; i < message.length; i++)
+				message[i] = (byte) i;
+			byte [] records = new byte[8 * 1024 * 1024];
+			for (int i = 0; i < records.length; i++)
+				records[i] = (byte) (i % 251);
+
+			Future<byte []> received = executor.submit(new Callable<byte []>() {
+					public byte [] call() throws Exception {
+						Thread.sleep(200L);
+						DefaultStreamHandler handler = new DefaultStreamHandler();
+						ByteBuffer input = ByteBuffer.allocate(16 * 1024);
+						while (true) {
+							if (peer.read(input) < 0)
+								throw new IOException("Connection was closed");
+							input.flip();
+							byte [] complete = handler.handleInput(null, input);
+							if (complete != null)
+								return complete;
+							input.clear();
+						}
+					}
+				});
+
+			endpoint.send(message, new BufferRecords(ByteBuffer.wrap(records)));
+
+			byte [] result = received.get(30, TimeUnit.SECONDS);
+			Assert.assertEquals("invalid message length", message.length + records.length,
+								result.length);
+			for (int i = 0; i < message.length; i++)
+				Assert.assertEquals("invalid message", message[i], result[i]);
+			for (int i = 0; i < records.length; i++) {
+				if (records[i] != result[message.length + i])
+					Assert.fail("invalid record byte at " + i);
+			}
+		} finally {
+			executor.shutdownNow();
+			channel.close();
+			peer.close();
+			serverChannel.close();
+		}
+	}
+
+	/** Records held in a buffer, which are written a slice at a time. */
+	private static class BufferRecords implements LogRecords {
+		private final ByteBuffer data;
+		BufferRecords(ByteBuffer data) {
+			this.data = data;
+		}
+		@Override public long getFirstIndex() {
+			return 1L;
+		}
+		@Override public int getEntryCount() {
+			return 1;
+		}
+		@Override public long getLength() {
+			return data.remaining();
+		}
+		@Override public void transferTo(WritableByteChannel target) throws IOException {
+			ByteBuffer buffer = data.duplicate();
+			while (buffer.hasRemaining())
+				target.write(buffer);
+		}
+		@Override public long transferTo(long offset, WritableByteChannel target)
+			throws IOException
+		{
+			ByteBuffer buffer = data.duplicate();
+			buffer.position(buffer.position() + (int) offset);
+			return target.write(buffer);
+		}
+		@Override public ByteBuffer getBuffer() {
+			return data.duplicate();
+		}
+	}
+
+}